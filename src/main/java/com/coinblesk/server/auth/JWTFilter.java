@@ -37,8 +37,8 @@ class JWTFilter extends GenericFilterBean {
 			HttpServletRequest httpServletRequest = (HttpServletRequest) servletRequest;
 			String jwt = resolveToken(httpServletRequest);
 			if (StringUtils.hasText(jwt)) {
-				if (this.tokenProvider.validateToken(jwt)) {
-					Authentication authentication = this.tokenProvider.getAuthentication(jwt);
+				Authentication authentication = this.tokenProvider.authenticate(jwt);
+				if (authentication != null) {
 					SecurityContextHolder.getContext().setAuthentication(authentication);
 				}
 			}
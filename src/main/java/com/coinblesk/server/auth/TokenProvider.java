@@ -1,14 +1,18 @@
 package com.coinblesk.server.auth;
 
 import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.config.RefreshingCacheManager;
 import com.coinblesk.server.config.UserRole;
+import com.google.common.hash.Hashing;
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.ExpiredJwtException;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.SignatureException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
@@ -16,25 +20,37 @@ import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.User;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.Nullable;
 import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.stream.Collectors;
 
+/**
+ * Creates and verifies the JWTs of the users.
+ *
+ * Verified tokens are kept in the cache jwt-authentication, keyed by the SHA-256 digest of the token, so a client
+ * that sends the same token again is authenticated without parsing and verifying it again. A cached token is only
+ * used until its expiration.
+ */
 @Component
 public class TokenProvider {
 
 	private static final String AUTHORITIES_KEY = "auth";
+	private static final String CACHE_NAME = "jwt-authentication";
 	private final Logger log = LoggerFactory.getLogger(TokenProvider.class);
 	private final AppConfig appConfig;
+	private final RefreshingCacheManager cacheManager;
 	private byte[] secretKey;
 	private long tokenValidityInMilliseconds;
 	private long adminTokenValidityInMilliseconds;
 
 	@Autowired
-	public TokenProvider(AppConfig appConfig) {
+	public TokenProvider(AppConfig appConfig, RefreshingCacheManager cacheManager) {
 		this.appConfig = appConfig;
+		this.cacheManager = cacheManager;
 	}
 
 	@PostConstruct
@@ -62,24 +78,55 @@ public class TokenProvider {
 			(SignatureAlgorithm.HS256, secretKey).setExpiration(validity).compact();
 	}
 
-	Authentication getAuthentication(String token) {
-		Claims claims = Jwts.parser().setSigningKey(secretKey).parseClaimsJws(token).getBody();
+	/**
+	 * Verifies the token and returns the authentication it contains. The token is parsed and verified at most once
+	 * while it is in the cache.
+	 *
+	 * @return the authentication, or null if the signature of the token is invalid
+	 * @throws ExpiredJwtException if the token is expired
+	 */
+	@Nullable
+	Authentication authenticate(String token) {
+		final Cache cache = cacheManager.getCache(CACHE_NAME);
+		final String key = Hashing.sha256().hashString(token, StandardCharsets.UTF_8).toString();
+
+		final VerifiedToken cached = cache.get(key, VerifiedToken.class);
+		if (cached != null) {
+			if (System.currentTimeMillis() < cached.expiresAt) {
+				return cached.authentication;
+			}
+			// Parse the expired token again, so the caller gets the same exception as for an uncached token
+			cache.evict(key);
+		}
+
+		final Claims claims;
+		try {
+			claims = Jwts.parser().setSigningKey(secretKey).parseClaimsJws(token).getBody();
+		} catch (SignatureException e) {
+			log.info("Invalid JWT signature: " + e.getMessage());
+			return null;
+		}
 
 		Collection<? extends GrantedAuthority> authorities = Arrays.stream(claims.get(AUTHORITIES_KEY).toString()
 			.split(",")).map(SimpleGrantedAuthority::new).collect(Collectors.toList());
 
 		User principal = new User(claims.getSubject(), "", authorities);
+		Authentication authentication = new UsernamePasswordAuthenticationToken(principal, "", authorities);
 
-		return new UsernamePasswordAuthenticationToken(principal, "", authorities);
+		// Tokens without expiration are never cached
+		if (claims.getExpiration() != null) {
+			cache.put(key, new VerifiedToken(authentication, claims.getExpiration().getTime()));
+		}
+		return authentication;
 	}
 
-	boolean validateToken(String authToken) {
-		try {
-			Jwts.parser().setSigningKey(secretKey).parseClaimsJws(authToken);
-			return true;
-		} catch (SignatureException e) {
-			log.info("Invalid JWT signature: " + e.getMessage());
-			return false;
+	private static class VerifiedToken {
+		private final Authentication authentication;
+		private final long expiresAt;
+
+		private VerifiedToken(Authentication authentication, long expiresAt) {
+			this.authentication = authentication;
+			this.expiresAt = expiresAt;
 		}
 	}
 }
@@ -17,6 +17,7 @@ package com.coinblesk.server.config;
 
 import java.io.File;
 import java.io.IOException;
+import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.HashSet;
 import java.util.Set;
@@ -31,6 +32,7 @@ import org.springframework.core.io.FileSystemResource;
 import org.springframework.retry.annotation.EnableRetry;
 
 import com.coinblesk.bitcoin.BitcoinNet;
+import com.coinblesk.server.enumerator.EventOverflowPolicy;
 import com.coinblesk.server.utils.CoinUtils;
 
 @Configuration
@@ -64,6 +66,58 @@ public class AppConfig {
 	private long maximumLockTimeDays;
 	@Value("${coinblesk.maximumChannelAmountUSD}")
 	private long maximumChannelAmountUSD;
+	@Value("${coinblesk.ledger.enabled}")
+	private boolean virtualLedgerEnabled;
+	@Value("${coinblesk.ledger.shards}")
+	private int virtualLedgerShards;
+	@Value("${coinblesk.virtualPaymentBatch.enabled}")
+	private boolean virtualPaymentBatchEnabled;
+	@Value("${coinblesk.virtualPaymentBatch.maxSize}")
+	private int virtualPaymentBatchMaxSize;
+	@Value("${coinblesk.virtualPaymentBatch.maxDelayMillis}")
+	private long virtualPaymentBatchMaxDelayMillis;
+	@Value("${coinblesk.serverBalanceVerificationInterval}")
+	private long serverBalanceVerificationInterval;
+	@Value("${coinblesk.forex.maximumRateAge}")
+	private long maximumForexRateAge;
+	@Value("${coinblesk.forex.historyDays}")
+	private int forexHistoryDays;
+	@Value("${coinblesk.fee.maximumAge}")
+	private long maximumFeeAge;
+	@Value("${coinblesk.events.async.enabled}")
+	private boolean eventsAsyncEnabled;
+	@Value("${coinblesk.events.async.capacity}")
+	private int eventsAsyncCapacity;
+	@Value("${coinblesk.events.async.batchSize}")
+	private int eventsAsyncBatchSize;
+	@Value("${coinblesk.events.async.overflowPolicy}")
+	private EventOverflowPolicy eventsAsyncOverflowPolicy;
+	@Value("${coinblesk.events.async.syncFatal}")
+	private boolean eventsAsyncSyncFatal;
+	@Value("${coinblesk.events.retentionDays}")
+	private int eventsRetentionDays;
+	@Value("${coinblesk.events.retentionBatchSize}")
+	private int eventsRetentionBatchSize;
+	@Value("${coinblesk.events.retentionPauseMillis}")
+	private long eventsRetentionPauseMillis;
+	@Value("${coinblesk.mail.senderThreads}")
+	private int mailSenderThreads;
+	@Value("${coinblesk.mail.batchSize}")
+	private int mailBatchSize;
+	@Value("${coinblesk.mail.pollIntervalMillis}")
+	private long mailPollIntervalMillis;
+	@Value("${coinblesk.mail.maxAttempts}")
+	private int mailMaxAttempts;
+	@Value("${coinblesk.mail.retryDelaySeconds}")
+	private long mailRetryDelaySeconds;
+	@Value("${coinblesk.price.providers}")
+	private String[] priceProviders;
+	@Value("${coinblesk.price.timeoutMillis}")
+	private long priceTimeoutMillis;
+	@Value("${coinblesk.price.maxDeviation}")
+	private BigDecimal priceMaxDeviation;
+	@Value("${coinblesk.price.minProviders}")
+	private int priceMinProviders;
 	@Value("${bitcoin.net}")
 	private String bitcoinNet;
 	@Value("${bitcoin.firstSeedNode}")
@@ -166,4 +220,108 @@ public class AppConfig {
 		return maximumChannelAmountUSD;
 	}
 
+	public boolean isVirtualLedgerEnabled() {
+		return virtualLedgerEnabled;
+	}
+
+	public int getVirtualLedgerShards() {
+		return virtualLedgerShards;
+	}
+
+	public boolean isVirtualPaymentBatchEnabled() {
+		return virtualPaymentBatchEnabled;
+	}
+
+	public int getVirtualPaymentBatchMaxSize() {
+		return virtualPaymentBatchMaxSize;
+	}
+
+	public long getVirtualPaymentBatchMaxDelayMillis() {
+		return virtualPaymentBatchMaxDelayMillis;
+	}
+
+	public long getServerBalanceVerificationInterval() {
+		return serverBalanceVerificationInterval;
+	}
+
+	public long getMaximumForexRateAge() {
+		return maximumForexRateAge;
+	}
+
+	public int getForexHistoryDays() {
+		return forexHistoryDays;
+	}
+
+	public long getMaximumFeeAge() {
+		return maximumFeeAge;
+	}
+
+	public boolean isEventsAsyncEnabled() {
+		return eventsAsyncEnabled;
+	}
+
+	public int getEventsAsyncCapacity() {
+		return eventsAsyncCapacity;
+	}
+
+	public int getEventsAsyncBatchSize() {
+		return eventsAsyncBatchSize;
+	}
+
+	public EventOverflowPolicy getEventsAsyncOverflowPolicy() {
+		return eventsAsyncOverflowPolicy;
+	}
+
+	public boolean isEventsAsyncSyncFatal() {
+		return eventsAsyncSyncFatal;
+	}
+
+	public int getEventsRetentionDays() {
+		return eventsRetentionDays;
+	}
+
+	public int getEventsRetentionBatchSize() {
+		return eventsRetentionBatchSize;
+	}
+
+	public long getEventsRetentionPauseMillis() {
+		return eventsRetentionPauseMillis;
+	}
+
+	public int getMailSenderThreads() {
+		return mailSenderThreads;
+	}
+
+	public int getMailBatchSize() {
+		return mailBatchSize;
+	}
+
+	public long getMailPollIntervalMillis() {
+		return mailPollIntervalMillis;
+	}
+
+	public int getMailMaxAttempts() {
+		return mailMaxAttempts;
+	}
+
+	public long getMailRetryDelaySeconds() {
+		return mailRetryDelaySeconds;
+	}
+
+	public String[] getPriceProviders() {
+		return priceProviders;
+	}
+
+	public long getPriceTimeoutMillis() {
+		return priceTimeoutMillis;
+	}
+
+	public BigDecimal getPriceMaxDeviation() {
+		return priceMaxDeviation;
+	}
+
+	public int getPriceMinProviders() {
+		return priceMinProviders;
+	}
+
 }
@@ -15,12 +15,17 @@
  */
 package com.coinblesk.server.config;
 
+import java.util.Properties;
+
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.context.MessageSource;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.Environment;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
 import org.springframework.context.support.ResourceBundleMessageSource;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.annotation.EnableScheduling;
@@ -52,6 +57,36 @@ public class BeanConfig {
 		return new ThreadPoolTaskScheduler();
 	}
 
+	@Bean(destroyMethod = "shutdown")
+	public RefreshingCacheManager cacheManager(Environment environment) {
+		return new RefreshingCacheManager(environment);
+	}
+
+	/**
+	 * SMTP settings from the email.* properties, used by the mail outbox.
+	 */
+	@Bean
+	public JavaMailSender javaMailService(Environment environment) {
+		JavaMailSenderImpl javaMailSender = new JavaMailSenderImpl();
+
+		if (environment.getRequiredProperty("email.auth", Boolean.class)) {
+			javaMailSender.setUsername(environment.getProperty("email.username"));
+			javaMailSender.setPassword(environment.getProperty("email.password"));
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", environment.getRequiredProperty("email.protocol"));
+		properties.setProperty("mail.smtp.auth", environment.getRequiredProperty("email.auth"));
+		properties.setProperty("mail.smtp.starttls.enable", environment.getRequiredProperty("email.starttls"));
+		properties.setProperty("mail.debug", environment.getRequiredProperty("email.debug"));
+		properties.setProperty("mail.smtp.host", environment.getRequiredProperty("email.host"));
+		properties.setProperty("mail.smtp.port", environment.getRequiredProperty("email.port"));
+		properties.setProperty("mail.smtp.ssl.trust", environment.getRequiredProperty("email.trust"));
+		javaMailSender.setJavaMailProperties(properties);
+
+		return javaMailSender;
+	}
+
 	@Bean
 	public static PasswordEncoder passwordEncoder() {
 		return new BCryptPasswordEncoder();
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.config;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.guava.GuavaCache;
+import org.springframework.cache.guava.GuavaCacheManager;
+import org.springframework.core.env.PropertyResolver;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Cache manager for the @Cacheable caches with settings per cache.
+ *
+ * The settings of a cache are read from the property coinblesk.cache.&lt;cache name&gt; as a Guava
+ * {@link CacheBuilderSpec}, e.g. "maximumSize=100,expireAfterWrite=2m,refreshAfterWrite=1m,recordStats". Caches
+ * without a property use coinblesk.cache.default. Every entry expires on its own, counted from the time it was
+ * written.
+ *
+ * A cache with refreshAfterWrite needs a {@link Refresher} registered with {@link #registerRefresher(String,
+ * Refresher)}. Once an entry is older than the refresh time, the next read returns the current value and reloads
+ * the entry in the background. This also holds for @Cacheable(sync = true): a read through
+ * {@link org.springframework.cache.Cache#get(Object, Callable)} uses the value loader of the caller on a miss only,
+ * otherwise Guava would refresh the entry with that loader on the thread of the caller.
+ */
+public class RefreshingCacheManager extends GuavaCacheManager {
+
+	private final static Logger LOG = LoggerFactory.getLogger(RefreshingCacheManager.class);
+
+	private final static String PROPERTY_PREFIX = "coinblesk.cache.";
+
+	private final PropertyResolver properties;
+	private final Map<String, Refresher> refreshers = new ConcurrentHashMap<>();
+
+	private final ExecutorService refreshExecutor = Executors.newFixedThreadPool(2, runnable -> {
+		Thread thread = new Thread(runnable, "cache-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public RefreshingCacheManager(PropertyResolver properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * Loads the current value for a key of a cache, used to refresh entries in the background.
+	 */
+	public interface Refresher {
+		Object load(Object key) throws Exception;
+	}
+
+	public void registerRefresher(String cacheName, Refresher refresher) {
+		refreshers.put(cacheName, refresher);
+	}
+
+	@Override
+	protected org.springframework.cache.Cache createGuavaCache(String name) {
+		final Cache<Object, Object> nativeCache = createNativeGuavaCache(name);
+		if (nativeCache instanceof LoadingCache) {
+			return new RefreshingGuavaCache(name, nativeCache, isAllowNullValues());
+		}
+		return new GuavaCache(name, nativeCache, isAllowNullValues());
+	}
+
+	@Override
+	protected Cache<Object, Object> createNativeGuavaCache(String name) {
+		final String spec = properties.getProperty(PROPERTY_PREFIX + name, properties.getRequiredProperty(
+			PROPERTY_PREFIX + "default"));
+		LOG.info("Creating cache {} with {}", name, spec);
+
+		final CacheBuilder<Object, Object> builder = CacheBuilder.from(spec);
+		if (!spec.contains("refreshAfterWrite")) {
+			return builder.build();
+		}
+		return builder.build(CacheLoader.asyncReloading(new CacheLoader<Object, Object>() {
+			@Override
+			public Object load(Object key) throws Exception {
+				final Refresher refresher = refreshers.get(name);
+				if (refresher == null) {
+					throw new IllegalStateException("No refresher registered for cache " + name);
+				}
+				return refresher.load(key);
+			}
+		}, refreshExecutor));
+	}
+
+	public void shutdown() {
+		refreshExecutor.shutdownNow();
+	}
+
+	/**
+	 * Cache with refreshAfterWrite. A cached entry is read with getIfPresent, which returns it and schedules the
+	 * refresh with the {@link Refresher} in the background.
+	 */
+	private static class RefreshingGuavaCache extends GuavaCache {
+
+		private RefreshingGuavaCache(String name, Cache<Object, Object> cache, boolean allowNullValues) {
+			super(name, cache, allowNullValues);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> T get(Object key, Callable<T> valueLoader) {
+			final Object value = getNativeCache().getIfPresent(key);
+			if (value != null) {
+				return (T) fromStoreValue(value);
+			}
+			// Concurrent misses for the same key still wait for a single load
+			return super.get(key, valueLoader);
+		}
+	}
+}
@@ -16,17 +16,22 @@
 package com.coinblesk.server.controller;
 
 import static com.coinblesk.server.config.UserRole.ROLE_ADMIN;
+import static org.springframework.format.annotation.DateTimeFormat.ISO.DATE_TIME;
 import static org.springframework.http.MediaType.APPLICATION_JSON_UTF8_VALUE;
 import static org.springframework.web.bind.annotation.RequestMethod.DELETE;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 import static org.springframework.web.bind.annotation.RequestMethod.POST;
 import static org.springframework.web.bind.annotation.RequestMethod.PUT;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 
 import org.bitcoinj.core.Address;
@@ -38,12 +43,17 @@ import org.bitcoinj.params.TestNet3Params;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.guava.GuavaCache;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.annotation.Secured;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.coinblesk.dto.AccountDTO;
 import com.coinblesk.dto.AccountDetailsDTO;
@@ -51,22 +61,35 @@ import com.coinblesk.dto.ServerBalanceDTO;
 import com.coinblesk.dto.TimeLockedAddressDTO;
 import com.coinblesk.dto.UserAccountAdminDTO;
 import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.config.RefreshingCacheManager;
 import com.coinblesk.server.entity.Account;
 import com.coinblesk.server.entity.Event;
 import com.coinblesk.server.entity.ServerPotBaseline;
 import com.coinblesk.server.entity.TimeLockedAddressEntity;
+import com.coinblesk.server.enumerator.EventType;
 import com.coinblesk.server.enumerator.EventUrgence;
 import com.coinblesk.server.exceptions.AccountNotFoundException;
 import com.coinblesk.server.exceptions.BusinessException;
+import com.coinblesk.server.exceptions.InvalidCursorException;
 import com.coinblesk.server.service.AccountService;
+import com.coinblesk.server.service.AccountService.AccountQuery;
+import com.coinblesk.server.service.AsyncEventWriter;
 import com.coinblesk.server.service.EventService;
+import com.coinblesk.server.service.EventService.EventQuery;
+import com.coinblesk.server.service.FeeEstimationService;
+import com.coinblesk.server.service.FeeService;
+import com.coinblesk.server.service.MailOutboxService;
 import com.coinblesk.server.service.MicropaymentService;
 import com.coinblesk.server.service.ServerBalanceService;
 import com.coinblesk.server.service.ServerPotBaselineService;
 import com.coinblesk.server.service.UserAccountService;
+import com.coinblesk.server.service.VirtualLedgerService;
 import com.coinblesk.server.service.WalletService;
 import com.coinblesk.util.Pair;
 import com.coinblesk.util.SerializeUtils;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.CacheStats;
 
 /**
  * @author Thomas Bocek
@@ -89,11 +112,24 @@ public class AuthAdminController {
 	private final ServerPotBaselineService serverPotBaselineService;
 	private final ServerBalanceService serverBalanceService;
 	private final MicropaymentService microPaymentService;
+	private final FeeService feeService;
+	private final FeeEstimationService feeEstimationService;
+	private final RefreshingCacheManager cacheManager;
+	private final MailOutboxService mailOutboxService;
+	private final VirtualLedgerService virtualLedgerService;
+	private final AsyncEventWriter asyncEventWriter;
+	private final ObjectMapper objectMapper;
+
+	private final static int MAX_ACCOUNTS_PAGE_SIZE = 1000;
+	private final static int MAX_EVENTS_PAGE_SIZE = 1000;
 
 	@Autowired
 	public AuthAdminController(AppConfig appConfig, WalletService walletService, UserAccountService userAccountService,
 			AccountService accountService, EventService eventService, ServerPotBaselineService serverPotBaselineService,
-			ServerBalanceService serverBalanceService, MicropaymentService microPaymentService) {
+			ServerBalanceService serverBalanceService, MicropaymentService microPaymentService,
+			FeeService feeService, FeeEstimationService feeEstimationService, RefreshingCacheManager cacheManager,
+			MailOutboxService mailOutboxService, VirtualLedgerService virtualLedgerService,
+			AsyncEventWriter asyncEventWriter, ObjectMapper objectMapper) {
 		this.appConfig = appConfig;
 		this.walletService = walletService;
 		this.userAccountService = userAccountService;
@@ -102,6 +138,13 @@ public class AuthAdminController {
 		this.serverPotBaselineService = serverPotBaselineService;
 		this.serverBalanceService = serverBalanceService;
 		this.microPaymentService = microPaymentService;
+		this.feeService = feeService;
+		this.feeEstimationService = feeEstimationService;
+		this.cacheManager = cacheManager;
+		this.mailOutboxService = mailOutboxService;
+		this.virtualLedgerService = virtualLedgerService;
+		this.asyncEventWriter = asyncEventWriter;
+		this.objectMapper = objectMapper;
 	}
 
 	@RequestMapping(value = "/balance", method = GET)
@@ -116,6 +159,75 @@ public class AuthAdminController {
 		return serverBalanceService.getServerBalance();
 	}
 
+	/**
+	 * Current fee, how old it is in milliseconds (-1 if the fee API was never reached), the number of failed
+	 * requests to the fee API since startup and the local estimate with the number of samples it is based on.
+	 */
+	@RequestMapping(value = "/fee", method = GET, produces = APPLICATION_JSON_UTF8_VALUE)
+	@ResponseBody
+	public Map<String, Long> getFeeStatus() {
+		Map<String, Long> map = new LinkedHashMap<>();
+		map.put("fee", (long) feeService.fee());
+		map.put("ageMillis", feeService.getFeeAgeMillis());
+		map.put("refreshFailures", feeService.getRefreshFailures());
+		Integer localEstimate = feeEstimationService.estimate(90);
+		map.put("localEstimate", localEstimate == null ? null : localEstimate.longValue());
+		map.put("localSamples", (long) feeEstimationService.getSampleCount());
+		return map;
+	}
+
+	/**
+	 * Statistics of the @Cacheable caches that were used since startup.
+	 */
+	@RequestMapping(value = "/caches", method = GET, produces = APPLICATION_JSON_UTF8_VALUE)
+	@ResponseBody
+	public Map<String, Map<String, Object>> getCacheStats() {
+		Map<String, Map<String, Object>> result = new TreeMap<>();
+		for (String name : cacheManager.getCacheNames()) {
+			com.google.common.cache.Cache<Object, Object> cache = ((GuavaCache) cacheManager.getCache(name))
+					.getNativeCache();
+			CacheStats stats = cache.stats();
+			Map<String, Object> map = new LinkedHashMap<>();
+			map.put("size", cache.size());
+			map.put("hitCount", stats.hitCount());
+			map.put("missCount", stats.missCount());
+			map.put("hitRate", stats.hitRate());
+			map.put("loadExceptionCount", stats.loadExceptionCount());
+			map.put("evictionCount", stats.evictionCount());
+			map.put("averageLoadPenaltyMillis", stats.averageLoadPenalty() / 1_000_000);
+			result.put(name, map);
+		}
+		return result;
+	}
+
+	/**
+	 * State of the asynchronous event writer: whether it runs, the events waiting in its queue and the events dropped
+	 * since startup because the queue was full.
+	 */
+	@RequestMapping(value = "/event-writer", method = GET, produces = APPLICATION_JSON_UTF8_VALUE)
+	@ResponseBody
+	public Map<String, Object> getEventWriterStatus() {
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("running", asyncEventWriter.isRunning());
+		map.put("queueSize", asyncEventWriter.getQueueSize());
+		map.put("dropped", asyncEventWriter.getDroppedCount());
+		return map;
+	}
+
+	/**
+	 * Mails waiting in the outbox, mails that were given up, and the mails sent and attempts retried since startup.
+	 */
+	@RequestMapping(value = "/mail", method = GET, produces = APPLICATION_JSON_UTF8_VALUE)
+	@ResponseBody
+	public Map<String, Long> getMailStatus() {
+		Map<String, Long> map = new LinkedHashMap<>();
+		map.put("pending", mailOutboxService.getPendingCount());
+		map.put("failed", mailOutboxService.getFailedCount());
+		map.put("sent", mailOutboxService.getSentCount());
+		map.put("retries", mailOutboxService.getRetryCount());
+		return map;
+	}
+
 	@RequestMapping(value = "/addresses", method = GET)
 	@ResponseBody
 	public Map<Address, Coin> addresses() {
@@ -189,6 +301,75 @@ public class AuthAdminController {
 		}).collect(Collectors.toList());
 	}
 
+	/**
+	 * One page of accounts, written to the response while the accounts are read from the database. The response is
+	 * {"accounts": [...], "nextCursor": "..."}, where nextCursor is passed as cursor to get the next page and is
+	 * null on the last page. Unlike /accounts, accounts without time locked addresses are included.
+	 */
+	@RequestMapping(value = "/accounts/page", method = GET, produces = APPLICATION_JSON_UTF8_VALUE)
+	public ResponseEntity<StreamingResponseBody> getAccountsPage(
+			@RequestParam(value = "cursor", required = false) String cursor,
+			@RequestParam(value = "limit", defaultValue = "100") int limit,
+			@RequestParam(value = "sort", defaultValue = "ID") AccountQuery.Sort sort,
+			@RequestParam(value = "descending", defaultValue = "false") boolean descending,
+			@RequestParam(value = "locked", required = false) Boolean locked,
+			@RequestParam(value = "hasChannel", required = false) Boolean hasChannel,
+			@RequestParam(value = "minVirtualBalance", required = false) Long minVirtualBalance)
+			throws BusinessException {
+
+		final AccountQuery query = new AccountQuery();
+		query.setSort(sort);
+		query.setDescending(descending);
+		query.setLocked(locked);
+		query.setHasChannel(hasChannel);
+		query.setMinVirtualBalance(minVirtualBalance);
+		query.setLimit(Math.max(1, Math.min(limit, MAX_ACCOUNTS_PAGE_SIZE)));
+		if (cursor != null) {
+			// <sort value>:<account id> of the last account of the previous page
+			final String[] parts = cursor.split(":");
+			try {
+				if (parts.length != 2) {
+					throw new InvalidCursorException();
+				}
+				query.setAfterValue(Long.parseLong(parts[0]));
+				query.setAfterId(Long.parseLong(parts[1]));
+			} catch (NumberFormatException e) {
+				throw new InvalidCursorException();
+			}
+		}
+
+		final StreamingResponseBody body = out -> {
+			// Pre-calculate balances for each address
+			final Map<Address, Coin> balances = walletService.getBalanceByAddresses();
+			final Account[] last = new Account[1];
+
+			try (JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+				json.writeStartObject();
+				json.writeArrayFieldStart("accounts");
+				final int count = accountService.forEachAccount(query, (account, tlas) -> {
+					long satoshiBalance = tlas.stream().mapToLong(tla -> mapTimeLockedAddressDTO(tla, balances)
+							.getBalance()).sum();
+					try {
+						json.writeObject(mapAccountDTO(account, satoshiBalance));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					last[0] = account;
+				});
+				json.writeEndArray();
+				if (count == query.getLimit()) {
+					json.writeStringField("nextCursor", sort.sortValue(last[0]) + ":" + last[0].getId());
+				} else {
+					json.writeNullField("nextCursor");
+				}
+				json.writeEndObject();
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		};
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(body);
+	}
+
 	private TimeLockedAddressDTO mapTimeLockedAddressDTO(TimeLockedAddressEntity tla, Map<Address, Coin> balances) {
 		NetworkParameters params = appConfig.getNetworkParameters();
 		Instant createdAt = Instant.ofEpochSecond(tla.getTimeCreated());
@@ -206,12 +387,13 @@ public class AuthAdminController {
 		String serverPublicKey = SerializeUtils.bytesToHex(account.serverPublicKey());
 		String serverPrivateKey = SerializeUtils.bytesToHex(account.serverPrivateKey());
 		Date timeCreated = Date.from(Instant.ofEpochSecond(account.timeCreated()));
-		long virtualBalance = account.virtualBalance();
+		long virtualBalance = virtualLedgerService.virtualBalanceOf(account);
 		long channelTransactionAmount = microPaymentService.getPendingChannelValue(account).longValue();
-		long totalBalance = account.virtualBalance() + satoshiBalance - channelTransactionAmount;
+		long totalBalance = virtualBalance + satoshiBalance - channelTransactionAmount;
 		boolean isLocked = account.isLocked();
 		Date broadcastBefore = account.getBroadcastBefore() == 0 ? null : Date.from(Instant.ofEpochSecond(account.getBroadcastBefore()));
-		Date nonce = account.getNonce() == 0 ? null : Date.from(Instant.ofEpochMilli(account.getNonce()));
+		long nonceMillis = virtualLedgerService.nonceOf(account);
+		Date nonce = nonceMillis == 0 ? null : Date.from(Instant.ofEpochMilli(nonceMillis));
 		String channelTransaction = account.getChannelTransaction() != null ? SerializeUtils.bytesToHex(account.getChannelTransaction()) : null;
 
 		String userAccountEmail = null;
@@ -262,6 +444,53 @@ public class AuthAdminController {
 		return eventService.getEventsWithUrgenceOrHigher(urgence);
 	}
 
+	/**
+	 * One page of the events with the given urgence or higher, newest first. The response is {"events": [...],
+	 * "nextCursor": "..."}, where nextCursor is passed as cursor to get the next page and is null on the last page.
+	 * from (inclusive) and to (exclusive) are ISO date-times.
+	 */
+	@RequestMapping(value = "/events/page", method = GET, produces = APPLICATION_JSON_UTF8_VALUE)
+	@ResponseBody
+	public Map<String, Object> getEventsPage(
+			@RequestParam(value = "urgence", defaultValue = "DEBUG") EventUrgence urgence,
+			@RequestParam(value = "type", required = false) EventType type,
+			@RequestParam(value = "from", required = false) @DateTimeFormat(iso = DATE_TIME) Date from,
+			@RequestParam(value = "to", required = false) @DateTimeFormat(iso = DATE_TIME) Date to,
+			@RequestParam(value = "cursor", required = false) String cursor,
+			@RequestParam(value = "limit", defaultValue = "100") int limit) throws BusinessException {
+
+		final EventQuery query = new EventQuery();
+		query.setMinUrgence(urgence);
+		query.setType(type);
+		query.setFrom(from);
+		query.setTo(to);
+		query.setLimit(Math.max(1, Math.min(limit, MAX_EVENTS_PAGE_SIZE)));
+		if (cursor != null) {
+			// <epoch millis>:<event id> of the last event of the previous page
+			final String[] parts = cursor.split(":");
+			try {
+				if (parts.length != 2) {
+					throw new InvalidCursorException();
+				}
+				query.setBeforeDate(new Date(Long.parseLong(parts[0])));
+				query.setBeforeId(Long.parseLong(parts[1]));
+			} catch (NumberFormatException e) {
+				throw new InvalidCursorException();
+			}
+		}
+
+		final List<Event> events = eventService.getEvents(query);
+		final Map<String, Object> result = new LinkedHashMap<>();
+		result.put("events", events);
+		if (events.size() == query.getLimit()) {
+			final Event last = events.get(events.size() - 1);
+			result.put("nextCursor", last.getDate().getTime() + ":" + last.getId());
+		} else {
+			result.put("nextCursor", null);
+		}
+		return result;
+	}
+
 	@RequestMapping(value = "/server-pot-baseline", method = POST)
 	@ResponseBody
 	public void addNewAmountToServerBaselinePot(@RequestParam("amount") long amount) {
@@ -22,7 +22,6 @@ import static org.springframework.http.MediaType.APPLICATION_JSON_UTF8_VALUE;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 import static org.springframework.web.bind.annotation.RequestMethod.POST;
 
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.net.URLEncoder;
@@ -90,6 +89,7 @@ import com.coinblesk.server.service.ForexBitcoinService;
 import com.coinblesk.server.service.MailService;
 import com.coinblesk.server.service.MicropaymentService;
 import com.coinblesk.server.service.UserAccountService;
+import com.coinblesk.server.service.VirtualLedgerService;
 import com.coinblesk.server.service.WalletService;
 import com.coinblesk.util.DTOUtils;
 import com.coinblesk.util.InsufficientFunds;
@@ -113,9 +113,10 @@ public class AuthUserController {
 	private final MessageSource messageSource;
 	private final MailService mailService;
 	private final ForexBitcoinService forexService;
+	private final VirtualLedgerService virtualLedgerService;
 
 	@Autowired
-	public AuthUserController(AppConfig appConfig, UserAccountService userAccountService, WalletService walletService, FeeService feeService, MicropaymentService microPaymentService, MessageSource messageSource, MailService mailService, ForexBitcoinService forexService) {
+	public AuthUserController(AppConfig appConfig, UserAccountService userAccountService, WalletService walletService, FeeService feeService, MicropaymentService microPaymentService, MessageSource messageSource, MailService mailService, ForexBitcoinService forexService, VirtualLedgerService virtualLedgerService) {
 		this.appConfig = appConfig;
 		this.userAccountService = userAccountService;
 		this.walletService = walletService;
@@ -124,6 +125,7 @@ public class AuthUserController {
 		this.messageSource = messageSource;
 		this.mailService = mailService;
 		this.forexService = forexService;
+		this.virtualLedgerService = virtualLedgerService;
 	}
 
 	@RequestMapping(value = "/transfer-p2sh", method = POST, produces = APPLICATION_JSON_UTF8_VALUE)
@@ -160,18 +162,12 @@ public class AuthUserController {
 		Map<String, Long> resultingTlas = new HashMap<>();
 		Long totalBalance = 0L;
 
-		List<TimeLockedAddressEntity> tlaList = account.getTimeLockedAddresses();
-		Map<String, TimeLockedAddressEntity> tlas = new HashMap<>();
-		for(TimeLockedAddressEntity tla : tlaList) {
-			tlas.put(tla.toAddress(params).toString(), tla);
-		}
-
-		Map<Address, Coin> balancesByAddresses = walletService.getBalanceByAddresses();
-		for(Map.Entry<Address, Coin> balance : balancesByAddresses.entrySet()) {
-			String addressString = balance.getKey().toString();
-			if(tlas.keySet().contains(addressString)) {
-				resultingTlas.put(addressString, balance.getValue().longValue());
-				totalBalance += balance.getValue().longValue();
+		for(TimeLockedAddressEntity tla : account.getTimeLockedAddresses()) {
+			Address address = tla.toAddress(params);
+			Coin balance = walletService.getBalanceByAddress(address);
+			if(balance != null && !resultingTlas.containsKey(address.toString())) {
+				resultingTlas.put(address.toString(), balance.longValue());
+				totalBalance += balance.longValue();
 			}
 		}
 
@@ -179,11 +175,12 @@ public class AuthUserController {
 		long channelTransactionFees = microPaymentService.getPendingChannelFees(account).longValue();
 		totalBalance -= channelTransactionAmount;
 		totalBalance -= channelTransactionFees;
-		totalBalance += account.virtualBalance();
+		long virtualBalance = virtualLedgerService.virtualBalanceOf(account);
+		totalBalance += virtualBalance;
 
 		AccountBalanceDTO dto = new AccountBalanceDTO();
 		dto.setTimeLockedAddresses(resultingTlas);
-		dto.setVirtualBalance(account.virtualBalance());
+		dto.setVirtualBalance(virtualBalance);
 		dto.setChannelTransactionAmount(channelTransactionAmount);
 		dto.setChannelTransactionFees(channelTransactionFees);
 		dto.setTotalBalance(totalBalance);
@@ -202,7 +199,6 @@ public class AuthUserController {
 		}
 
 		NetworkParameters params = appConfig.getNetworkParameters();
-		Map<Address, Coin> balances = walletService.getBalanceByAddresses();
 
 		List<TimeLockedAddressEntity> tlaEntities = account.getTimeLockedAddresses();
 		List<TimeLockedAddressDTO> timeLockedAddresses = new ArrayList<>();
@@ -217,15 +213,8 @@ public class AuthUserController {
 			boolean locked = lockedUntilInstant.isAfter(Instant.now());
 			String redeemScript = SerializeUtils.bytesToHex(tlaEntity.getRedeemScript());
 
-			Long balance = null;
-			for(Map.Entry<Address, Coin> mapSet : balances.entrySet()) {
-				Address address = mapSet.getKey();
-				Coin coin = mapSet.getValue();
-				if(address.toString().equals(bitcoinAddress)) {
-					balance = coin.longValue();
-					break;
-				}
-			}
+			Coin coin = walletService.getBalanceByAddress(tlaEntity.toAddress(params));
+			Long balance = coin == null ? null : coin.longValue();
 			if (balance != null) {
 				satoshiBalance += balance;
 			}
@@ -241,7 +230,7 @@ public class AuthUserController {
 		long channelTransactionFees = microPaymentService.getPendingChannelFees(account).longValue();
 		long totalChannelTransaction = channelTransactionAmount + channelTransactionFees;
 
-		long virtualBalance = account.virtualBalance();
+		long virtualBalance = virtualLedgerService.virtualBalanceOf(account);
 		long totalBalance = satoshiBalance + virtualBalance - totalChannelTransaction;
 
 		return new FundsDTO(clientPublicKey, serverPublicKey, virtualBalance, totalBalance, totalChannelTransaction, locked, timeLockedAddresses);
@@ -360,11 +349,7 @@ public class AuthUserController {
 		getAuthenticatedUser();
 
 		Map<String, Integer> map = new HashMap<>();
-		try {
-			map.put("fee", feeService.fee());
-		} catch (IOException e) {
-			map.put("fee", null);
-		}
+		map.put("fee", feeService.fee());
 		return map;
 	}
 
@@ -430,7 +415,7 @@ public class AuthUserController {
 	}
 
 	@RequestMapping(value = "/payment/virtual-payment-email", method = POST, produces = APPLICATION_JSON_UTF8_VALUE)
-	@Transactional(isolation = Isolation.SERIALIZABLE)
+	@Transactional(isolation = Isolation.READ_COMMITTED)
 	public void virtualPaymentViaEmail(Locale locale, @RequestBody @Valid VirtualPaymentViaEmailDTO dto) throws BusinessException {
 		final String receiverEmail = dto.getReceiverEmail();
 		final Long amount = dto.getAmount();
@@ -461,7 +446,11 @@ public class AuthUserController {
 		long requestNonce = Instant.now().toEpochMilli();
 
 		try {
-			microPaymentService.virtualPayment(keySender, keyReceiver, amount, requestNonce);
+			if (virtualLedgerService.isEnabled()) {
+				virtualLedgerService.transfer(keySender, keyReceiver, amount, requestNonce);
+			} else {
+				microPaymentService.virtualPayment(keySender, keyReceiver, amount, requestNonce);
+			}
 		} catch (InvalidNonceException | InvalidAmountException | InsufficientFunds | UserNotFoundException | InvalidRequestException e) {
 			throw new PaymentFailedException();
 		} catch (Throwable e) {
@@ -494,7 +483,7 @@ public class AuthUserController {
 		microPaymentViaEmailHelper(locale, dto);
 	}
 	// @Transactional cannot be on @RequestMethod function, rollback exception is thrown instead
-	@Transactional(isolation = Isolation.SERIALIZABLE)
+	@Transactional(isolation = Isolation.READ_COMMITTED)
 	public void microPaymentViaEmailHelper(Locale locale, MicroPaymentViaEmailDTO dto) throws BusinessException {
 		final String receiverEmail = dto.getReceiverEmail();
 		final Long amount = dto.getAmount();
@@ -547,7 +536,7 @@ public class AuthUserController {
 		externalPaymentHelper(transaction);
 	}
 	// @Transactional cannot be on @RequestMethod function, rollback exception is thrown instead
-	@Transactional(isolation = Isolation.SERIALIZABLE)
+	@Transactional(isolation = Isolation.READ_COMMITTED)
 	public void externalPaymentHelper(String transaction) throws BusinessException {
 		UserAccount sender = getAuthenticatedUser();
 
@@ -19,14 +19,18 @@ import static com.coinblesk.enumerator.ForexBitcoinVendor.BITSTAMP;
 import static com.coinblesk.enumerator.ForexBitcoinVendor.COINDESK;
 import static com.coinblesk.enumerator.ForexCurrency.BTC;
 import static com.coinblesk.enumerator.ForexCurrency.USD;
+import static org.springframework.format.annotation.DateTimeFormat.ISO.DATE;
 import static org.springframework.http.MediaType.APPLICATION_JSON_UTF8_VALUE;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 
+import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
@@ -38,8 +42,10 @@ import com.coinblesk.enumerator.ForexCurrency;
 import com.coinblesk.server.exceptions.BusinessException;
 import com.coinblesk.server.exceptions.InvalidForexCurrencyException;
 import com.coinblesk.server.exceptions.InvalidForexVendorException;
+import com.coinblesk.server.service.BitcoinRateHistoryService;
 import com.coinblesk.server.service.ForexBitcoinService;
 import com.coinblesk.server.service.ForexFiatService;
+import com.coinblesk.server.service.ForexRateMatrixService;
 
 /**
  * Controller for client http requests regarding Transactions between two
@@ -53,11 +59,16 @@ public class ForexController {
 
 	private final ForexFiatService forexFiatService;
 	private final ForexBitcoinService forexBitcoinService;
+	private final ForexRateMatrixService forexRateMatrixService;
+	private final BitcoinRateHistoryService bitcoinRateHistoryService;
 
 	@Autowired
-	public ForexController(ForexFiatService forexExchangeRateService, ForexBitcoinService forexBitcoinService) {
+	public ForexController(ForexFiatService forexExchangeRateService, ForexBitcoinService forexBitcoinService,
+			ForexRateMatrixService forexRateMatrixService, BitcoinRateHistoryService bitcoinRateHistoryService) {
 		this.forexFiatService = forexExchangeRateService;
 		this.forexBitcoinService = forexBitcoinService;
+		this.forexRateMatrixService = forexRateMatrixService;
+		this.bitcoinRateHistoryService = bitcoinRateHistoryService;
 	}
 
 	@RequestMapping(value = "/exchange-rate/fiat", method = GET, produces = APPLICATION_JSON_UTF8_VALUE)
@@ -76,7 +87,11 @@ public class ForexController {
 		}
 
 		LOG.debug("{exchange-rate} - Received exchange rate request for currency {}/{}", fromCurrency, toCurrency);
-		ForexDTO result = forexFiatService.getExchangeRateDTO(fromCurrency, toCurrency);
+		// The precomputed matrix if it is recent enough, the requested pair otherwise
+		ForexDTO result = forexRateMatrixService.getRate(fromCurrency, toCurrency);
+		if(result == null) {
+			result = forexFiatService.getExchangeRateDTO(fromCurrency, toCurrency);
+		}
 		LOG.debug("{exchange-rate} - {}, {}, rate: {}", result.getCurrencyFrom(), result.getCurrencyTo(), result.getRate());
 
 		return result;
@@ -88,6 +103,7 @@ public class ForexController {
 			@RequestParam(value = "currency", required = true) ForexCurrency currency) throws BusinessException {
 
 		if(BITSTAMP.equals(vendor)) {
+			// Bitstamp's own rate, not the aggregated price of the matrix
 			return forexBitcoinService.getBitstampCurrentRate(currency);
 
 		} else if(COINDESK.equals(vendor)) {
@@ -101,10 +117,24 @@ public class ForexController {
 	@RequestMapping(value = "/exchange-rate/bitcoin/history", method = GET, produces = APPLICATION_JSON_UTF8_VALUE)
 	@ResponseBody
 	public List<ForexDTO> getHistoricBitcoinExchangeRate(@RequestParam(value = "vendor", required = true) ForexBitcoinVendor vendor,
-			@RequestParam(value = "currency", required = true) ForexCurrency currency) throws BusinessException {
+			@RequestParam(value = "currency", required = true) ForexCurrency currency,
+			@RequestParam(value = "from", required = false) @DateTimeFormat(iso = DATE) LocalDate from,
+			@RequestParam(value = "to", required = false) @DateTimeFormat(iso = DATE) LocalDate to)
+			throws BusinessException {
 
 		if(COINDESK.equals(vendor)) {
-			return forexBitcoinService.getCoindeskHistoricRates(currency);
+			// Served from the local history, Coindesk is only asked until the first update has stored rates
+			if(BTC.equals(currency) || !bitcoinRateHistoryService.hasHistory(currency)) {
+				return forexBitcoinService.getCoindeskHistoricRates(currency);
+			}
+			// Defaults to the last 31 days like the Coindesk API, both ends are inclusive
+			if(to == null) {
+				to = LocalDate.now(ZoneOffset.UTC);
+			}
+			if(from == null) {
+				from = to.minusDays(30);
+			}
+			return bitcoinRateHistoryService.getRates(currency, from, to);
 
 		} else {
 			throw new InvalidForexVendorException();
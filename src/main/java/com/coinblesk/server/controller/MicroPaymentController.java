@@ -3,6 +3,8 @@ package com.coinblesk.server.controller;
 import com.coinblesk.dto.*;
 import com.coinblesk.server.exceptions.*;
 import com.coinblesk.server.service.MicropaymentService;
+import com.coinblesk.server.service.VirtualLedgerService;
+import com.coinblesk.server.service.VirtualPaymentBatchService;
 import com.coinblesk.util.DTOUtils;
 import com.coinblesk.util.InsufficientFunds;
 import com.coinblesk.util.InvalidSignatureException;
@@ -36,10 +38,15 @@ public class MicroPaymentController {
 	private final Logger LOG = LoggerFactory.getLogger(MicroPaymentController.class);
 
 	private final MicropaymentService micropaymentService;
+	private final VirtualLedgerService virtualLedgerService;
+	private final VirtualPaymentBatchService virtualPaymentBatchService;
 
 	@Autowired
-	public MicroPaymentController(MicropaymentService micropaymentService) {
+	public MicroPaymentController(MicropaymentService micropaymentService, VirtualLedgerService virtualLedgerService,
+		VirtualPaymentBatchService virtualPaymentBatchService) {
 		this.micropaymentService = micropaymentService;
+		this.virtualLedgerService = virtualLedgerService;
+		this.virtualPaymentBatchService = virtualPaymentBatchService;
 	}
 
 	@RequestMapping(value = "/micropayment", method = POST)
@@ -101,8 +108,16 @@ public class MicroPaymentController {
 		// Do payment in service
 		MicropaymentService.VirtualPaymentResult result;
 		try {
-			result = micropaymentService.virtualPayment(keySender, keyReceiver, requestDTO.getAmount(), requestDTO
-				.getNonce());
+			if (virtualLedgerService.isEnabled()) {
+				result = virtualLedgerService.transfer(keySender, keyReceiver, requestDTO.getAmount(), requestDTO
+					.getNonce());
+			} else if (virtualPaymentBatchService.isEnabled()) {
+				result = virtualPaymentBatchService.virtualPayment(keySender, keyReceiver, requestDTO.getAmount(),
+					requestDTO.getNonce());
+			} else {
+				result = micropaymentService.virtualPayment(keySender, keyReceiver, requestDTO.getAmount(), requestDTO
+					.getNonce());
+			}
 		} catch (InvalidNonceException | InvalidAmountException | InsufficientFunds | UserNotFoundException |
 			InvalidRequestException e) {
 			return new ResponseEntity<>(new ErrorDTO(e.getMessage()), BAD_REQUEST);
@@ -1,18 +1,51 @@
 package com.coinblesk.server.dao;
 
+import java.util.Collection;
 import java.util.List;
 
+import javax.persistence.LockModeType;
+
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 
 import com.coinblesk.server.entity.Account;
 
 public interface AccountRepository extends CrudRepository<Account, Long> {
 	Account findByClientPublicKey(final byte[] clientPublicKey);
+
+	// SELECT ... FOR UPDATE for the payment batches, which run at READ COMMITTED. Transactions that lock more than
+	// one account must lock them in ascending id order to avoid deadlocks.
+	@Lock(LockModeType.PESSIMISTIC_WRITE)
+	List<Account> findByClientPublicKeyInOrderByIdAsc(final Collection<byte[]> clientPublicKeys);
+
+	@Query("SELECT a.id FROM ACCOUNT a WHERE a.clientPublicKey = (:clientPublicKey)")
+	Long findIdByClientPublicKey(@Param("clientPublicKey") final byte[] clientPublicKey);
+
+	// Credits an account without reading it first. Bypasses the persistence context, loaded entities must be
+	// refreshed afterwards.
+	@Modifying
+	@Query("UPDATE ACCOUNT a SET a.virtualBalance = a.virtualBalance + (:delta) WHERE a.id = (:id)")
+	int addToVirtualBalance(@Param("id") final long id, @Param("delta") final long delta);
+
 	List<Account> findByBroadcastBeforeLessThanAndChannelTransactionNotNull(long timestamp);
 	List<Account> findByLockedIsTrue();
 
 	@Query("SELECT SUM(a.virtualBalance) FROM ACCOUNT a")
 	public Long getSumOfAllVirtualBalances();
 
+	// Used by the virtual ledger checkpoint. Adds the changes of a journal segment unless the segment was already
+	// added. The nonce is never decreased, since micro payments update it as well.
+	@Modifying
+	@Query("UPDATE ACCOUNT a SET a.virtualBalance = a.virtualBalance + (:delta), a.nonce = CASE WHEN a.nonce > "
+		+ "(:nonce) THEN a.nonce ELSE (:nonce) END, a.ledgerSegment = (:segment) WHERE a.clientPublicKey = "
+		+ "(:clientPublicKey) AND a.ledgerSegment < (:segment)")
+	public int addVirtualBalanceAndNonce(@Param("clientPublicKey") byte[] clientPublicKey, @Param("delta") long delta,
+		@Param("nonce") long nonce, @Param("segment") long segment);
+
+	@Query("SELECT MAX(a.ledgerSegment) FROM ACCOUNT a")
+	public Long getMaxLedgerSegment();
+
 }
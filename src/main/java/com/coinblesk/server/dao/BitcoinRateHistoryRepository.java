@@ -0,0 +1,20 @@
+package com.coinblesk.server.dao;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import com.coinblesk.enumerator.ForexCurrency;
+import com.coinblesk.server.entity.BitcoinRateHistory;
+
+public interface BitcoinRateHistoryRepository extends CrudRepository<BitcoinRateHistory, Long> {
+
+	// Both days inclusive
+	List<BitcoinRateHistory> findByCurrencyAndDayBetweenOrderByDayAsc(ForexCurrency currency, long fromDay, long toDay);
+
+	@Query("SELECT MAX(h.day) FROM BITCOIN_RATE_HISTORY h WHERE h.currency = (:currency)")
+	Long findLatestDay(@Param("currency") ForexCurrency currency);
+
+}
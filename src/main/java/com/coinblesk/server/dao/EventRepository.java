@@ -1,9 +1,10 @@
 package com.coinblesk.server.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
-import java.util.Set;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
@@ -14,17 +15,14 @@ import com.coinblesk.server.enumerator.EventUrgence;
 
 public interface EventRepository extends CrudRepository<Event, Long> {
 
-	@Query("SELECT COUNT(*) FROM EVENT e WHERE e.date < (:olderThanDate)")
-	public long countOldEntries(@Param("olderThanDate") Date olderThanDate);
+	@Query("SELECT e.id FROM EVENT e WHERE e.date < (:olderThanDate) ORDER BY e.date, e.id")
+	public List<Long> findOldEntryIds(@Param("olderThanDate") Date olderThanDate, Pageable pageable);
 
 	@Modifying
-	@Query("DELETE FROM EVENT e WHERE e.date < (:olderThanDate)")
-	public void deleteOldEntries(@Param("olderThanDate") Date olderThanDate);
+	@Query("DELETE FROM EVENT e WHERE e.id IN (:ids)")
+	public int deleteByIds(@Param("ids") Collection<Long> ids);
 
-	@Query("SELECT e FROM EVENT e WHERE e.date BETWEEN (:start) AND (:end)")
-	public Set<Event> getEventsBetween(@Param("start") Date beginningDate, @Param("end") Date endDate);
-
-	@Query("SELECT e FROM EVENT e WHERE e.urgence = (:urgence) ORDER BY e.date DESC")
-	public List<Event> getEventsWithUrgence(@Param("urgence") EventUrgence urgence);
+	@Query("SELECT e FROM EVENT e WHERE e.urgence IN (:urgences) ORDER BY e.date DESC, e.id DESC")
+	public List<Event> getEventsWithUrgenceIn(@Param("urgences") Collection<EventUrgence> urgences);
 
 }
@@ -0,0 +1,27 @@
+package com.coinblesk.server.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import com.coinblesk.server.entity.MailOutbox;
+
+public interface MailOutboxRepository extends CrudRepository<MailOutbox, Long> {
+
+	@Query("SELECT m FROM MAIL_OUTBOX m WHERE m.failed = false AND m.nextAttemptAt <= (:now) ORDER BY m.nextAttemptAt, m.id")
+	List<MailOutbox> findDue(@Param("now") Date now, Pageable pageable);
+
+	// Only succeeds for one sender, the attempts of the mail act as version
+	@Modifying
+	@Query("UPDATE MAIL_OUTBOX m SET m.attempts = m.attempts + 1, m.nextAttemptAt = (:leaseUntil) WHERE m.id = (:id) "
+		+ "AND m.attempts = (:attempts)")
+	int claim(@Param("id") long id, @Param("attempts") int attempts, @Param("leaseUntil") Date leaseUntil);
+
+	long countByFailed(boolean failed);
+
+}
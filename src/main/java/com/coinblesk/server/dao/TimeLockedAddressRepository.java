@@ -1,7 +1,10 @@
 package com.coinblesk.server.dao;
 
 import com.coinblesk.server.entity.TimeLockedAddressEntity;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 
 import java.util.Collection;
 import java.util.List;
@@ -14,4 +17,8 @@ public interface TimeLockedAddressRepository extends CrudRepository<TimeLockedAd
 
 	// Get oldest time locked address for given public key
 	TimeLockedAddressEntity findTopByAccount_clientPublicKeyOrderByLockTimeDesc(byte[] clientPublicKey);
+
+	// Rows of [id, addressHash, timeCreated] in id order, without loading the entities and their accounts
+	@Query("SELECT t.id, t.addressHash, t.timeCreated FROM TIME_LOCKED_ADDRESS t WHERE t.id > (:afterId) ORDER BY t.id")
+	List<Object[]> findAddressHashesAfter(@Param("afterId") long afterId, Pageable pageable);
 }
@@ -31,12 +31,16 @@ import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
 import javax.persistence.Table;
 
+import org.hibernate.annotations.DynamicUpdate;
+
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
 /**
  * @author Thomas Bocek
  */
 @Entity(name = "ACCOUNT")
+// Only changed columns are written, so saving an account does not overwrite a concurrent ledger checkpoint
+@DynamicUpdate
 @Table(indexes = {@Index(name = "ACCOUNT_CLIENT_PUBLIC_KEY", columnList = "CLIENT_PUBLIC_KEY")})
 public class Account implements Serializable {
 
@@ -64,9 +68,17 @@ public class Account implements Serializable {
 	@Column(name = "NONCE", nullable = false)
 	private long nonce = 0L;
 
+	// Last journal segment of the virtual ledger that was added to the balance, see VirtualLedgerService
+	@Column(name = "LEDGER_SEGMENT", nullable = false, updatable = false)
+	private long ledgerSegment = 0L;
+
 	@Column(name = "CHANNEL_TRANSACTION", length = 65536)
 	private byte[] channelTransaction;
 
+	// CoinUtils.trackingHash of the channel transaction
+	@Column(name = "CHANNEL_TRACKING_HASH", length = 32)
+	private byte[] channelTrackingHash;
+
 	@Column(name = "BROADCAST_BEFORE", nullable = false)
 	private long broadcastBefore = 0L;
 
@@ -81,6 +93,10 @@ public class Account implements Serializable {
 	@OneToMany(mappedBy = "account")
 	private List<TimeLockedAddressEntity> timeLockedAddresses = new ArrayList<>();
 
+	public long getId() {
+		return id;
+	}
+
 	public byte[] clientPublicKey() {
 		return clientPublicKey;
 	}
@@ -144,6 +160,15 @@ public class Account implements Serializable {
 		return this;
 	}
 
+	public byte[] getChannelTrackingHash() {
+		return channelTrackingHash;
+	}
+
+	public Account channelTrackingHash(byte[] channelTrackingHash) {
+		this.channelTrackingHash = channelTrackingHash;
+		return this;
+	}
+
 	public long getBroadcastBefore() {
 		return broadcastBefore;
 	}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.entity;
+
+import static javax.persistence.EnumType.STRING;
+import static javax.persistence.GenerationType.AUTO;
+import static lombok.AccessLevel.NONE;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import com.coinblesk.enumerator.ForexCurrency;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Closing price of one bitcoin in a currency on one day (UTC). Rows are only appended.
+ */
+@Getter
+@Setter
+@ToString
+@EqualsAndHashCode
+@Entity(name = "BITCOIN_RATE_HISTORY")
+@Table(uniqueConstraints = @UniqueConstraint(name = "BITCOIN_RATE_HISTORY_CURRENCY_DAY", columnNames = {
+	"CURRENCY", "RATE_DAY" }))
+public class BitcoinRateHistory implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@GeneratedValue(strategy = AUTO)
+	@Setter(NONE)
+	@Column(name = "ID", nullable = false)
+	private long id;
+
+	@Enumerated(STRING)
+	@Column(name = "CURRENCY", nullable = false, length = 8)
+	private ForexCurrency currency;
+
+	// Days since 1970-01-01, see LocalDate.toEpochDay()
+	@Column(name = "RATE_DAY", nullable = false)
+	private long day;
+
+	@Column(name = "RATE", nullable = false, precision = 20, scale = 8)
+	private BigDecimal rate;
+
+}
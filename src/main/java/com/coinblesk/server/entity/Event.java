@@ -29,6 +29,8 @@ import javax.persistence.Entity;
 import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
 import javax.persistence.Temporal;
 
 import com.coinblesk.server.enumerator.EventType;
@@ -44,6 +46,8 @@ import lombok.ToString;
 @ToString
 @EqualsAndHashCode
 @Entity(name = "EVENT")
+@Table(indexes = {@Index(name = "EVENT_URGENCE_DATE", columnList = "EVENT_URGENCE,EVENT_DATE,ID"), @Index(name =
+	"EVENT_DATE", columnList = "EVENT_DATE")})
 public class Event implements Serializable {
 
 	private static final long serialVersionUID = 1L;
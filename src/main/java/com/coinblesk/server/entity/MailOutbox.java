@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.entity;
+
+import static javax.persistence.GenerationType.AUTO;
+import static javax.persistence.TemporalType.TIMESTAMP;
+import static lombok.AccessLevel.NONE;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * An email waiting to be sent. The row is deleted once the mail is sent, or marked as failed after the last attempt.
+ */
+@Getter
+@Setter
+@ToString(exclude = "text")
+@EqualsAndHashCode
+@Entity(name = "MAIL_OUTBOX")
+@Table(indexes = {@Index(name = "MAIL_OUTBOX_DUE", columnList = "FAILED,NEXT_ATTEMPT_AT")})
+public class MailOutbox implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@GeneratedValue(strategy = AUTO)
+	@Setter(NONE)
+	@Column(name = "ID", nullable = false)
+	private long id;
+
+	@Column(name = "MAIL_FROM", nullable = false)
+	private String sender;
+
+	@Column(name = "MAIL_TO", nullable = false)
+	private String recipient;
+
+	@Column(name = "SUBJECT", nullable = false)
+	private String subject;
+
+	@Column(name = "TEXT", nullable = false, columnDefinition = "TEXT")
+	private String text;
+
+	@Temporal(TIMESTAMP)
+	@Column(name = "CREATED_AT", nullable = false)
+	private Date createdAt;
+
+	@Temporal(TIMESTAMP)
+	@Column(name = "NEXT_ATTEMPT_AT", nullable = false)
+	private Date nextAttemptAt;
+
+	@Column(name = "ATTEMPTS", nullable = false)
+	private int attempts;
+
+	@Column(name = "LAST_ERROR", length = 1000)
+	private String lastError;
+
+	@Column(name = "FAILED", nullable = false)
+	private boolean failed;
+
+}
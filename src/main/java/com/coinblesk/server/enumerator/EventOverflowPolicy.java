@@ -0,0 +1,13 @@
+package com.coinblesk.server.enumerator;
+
+/**
+ * What happens to a new event if the queue of the asynchronous event writer is full.
+ */
+public enum EventOverflowPolicy {
+	// The new event is discarded
+	DROP_NEWEST,
+	// The oldest waiting event is discarded to make room for the new event
+	DROP_OLDEST,
+	// The caller writes the new event synchronously
+	CALLER_WRITES
+}
@@ -0,0 +1,10 @@
+package com.coinblesk.server.exceptions;
+
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code = BAD_REQUEST, reason = "An invalid cursor was provided.")
+public class InvalidCursorException extends BusinessException {
+
+}
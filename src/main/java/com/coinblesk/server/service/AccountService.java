@@ -18,13 +18,22 @@ package com.coinblesk.server.service;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.Utils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -57,12 +66,22 @@ public class AccountService {
 
 	private final AppConfig appConfig;
 
+	private final VirtualLedgerService virtualLedgerService;
+
+	private final EntityManager entityManager;
+
+	// Accounts loaded per query by forEachAccount, the persistence context is cleared after each chunk
+	private final static int ACCOUNT_CHUNK_SIZE = 100;
+
 	@Autowired
 	public AccountService(@NonNull AccountRepository accountRepository, @NonNull TimeLockedAddressRepository
-		timeLockedAddressRepository, AppConfig appConfig) {
+		timeLockedAddressRepository, AppConfig appConfig, VirtualLedgerService virtualLedgerService,
+		EntityManager entityManager) {
 		this.accountRepository = accountRepository;
 		this.timeLockedAddressRepository = timeLockedAddressRepository;
 		this.appConfig = appConfig;
+		this.virtualLedgerService = virtualLedgerService;
+		this.entityManager = entityManager;
 	}
 
 	@Transactional(readOnly = true)
@@ -126,6 +145,117 @@ public class AccountService {
 			.toList());
 	}
 
+	/**
+	 * Hands the accounts matching the query to the consumer, in the order of the query, together with their time
+	 * locked addresses. The accounts are read in chunks with keyset pagination, so only one chunk is held in memory.
+	 * The entities are detached once the consumer returned.
+	 *
+	 * @return the number of accounts passed to the consumer, at most {@link AccountQuery#getLimit()}
+	 */
+	@Transactional(readOnly = true)
+	public int forEachAccount(@NonNull AccountQuery query, @NonNull BiConsumer<Account, List<TimeLockedAddressEntity>>
+		consumer) {
+		// The stored balances lag behind the virtual ledger
+		if (query.getMinVirtualBalance() != null || query.getSort() == AccountQuery.Sort.VIRTUAL_BALANCE) {
+			virtualLedgerService.checkpoint();
+		}
+		Long afterValue = query.getAfterValue();
+		Long afterId = query.getAfterId();
+		int count = 0;
+
+		while (count < query.getLimit()) {
+			final int chunkSize = Math.min(ACCOUNT_CHUNK_SIZE, query.getLimit() - count);
+			final List<Account> accounts = findAccounts(query, afterValue, afterId, chunkSize);
+			if (accounts.isEmpty()) {
+				break;
+			}
+
+			// One query for the addresses of the whole chunk
+			final Map<Long, List<TimeLockedAddressEntity>> addresses = entityManager.createQuery(
+				"SELECT t FROM TIME_LOCKED_ADDRESS t WHERE t.account IN (:accounts)", TimeLockedAddressEntity.class)
+				.setParameter("accounts", accounts).getResultList().stream().collect(Collectors.groupingBy(tla -> tla
+					.getAccount().getId()));
+
+			for (Account account : accounts) {
+				consumer.accept(account, addresses.getOrDefault(account.getId(), Collections.emptyList()));
+			}
+
+			final Account last = accounts.get(accounts.size() - 1);
+			afterValue = query.getSort().sortValue(last);
+			afterId = last.getId();
+			count += accounts.size();
+			entityManager.clear();
+
+			if (accounts.size() < chunkSize) {
+				break;
+			}
+		}
+		return count;
+	}
+
+	private List<Account> findAccounts(AccountQuery query, Long afterValue, Long afterId, int maxResults) {
+		// Only whitelisted column names end up in the query, all values are bound as parameters
+		final String column = "a." + query.getSort().getColumn();
+		final String direction = query.isDescending() ? "DESC" : "ASC";
+		final String comparison = query.isDescending() ? "<" : ">";
+
+		// The user account is needed for every row, fetch it with the account instead of one query per row
+		final StringBuilder jpql = new StringBuilder("SELECT a FROM ACCOUNT a LEFT JOIN FETCH a.userAccount");
+		jpql.append(" WHERE 1 = 1");
+		if (query.getLocked() != null) {
+			jpql.append(" AND a.locked = (:locked)");
+		}
+		if (query.getHasChannel() != null) {
+			jpql.append(query.getHasChannel() ? " AND a.channelTransaction IS NOT NULL" : " AND a.channelTransaction "
+				+ "IS NULL");
+		}
+		if (query.getMinVirtualBalance() != null) {
+			jpql.append(" AND a.virtualBalance >= (:minVirtualBalance)");
+		}
+		if (afterValue != null && afterId != null) {
+			jpql.append(" AND (").append(column).append(" ").append(comparison).append(" (:afterValue) OR (")
+				.append(column).append(" = (:afterValue) AND a.id ").append(comparison).append(" (:afterId)))");
+		}
+		jpql.append(" ORDER BY ").append(column).append(" ").append(direction).append(", a.id ").append(direction);
+
+		final TypedQuery<Account> typedQuery = entityManager.createQuery(jpql.toString(), Account.class);
+		if (query.getLocked() != null) {
+			typedQuery.setParameter("locked", query.getLocked());
+		}
+		if (query.getMinVirtualBalance() != null) {
+			typedQuery.setParameter("minVirtualBalance", query.getMinVirtualBalance());
+		}
+		if (afterValue != null && afterId != null) {
+			typedQuery.setParameter("afterValue", afterValue);
+			typedQuery.setParameter("afterId", afterId);
+		}
+		return typedQuery.setMaxResults(maxResults).getResultList();
+	}
+
+	/**
+	 * Hands the address hash and creation time of all time locked addresses to the consumer, one page of
+	 * [id, addressHash, timeCreated] rows at a time, in id order.
+	 *
+	 * @return the number of addresses
+	 */
+	public int forEachAddressHashPage(int pageSize, @NonNull Consumer<List<Object[]>> consumer) {
+		long afterId = 0;
+		int count = 0;
+		while (true) {
+			final List<Object[]> rows = timeLockedAddressRepository.findAddressHashesAfter(afterId, new PageRequest(0,
+				pageSize));
+			if (rows.isEmpty()) {
+				return count;
+			}
+			consumer.accept(rows);
+			afterId = (Long) rows.get(rows.size() - 1)[0];
+			count += rows.size();
+			if (rows.size() < pageSize) {
+				return count;
+			}
+		}
+	}
+
 	@Transactional(readOnly = true)
 	public List<Account> getPendingAccounts() {
 		return accountRepository.findByLockedIsTrue();
@@ -183,7 +313,9 @@ public class AccountService {
 		if (account == null)
 			throw new UserNotFoundException(DTOUtils.toHex(publicKey));
 
-		return new GetVirtualBalanceResponse(account.virtualBalance(), ECKey.fromPrivateAndPrecalculatedPublic(account
+		final long balance = virtualLedgerService.isEnabled() ? virtualLedgerService.getVirtualBalance(publicKey) :
+			account.virtualBalance();
+		return new GetVirtualBalanceResponse(balance, ECKey.fromPrivateAndPrecalculatedPublic(account
 			.serverPrivateKey(), account.serverPublicKey()));
 	}
 
@@ -198,8 +330,17 @@ public class AccountService {
 			throw new CoinbleskInternalError("The account has time locked addresses.");
 		}
 
-		accountB.virtualBalance(accountA.virtualBalance());
-		accountA.virtualBalance(0L);
+		if (virtualLedgerService.isEnabled()) {
+			try {
+				final long balance = virtualLedgerService.withdrawAll(accountA.clientPublicKey());
+				virtualLedgerService.credit(accountB.clientPublicKey(), balance);
+			} catch (UserNotFoundException e) {
+				throw new CoinbleskInternalError("The account is not known to the virtual ledger.");
+			}
+		} else {
+			accountB.virtualBalance(accountA.virtualBalance());
+			accountA.virtualBalance(0L);
+		}
 		deleteAccount(accountA);
 	}
 
@@ -219,6 +360,45 @@ public class AccountService {
 		return result;
 	}
 
+	/**
+	 * Filter, order and position for {@link #forEachAccount(AccountQuery, BiConsumer)}. Unset filters match all
+	 * accounts.
+	 */
+	@Data
+	public static class AccountQuery {
+		private Sort sort = Sort.ID;
+		private boolean descending;
+		private Boolean locked;
+		private Boolean hasChannel;
+		private Long minVirtualBalance;
+		// Sort value and id of the last account of the previous page, both null for the first page
+		private Long afterValue;
+		private Long afterId;
+		private int limit = ACCOUNT_CHUNK_SIZE;
+
+		public enum Sort {
+			ID("id", Account::getId),
+			TIME_CREATED("timeCreated", Account::timeCreated),
+			VIRTUAL_BALANCE("virtualBalance", Account::virtualBalance);
+
+			private final String column;
+			private final ToLongFunction<Account> value;
+
+			Sort(String column, ToLongFunction<Account> value) {
+				this.column = column;
+				this.value = value;
+			}
+
+			public String getColumn() {
+				return column;
+			}
+
+			public long sortValue(Account account) {
+				return value.applyAsLong(account);
+			}
+		}
+	}
+
 	@Data
 	public static class CreateTimeLockedAddressResponse {
 		@NonNull
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.dao.EventRepository;
+import com.coinblesk.server.entity.Event;
+
+/**
+ * Writes events in the background (coinblesk.events.async.enabled), so logging an event does not add a database
+ * round trip to the transaction of the caller.
+ *
+ * Events wait in a bounded queue for a single writer thread, which inserts up to coinblesk.events.async.batchSize
+ * events in one transaction. With hibernate.jdbc.batch_size set, the inserts of a batch are sent as JDBC batches.
+ * If the queue is full, coinblesk.events.async.overflowPolicy decides what happens to a new event. Events still
+ * waiting on shutdown are written before the repository goes away.
+ */
+@Service
+public class AsyncEventWriter {
+
+	private final static Logger LOG = LoggerFactory.getLogger(AsyncEventWriter.class);
+
+	private final EventRepository eventRepository;
+	private final AppConfig appConfig;
+	private final TransactionTemplate transactionTemplate;
+
+	private final BlockingQueue<Event> queue;
+	private final AtomicLong dropped = new AtomicLong();
+	private Thread writer;
+	private volatile boolean running;
+
+	@Autowired
+	public AsyncEventWriter(EventRepository eventRepository, AppConfig appConfig, PlatformTransactionManager
+		transactionManager) {
+		this.eventRepository = eventRepository;
+		this.appConfig = appConfig;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		// Independent of the transaction of whoever happens to flush
+		this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		this.queue = new ArrayBlockingQueue<>(appConfig.getEventsAsyncCapacity());
+	}
+
+	@PostConstruct
+	public void init() {
+		if (!appConfig.isEventsAsyncEnabled()) {
+			return;
+		}
+		running = true;
+		writer = new Thread(this::run, "event-writer");
+		writer.setDaemon(true);
+		writer.start();
+		LOG.info("Asynchronous event writer enabled, queue capacity {}, overflow policy {}", appConfig
+			.getEventsAsyncCapacity(), appConfig.getEventsAsyncOverflowPolicy());
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Queues the event for the writer thread. Never blocks.
+	 *
+	 * @return false if the caller has to write the event itself
+	 */
+	public boolean add(Event event) {
+		if (!running) {
+			return false;
+		}
+		if (queue.offer(event)) {
+			return true;
+		}
+
+		switch (appConfig.getEventsAsyncOverflowPolicy()) {
+			case CALLER_WRITES:
+				return false;
+			case DROP_OLDEST:
+				// Another caller may take the free slot, then the event is dropped after all
+				final Event oldest = queue.poll();
+				if (oldest != null) {
+					onDropped(oldest);
+				}
+				if (queue.offer(event)) {
+					return true;
+				}
+				onDropped(event);
+				return true;
+			case DROP_NEWEST:
+			default:
+				onDropped(event);
+				return true;
+		}
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (writer == null) {
+			return;
+		}
+		running = false;
+		writer.interrupt();
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// The writer stops after its current batch, the rest is written here
+		final List<Event> remaining = new ArrayList<>(queue.size());
+		queue.drainTo(remaining);
+		final int batchSize = appConfig.getEventsAsyncBatchSize();
+		for (int i = 0; i < remaining.size(); i += batchSize) {
+			write(remaining.subList(i, Math.min(i + batchSize, remaining.size())));
+		}
+		LOG.info("Event writer stopped, {} events written on shutdown, {} dropped in total", remaining.size(),
+			dropped.get());
+	}
+
+	private void run() {
+		final int batchSize = appConfig.getEventsAsyncBatchSize();
+		final List<Event> batch = new ArrayList<>(batchSize);
+		while (running) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batch, batchSize - 1);
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	private void write(List<Event> batch) {
+		try {
+			transactionTemplate.execute(status -> eventRepository.save(batch));
+			LOG.debug("Wrote {} events", batch.size());
+		} catch (RuntimeException e) {
+			LOG.error("Could not write {} events, first: {}", batch.size(), batch.get(0), e);
+		}
+	}
+
+	private void onDropped(Event event) {
+		// Log the first drop and then every 1000th, a full queue usually means many more are coming
+		if (dropped.getAndIncrement() % 1000 == 0) {
+			LOG.warn("Event queue full, dropped {} events so far, e.g. {}", dropped.get(), event);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import java.math.BigDecimal;
+
+/**
+ * Source of the current price of bitcoin in USD, for {@link BitcoinPriceService}. Implementations are Spring beans
+ * and are used if their name is listed in coinblesk.price.providers.
+ */
+public interface BitcoinPriceProvider {
+
+	/**
+	 * @return the name of the provider in coinblesk.price.providers
+	 */
+	String getName();
+
+	/**
+	 * Fetches the current price of one bitcoin in USD. May block, the caller stops waiting after
+	 * coinblesk.price.timeoutMillis.
+	 */
+	BigDecimal getPriceUSD() throws Exception;
+}
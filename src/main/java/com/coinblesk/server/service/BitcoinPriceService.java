@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import static com.coinblesk.enumerator.ForexCurrency.BTC;
+import static com.coinblesk.enumerator.ForexCurrency.USD;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.coinblesk.dto.ForexDTO;
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.exceptions.CoinbleskInternalError;
+
+/**
+ * Aggregates the BTC/USD price of several {@link BitcoinPriceProvider}s.
+ *
+ * All providers are asked in parallel and the answers that arrive within the timeout are used, so a slow or failing
+ * provider neither blocks the refresh nor fails it. Prices that deviate too much from the median of all answers are
+ * rejected as outliers and the median of the remaining prices is used.
+ */
+@Service
+public class BitcoinPriceService {
+
+	private final static Logger LOG = LoggerFactory.getLogger(BitcoinPriceService.class);
+
+	private final List<BitcoinPriceProvider> providers;
+	private final long timeoutMillis;
+	private final BigDecimal maxDeviation;
+	private final int minProviders;
+
+	// A request that timed out keeps its thread until the provider gives up, the providers have their own timeouts
+	private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory());
+
+	@Autowired
+	public BitcoinPriceService(List<BitcoinPriceProvider> providers, AppConfig appConfig) {
+		this(enabled(providers, appConfig.getPriceProviders()), appConfig.getPriceTimeoutMillis(), appConfig
+			.getPriceMaxDeviation(), appConfig.getPriceMinProviders());
+	}
+
+	BitcoinPriceService(List<BitcoinPriceProvider> providers, long timeoutMillis, BigDecimal maxDeviation,
+		int minProviders) {
+		if (providers.isEmpty()) {
+			throw new IllegalArgumentException("No price provider enabled");
+		}
+		this.providers = providers;
+		this.timeoutMillis = timeoutMillis;
+		this.maxDeviation = maxDeviation;
+		this.minProviders = minProviders;
+		LOG.info("Price providers: {}", providers.stream().map(BitcoinPriceProvider::getName).collect(Collectors
+			.toList()));
+	}
+
+	private static List<BitcoinPriceProvider> enabled(List<BitcoinPriceProvider> providers, String[] names) {
+		final List<BitcoinPriceProvider> enabled = new ArrayList<>(names.length);
+		for (String name : names) {
+			final List<BitcoinPriceProvider> matching = providers.stream().filter(p -> p.getName().equals(name
+				.trim())).collect(Collectors.toList());
+			if (matching.isEmpty()) {
+				LOG.warn("Unknown price provider {}, available are {}", name, providers.stream().map(
+					BitcoinPriceProvider::getName).collect(Collectors.toList()));
+			}
+			enabled.addAll(matching);
+		}
+		return enabled;
+	}
+
+	/**
+	 * Asks all providers for the current price and aggregates their answers. Blocks at most
+	 * coinblesk.price.timeoutMillis.
+	 *
+	 * @return the BTC/USD rate
+	 * @throws CoinbleskInternalError if fewer than coinblesk.price.minProviders prices are left after outlier
+	 *                                rejection
+	 */
+	public ForexDTO fetchRateBTCUSD() {
+		final Map<BitcoinPriceProvider, CompletableFuture<BigDecimal>> requests = new LinkedHashMap<>();
+		for (BitcoinPriceProvider provider : providers) {
+			final CompletableFuture<BigDecimal> request = new CompletableFuture<>();
+			requests.put(provider, request);
+			executor.execute(() -> {
+				try {
+					request.complete(provider.getPriceUSD());
+				} catch (Throwable e) {
+					request.completeExceptionally(e);
+				}
+			});
+		}
+
+		// One deadline for all, the requests run in parallel
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		final List<BigDecimal> prices = new ArrayList<>(requests.size());
+		for (Map.Entry<BitcoinPriceProvider, CompletableFuture<BigDecimal>> entry : requests.entrySet()) {
+			final String name = entry.getKey().getName();
+			try {
+				final BigDecimal price = entry.getValue().get(Math.max(0, deadline - System.nanoTime()),
+					TimeUnit.NANOSECONDS);
+				if (price == null || price.signum() <= 0) {
+					LOG.warn("Price provider {} returned an invalid price: {}", name, price);
+				} else {
+					prices.add(price);
+				}
+			} catch (TimeoutException e) {
+				LOG.warn("Price provider {} did not answer within {}ms", name, timeoutMillis);
+			} catch (ExecutionException e) {
+				LOG.warn("Price provider {} failed: {}", name, e.getCause().getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CoinbleskInternalError("Interrupted while waiting for the price providers");
+			}
+		}
+
+		final BigDecimal price = aggregate(prices);
+		final ForexDTO forex = new ForexDTO();
+		forex.setCurrencyFrom(BTC);
+		forex.setCurrencyTo(USD);
+		forex.setRate(price);
+		forex.setUpdatedAt(new Date());
+		return forex;
+	}
+
+	/**
+	 * @return the median of the prices within maxDeviation of the median of all prices
+	 */
+	BigDecimal aggregate(List<BigDecimal> prices) {
+		if (prices.isEmpty()) {
+			throw new CoinbleskInternalError("No price provider answered");
+		}
+		final BigDecimal median = median(prices);
+		final List<BigDecimal> accepted = new ArrayList<>(prices.size());
+		for (BigDecimal price : prices) {
+			final BigDecimal deviation = price.subtract(median).abs().divide(median, MathContext.DECIMAL64);
+			if (deviation.compareTo(maxDeviation) <= 0) {
+				accepted.add(price);
+			} else {
+				LOG.warn("Rejected price {} that deviates {} from the median {}", price, deviation, median);
+			}
+		}
+		if (accepted.size() < minProviders) {
+			throw new CoinbleskInternalError("Only " + accepted.size() + " of " + prices.size() + " prices accepted, "
+				+ minProviders + " needed");
+		}
+		return median(accepted);
+	}
+
+	private static BigDecimal median(List<BigDecimal> prices) {
+		final BigDecimal[] sorted = prices.toArray(new BigDecimal[prices.size()]);
+		Arrays.sort(sorted);
+		final int middle = sorted.length / 2;
+		if (sorted.length % 2 == 1) {
+			return sorted[middle];
+		}
+		return sorted[middle - 1].add(sorted[middle]).divide(BigDecimal.valueOf(2), MathContext.DECIMAL64);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "price-provider-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
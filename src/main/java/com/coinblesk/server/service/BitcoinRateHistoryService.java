@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import static com.coinblesk.enumerator.ForexCurrency.BTC;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.coinblesk.dto.ForexDTO;
+import com.coinblesk.enumerator.ForexCurrency;
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.dao.BitcoinRateHistoryRepository;
+import com.coinblesk.server.entity.BitcoinRateHistory;
+
+/**
+ * Local history of the daily closing prices of bitcoin, per currency.
+ *
+ * The history is filled in the background with the days that are missing since the last update, at most
+ * coinblesk.forex.historyDays back. History requests are answered from the database.
+ */
+@Service
+public class BitcoinRateHistoryService {
+
+	private final static Logger LOG = LoggerFactory.getLogger(BitcoinRateHistoryService.class);
+
+	private final BitcoinRateHistoryRepository repository;
+	private final ForexBitcoinService forexBitcoinService;
+	private final AppConfig appConfig;
+
+	@Autowired
+	public BitcoinRateHistoryService(BitcoinRateHistoryRepository repository, ForexBitcoinService
+		forexBitcoinService, AppConfig appConfig) {
+		this.repository = repository;
+		this.forexBitcoinService = forexBitcoinService;
+		this.appConfig = appConfig;
+	}
+
+	@Scheduled(fixedDelayString = "${coinblesk.forex.historyUpdateInterval}000")
+	public void update() {
+		for (ForexCurrency currency : ForexCurrency.values()) {
+			if (!BTC.equals(currency)) {
+				try {
+					update(currency);
+				} catch (Exception e) {
+					LOG.warn("Could not update the rate history of {}: {}", currency, e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fetches the closing prices of the days after the last stored day, up to yesterday.
+	 */
+	private void update(ForexCurrency currency) throws Exception {
+		final LocalDate yesterday = LocalDate.now(ZoneOffset.UTC).minusDays(1);
+		final Long latestDay = repository.findLatestDay(currency);
+		final LocalDate oldest = yesterday.minusDays(appConfig.getForexHistoryDays() - 1);
+		final LocalDate start = latestDay == null || LocalDate.ofEpochDay(latestDay + 1).isBefore(oldest) ? oldest
+			: LocalDate.ofEpochDay(latestDay + 1);
+		if (start.isAfter(yesterday)) {
+			return;
+		}
+
+		final Map<LocalDate, BigDecimal> rates = forexBitcoinService.getCoindeskHistoricRates(currency, start,
+			yesterday);
+		final List<BitcoinRateHistory> rows = new ArrayList<>(rates.size());
+		for (Map.Entry<LocalDate, BigDecimal> entry : rates.entrySet()) {
+			// The upstream range is inclusive, never store a day twice
+			if (!entry.getKey().isBefore(start)) {
+				BitcoinRateHistory row = new BitcoinRateHistory();
+				row.setCurrency(currency);
+				row.setDay(entry.getKey().toEpochDay());
+				row.setRate(entry.getValue());
+				rows.add(row);
+			}
+		}
+		repository.save(rows);
+		LOG.debug("Rate history of {}: {} days added from {}", currency, rows.size(), start);
+	}
+
+	/**
+	 * @return true if the history contains at least one day for the currency
+	 */
+	@Transactional(readOnly = true)
+	public boolean hasHistory(ForexCurrency currency) {
+		return repository.findLatestDay(currency) != null;
+	}
+
+	/**
+	 * @param from first day, inclusive
+	 * @param to last day, inclusive
+	 * @return the stored closing prices in the range, oldest first
+	 */
+	@Transactional(readOnly = true)
+	public List<ForexDTO> getRates(ForexCurrency currency, LocalDate from, LocalDate to) {
+		return repository.findByCurrencyAndDayBetweenOrderByDayAsc(currency, from.toEpochDay(), to.toEpochDay())
+			.stream().map(row -> {
+				ForexDTO dto = new ForexDTO();
+				dto.setCurrencyFrom(BTC);
+				dto.setCurrencyTo(currency);
+				dto.setRate(row.getRate());
+				dto.setUpdatedAt(Date.from(LocalDate.ofEpochDay(row.getDay()).atStartOfDay(ZoneOffset.UTC)
+					.toInstant()));
+				return dto;
+			}).collect(Collectors.toList());
+	}
+}
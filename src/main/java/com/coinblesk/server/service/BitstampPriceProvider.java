@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import static org.knowm.xchange.currency.CurrencyPair.BTC_USD;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+import org.knowm.xchange.ExchangeFactory;
+import org.knowm.xchange.bitstamp.BitstampExchange;
+import org.knowm.xchange.dto.marketdata.Ticker;
+import org.knowm.xchange.service.marketdata.MarketDataService;
+import org.springframework.stereotype.Component;
+
+/**
+ * BTC/USD price from the Bitstamp ticker, the mid between ask and bid.
+ */
+@Component
+public class BitstampPriceProvider implements BitcoinPriceProvider {
+
+	private final static MarketDataService MARKET_DATA_SERVICE = ExchangeFactory.INSTANCE.createExchange(
+		BitstampExchange.class.getName()).getMarketDataService();
+
+	@Override
+	public String getName() {
+		return "bitstamp";
+	}
+
+	@Override
+	public BigDecimal getPriceUSD() throws IOException {
+		final Ticker ticker = getTicker();
+		return ticker.getAsk().add(ticker.getBid()).divide(BigDecimal.valueOf(2));
+	}
+
+	public Ticker getTicker() throws IOException {
+		return MARKET_DATA_SERVICE.getTicker(BTC_USD);
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.utils.CoinUtils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Bounded cache of decoded channel transactions.
+ *
+ * Entries are keyed by the hash of the serialized transaction, so an account whose channel transaction changes
+ * simply refers to a new entry. The entry of the replaced transaction is evicted with {@link #evict(byte[])}, or
+ * eventually by the size limit.
+ *
+ * The cached {@link Transaction} is shared and must not be handed out, use {@link #parse(byte[])} for a
+ * transaction that is broadcast or otherwise modified.
+ */
+@Service
+public class ChannelTransactionCache {
+
+	private final static long MAXIMUM_SIZE = 10_000;
+
+	private final AppConfig appConfig;
+	private final WalletService walletService;
+
+	private final Cache<Sha256Hash, ChannelTransaction> cache = CacheBuilder.newBuilder().maximumSize(MAXIMUM_SIZE)
+		.build();
+
+	@Autowired
+	public ChannelTransactionCache(AppConfig appConfig, WalletService walletService) {
+		this.appConfig = appConfig;
+		this.walletService = walletService;
+	}
+
+	/**
+	 * @param txBytes The serialized channel transaction
+	 * @return the decoded transaction with its derived values
+	 */
+	public ChannelTransaction get(byte[] txBytes) {
+		try {
+			return cache.get(Sha256Hash.of(txBytes), () -> new ChannelTransaction(parse(txBytes)));
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Removes the entry of a channel transaction that was replaced or closed. Does nothing for null.
+	 */
+	public void evict(@Nullable byte[] txBytes) {
+		if (txBytes != null)
+			cache.invalidate(Sha256Hash.of(txBytes));
+	}
+
+	/**
+	 * Decodes a new, unshared transaction.
+	 */
+	public Transaction parse(byte[] txBytes) {
+		return new Transaction(appConfig.getNetworkParameters(), txBytes);
+	}
+
+	/**
+	 * Values derived from a channel transaction that are needed on every request.
+	 */
+	public class ChannelTransaction {
+		private final Transaction tx;
+		private final Sha256Hash trackingHash;
+		private final Coin serverOutputValue;
+		private final Coin serverOutputTotal;
+		private final Coin outputTotal;
+		// Depends on the wallet knowing all spent outputs, computed on first use
+		private volatile Coin fee;
+
+		private ChannelTransaction(Transaction tx) {
+			final NetworkParameters params = appConfig.getNetworkParameters();
+			final Address serverAddress = appConfig.getMicroPaymentPotPrivKey().toAddress(params);
+
+			Coin first = null;
+			Coin serverTotal = Coin.ZERO;
+			Coin total = Coin.ZERO;
+			for (TransactionOutput out : tx.getOutputs()) {
+				if (Objects.equals(out.getAddressFromP2PKHScript(params), serverAddress)) {
+					if (first == null)
+						first = out.getValue();
+					serverTotal = serverTotal.add(out.getValue());
+				}
+				total = total.add(out.getValue());
+			}
+
+			this.tx = tx;
+			this.trackingHash = CoinUtils.trackingHash(tx);
+			this.serverOutputValue = first == null ? Coin.ZERO : first;
+			this.serverOutputTotal = serverTotal;
+			this.outputTotal = total;
+		}
+
+		/**
+		 * @return the malleability resistant hash of the transaction, see {@link CoinUtils#trackingHash(Transaction)}
+		 */
+		public Sha256Hash getTrackingHash() {
+			return trackingHash;
+		}
+
+		/**
+		 * @return value of the first output to the micro payment pot, or Coin.ZERO
+		 */
+		public Coin getServerOutputValue() {
+			return serverOutputValue;
+		}
+
+		/**
+		 * @return sum of all outputs to the micro payment pot
+		 */
+		public Coin getServerOutputTotal() {
+			return serverOutputTotal;
+		}
+
+		/**
+		 * @return inputs minus outputs, the inputs are looked up in the wallet
+		 */
+		public Coin getFee() {
+			Coin result = fee;
+			if (result == null) {
+				long inputSum = 0L;
+				for (TransactionInput in : tx.getInputs()) {
+					inputSum += walletService.findOutputFor(in).getValue().longValue();
+				}
+				result = Coin.valueOf(inputSum).subtract(outputTotal);
+				fee = result;
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Map;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * BTC/USD price from the Coindesk bitcoin price index.
+ */
+@Component
+public class CoindeskPriceProvider implements BitcoinPriceProvider {
+
+	private final static String COINDESK_CURRENT_USD_API = "http://api.coindesk.com/v1/bpi/currentprice/USD.json";
+
+	@Override
+	public String getName() {
+		return "coindesk";
+	}
+
+	@Override
+	public BigDecimal getPriceUSD() throws IOException {
+		final Map<String, CurrentJsonStructure.Rate> bpi = ServiceUtils.getJson(COINDESK_CURRENT_USD_API,
+			CurrentJsonStructure.class).bpi;
+		if (bpi == null || bpi.get("USD") == null) {
+			throw new IOException("No USD rate in the Coindesk response");
+		}
+		return new BigDecimal(bpi.get("USD").rate_float);
+	}
+
+	private static class CurrentJsonStructure {
+		private Map<String, Rate> bpi;
+
+		private static class Rate {
+			private double rate_float;
+		}
+	}
+}
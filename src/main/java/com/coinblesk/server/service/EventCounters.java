@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+import com.coinblesk.server.enumerator.EventType;
+import com.coinblesk.server.enumerator.EventUrgence;
+
+/**
+ * Counts recorded events per urgence and type over a sliding window, without locks and without the database.
+ *
+ * The window consists of a ring of time buckets. An event is counted in the bucket of the current time. A bucket
+ * that belongs to an older period is replaced with a compare-and-set when the first event of the new period
+ * arrives, so counting is a lookup and an atomic increment. The window covers the current bucket and the
+ * buckets - 1 preceding ones.
+ */
+public class EventCounters {
+
+	private final static EventUrgence[] URGENCES = EventUrgence.values();
+	private final static EventType[] TYPES = EventType.values();
+
+	private final long bucketMillis;
+	private final int buckets;
+	private final LongSupplier clock;
+	private final AtomicReferenceArray<Bucket> ring;
+
+	public EventCounters(long bucketMillis, int buckets) {
+		this(bucketMillis, buckets, System::currentTimeMillis);
+	}
+
+	EventCounters(long bucketMillis, int buckets, LongSupplier clock) {
+		this.bucketMillis = bucketMillis;
+		this.buckets = buckets;
+		this.clock = clock;
+		this.ring = new AtomicReferenceArray<>(buckets);
+	}
+
+	public void record(EventUrgence urgence, EventType type) {
+		bucket(clock.getAsLong() / bucketMillis).counts.incrementAndGet(index(urgence, type));
+	}
+
+	/**
+	 * @return the number of events with the given urgence in the window
+	 */
+	public long count(EventUrgence urgence) {
+		final long now = clock.getAsLong() / bucketMillis;
+		long count = 0;
+		for (int i = 0; i < buckets; i++) {
+			final Bucket bucket = ring.get(i);
+			if (inWindow(bucket, now)) {
+				for (EventType type : TYPES) {
+					count += bucket.counts.get(index(urgence, type));
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of events with the given urgence in the window by type, types without events are missing
+	 */
+	public Map<EventType, Long> countByType(EventUrgence urgence) {
+		final long now = clock.getAsLong() / bucketMillis;
+		final long[] counts = new long[TYPES.length];
+		for (int i = 0; i < buckets; i++) {
+			final Bucket bucket = ring.get(i);
+			if (inWindow(bucket, now)) {
+				for (EventType type : TYPES) {
+					counts[type.ordinal()] += bucket.counts.get(index(urgence, type));
+				}
+			}
+		}
+
+		final Map<EventType, Long> result = new EnumMap<>(EventType.class);
+		for (EventType type : TYPES) {
+			if (counts[type.ordinal()] > 0) {
+				result.put(type, counts[type.ordinal()]);
+			}
+		}
+		return result;
+	}
+
+	public long getWindowMillis() {
+		return bucketMillis * buckets;
+	}
+
+	private Bucket bucket(long period) {
+		final int slot = (int) (period % buckets);
+		while (true) {
+			final Bucket current = ring.get(slot);
+			// A newer bucket only shows up if this thread stalled for a whole window, count it there
+			if (current != null && current.period >= period) {
+				return current;
+			}
+			final Bucket fresh = new Bucket(period);
+			if (ring.compareAndSet(slot, current, fresh)) {
+				return fresh;
+			}
+		}
+	}
+
+	private boolean inWindow(Bucket bucket, long now) {
+		return bucket != null && bucket.period <= now && bucket.period > now - buckets;
+	}
+
+	private static int index(EventUrgence urgence, EventType type) {
+		return urgence.ordinal() * TYPES.length + type.ordinal();
+	}
+
+	private static class Bucket {
+		private final long period;
+		private final AtomicLongArray counts = new AtomicLongArray(URGENCES.length * TYPES.length);
+
+		private Bucket(long period) {
+			this.period = period;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import static com.coinblesk.server.enumerator.EventType.EVENT_SERVICE_AUTO_REMOVAL;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.dao.EventRepository;
+
+/**
+ * Removes events older than coinblesk.events.retentionDays.
+ *
+ * Old events are deleted in batches of coinblesk.events.retentionBatchSize, oldest first, each batch in its own
+ * short transaction and with a pause of coinblesk.events.retentionPauseMillis in between. That keeps locks short and
+ * gives vacuum and replication time to catch up. The removal runs on its own thread, so it does not hold up the
+ * other scheduled tasks.
+ */
+@Service
+public class EventRetentionService {
+
+	private final static Logger LOG = LoggerFactory.getLogger(EventRetentionService.class);
+
+	private final EventRepository eventRepository;
+	private final EventService eventService;
+	private final AppConfig appConfig;
+	private final TransactionTemplate transactionTemplate;
+
+	private final AtomicBoolean removing = new AtomicBoolean();
+	private volatile boolean stopped;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "event-retention");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	@Autowired
+	public EventRetentionService(EventRepository eventRepository, EventService eventService, AppConfig appConfig,
+		PlatformTransactionManager transactionManager) {
+		this.eventRepository = eventRepository;
+		this.eventService = eventService;
+		this.appConfig = appConfig;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+	}
+
+	@Scheduled(cron = "0 0 3 * * *") // every day at 3am
+	public void scheduledRemovalOfOldEntries() {
+		// A removal that is still running from the day before just continues
+		if (removing.compareAndSet(false, true)) {
+			executor.execute(() -> {
+				try {
+					removeOldEntries();
+				} catch (RuntimeException e) {
+					LOG.error("Could not remove old events", e);
+				} finally {
+					removing.set(false);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Deletes all events older than the retention period, batch by batch.
+	 *
+	 * @return the number of deleted events
+	 */
+	public long removeOldEntries() {
+		final Date olderThan = Date.from(Instant.now().minus(appConfig.getEventsRetentionDays(), ChronoUnit.DAYS));
+		final int batchSize = appConfig.getEventsRetentionBatchSize();
+		long deleted = 0;
+
+		while (!stopped) {
+			final Integer count = transactionTemplate.execute(status -> {
+				final List<Long> ids = eventRepository.findOldEntryIds(olderThan, new PageRequest(0, batchSize));
+				return ids.isEmpty() ? 0 : eventRepository.deleteByIds(ids);
+			});
+			deleted += count;
+			if (count < batchSize) {
+				break;
+			}
+			try {
+				Thread.sleep(appConfig.getEventsRetentionPauseMillis());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		if (deleted > 0) {
+			eventService.info(EVENT_SERVICE_AUTO_REMOVAL, deleted + " entries were automatically removed.");
+		}
+		LOG.info("Removed {} events older than {}", deleted, olderThan);
+		return deleted;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		stopped = true;
+		executor.shutdownNow();
+	}
+}
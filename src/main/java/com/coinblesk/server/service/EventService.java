@@ -1,49 +1,79 @@
 package com.coinblesk.server.service;
 
-import static com.coinblesk.server.enumerator.EventType.EVENT_SERVICE_AUTO_REMOVAL;
 import static com.coinblesk.server.enumerator.EventType.EVENT_SERVICE_EMERGENCY_EMAIL_SENT;
 import static com.coinblesk.server.enumerator.EventUrgence.DEBUG;
 import static com.coinblesk.server.enumerator.EventUrgence.ERROR;
 import static com.coinblesk.server.enumerator.EventUrgence.FATAL;
 import static com.coinblesk.server.enumerator.EventUrgence.INFO;
 import static com.coinblesk.server.enumerator.EventUrgence.WARN;
+import static javax.persistence.TemporalType.TIMESTAMP;
 
-import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
 import javax.transaction.Transactional;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import com.coinblesk.server.config.AppConfig;
 import com.coinblesk.server.dao.EventRepository;
 import com.coinblesk.server.entity.Event;
 import com.coinblesk.server.enumerator.EventType;
 import com.coinblesk.server.enumerator.EventUrgence;
 
+import lombok.Data;
+
 @Service
 public class EventService {
 
 	private final static Logger LOG = LoggerFactory.getLogger(EventService.class);
 
+	private final static int TEN_MINUTES_THRESHOLD_FATAL = 0;
+	private final static int TEN_MINUTES_THRESHOLD_ERROR = 5;
+	private final static int TEN_MINUTES_THRESHOLD_WARN = 20;
+
 	private EventRepository eventRepository;
 	private MailService mailService;
+	private AsyncEventWriter asyncEventWriter;
+	private AppConfig appConfig;
+	private EntityManager entityManager;
+
+	// 10 buckets of 1 minute
+	private final EventCounters eventCounters = new EventCounters(TimeUnit.MINUTES.toMillis(1), 10);
+	private final AtomicLong lastEmergencyEmail = new AtomicLong();
+	private final ExecutorService emergencyExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "event-emergency-email");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	@Autowired
-	public EventService(EventRepository eventRepository, MailService mailService) {
+	public EventService(EventRepository eventRepository, MailService mailService, AsyncEventWriter asyncEventWriter,
+			AppConfig appConfig, EntityManager entityManager) {
 		this.eventRepository = eventRepository;
 		this.mailService = mailService;
+		this.asyncEventWriter = asyncEventWriter;
+		this.appConfig = appConfig;
+		this.entityManager = entityManager;
 	}
 
+	/**
+	 * Stores an event. Unless the asynchronous event writer is disabled, the event is written in the background and
+	 * not as part of the transaction of the caller. FATAL events are written immediately if
+	 * coinblesk.events.async.syncFatal is set.
+	 */
 	@Transactional
 	public void addEvent(EventUrgence urgence, EventType type, String description) {
 		LOG.debug("Create an event with urgence {}, type {} and description {}", urgence, type, description);
@@ -54,7 +84,15 @@ public class EventService {
 		event.setType(type);
 		event.setDescription(description);
 
-		eventRepository.save(event);
+		boolean synchronous = FATAL.equals(urgence) && appConfig.isEventsAsyncSyncFatal();
+		if(synchronous || !asyncEventWriter.add(event)) {
+			eventRepository.save(event);
+		}
+
+		eventCounters.record(urgence, type);
+		if(FATAL.equals(urgence) || ERROR.equals(urgence) || WARN.equals(urgence)) {
+			checkForWarningsAndNotifyInEmergency();
+		}
 	}
 
 	public void debug(EventType type, String description) {
@@ -73,118 +111,126 @@ public class EventService {
 		this.addEvent(FATAL, type, description);
 	}
 
+	/**
+	 * @return all events with the given urgence or higher, newest first
+	 */
 	public List<Event> getEventsWithUrgenceOrHigher(EventUrgence urgence) {
-		List<Event> events = new ArrayList<>();
-		if(FATAL.equals(urgence) || ERROR.equals(urgence) || WARN.equals(urgence) || INFO.equals(urgence) || DEBUG.equals(urgence)) {
-			events.addAll(eventRepository.getEventsWithUrgence(FATAL));
-		}
-		if(ERROR.equals(urgence) || WARN.equals(urgence) || INFO.equals(urgence) || DEBUG.equals(urgence)) {
-			events.addAll(eventRepository.getEventsWithUrgence(ERROR));
+		return eventRepository.getEventsWithUrgenceIn(EnumSet.range(urgence, FATAL));
+	}
+
+	/**
+	 * One page of the events matching the query, newest first. The next page starts after the date and id of the
+	 * last event of this page.
+	 *
+	 * @return at most {@link EventQuery#getLimit()} events
+	 */
+	public List<Event> getEvents(EventQuery query) {
+		// Only fixed fragments end up in the query, all values are bound as parameters
+		final StringBuilder jpql = new StringBuilder("SELECT e FROM EVENT e WHERE e.urgence IN (:urgences)");
+		if(query.getType() != null) {
+			jpql.append(" AND e.type = (:type)");
 		}
-		if(WARN.equals(urgence) || INFO.equals(urgence) || DEBUG.equals(urgence)) {
-			events.addAll(eventRepository.getEventsWithUrgence(WARN));
+		if(query.getFrom() != null) {
+			jpql.append(" AND e.date >= (:from)");
 		}
-		if(INFO.equals(urgence) || DEBUG.equals(urgence)) {
-			events.addAll(eventRepository.getEventsWithUrgence(INFO));
+		if(query.getTo() != null) {
+			jpql.append(" AND e.date < (:to)");
 		}
-		if(DEBUG.equals(urgence)) {
-			events.addAll(eventRepository.getEventsWithUrgence(DEBUG));
+		if(query.getBeforeDate() != null && query.getBeforeId() != null) {
+			jpql.append(" AND (e.date < (:beforeDate) OR (e.date = (:beforeDate) AND e.id < (:beforeId)))");
 		}
-		return events;
-	}
-
-	@Transactional
-	@Scheduled(cron = "0 0 3 * * *") // every day at 3am
-	public void scheduledRemovalOfOldEntries() {
-		final int DELETE_AFTER_DAYS = 90;
+		jpql.append(" ORDER BY e.date DESC, e.id DESC");
 
-		Date calculatedDate = addTime(new Date(), Calendar.DATE, - DELETE_AFTER_DAYS);
-		long numberOfDeletingEntries = eventRepository.countOldEntries(calculatedDate);
-
-		if(numberOfDeletingEntries > 0) {
-			eventRepository.deleteOldEntries(calculatedDate);
-
-			this.info(EVENT_SERVICE_AUTO_REMOVAL, "Approx. " + numberOfDeletingEntries + " entries were automatically removed.");
+		final TypedQuery<Event> typedQuery = entityManager.createQuery(jpql.toString(), Event.class);
+		typedQuery.setParameter("urgences", EnumSet.range(query.getMinUrgence(), FATAL));
+		if(query.getType() != null) {
+			typedQuery.setParameter("type", query.getType());
+		}
+		if(query.getFrom() != null) {
+			typedQuery.setParameter("from", query.getFrom(), TIMESTAMP);
 		}
+		if(query.getTo() != null) {
+			typedQuery.setParameter("to", query.getTo(), TIMESTAMP);
+		}
+		if(query.getBeforeDate() != null && query.getBeforeId() != null) {
+			typedQuery.setParameter("beforeDate", query.getBeforeDate(), TIMESTAMP);
+			typedQuery.setParameter("beforeId", query.getBeforeId());
+		}
+		return typedQuery.setMaxResults(query.getLimit()).getResultList();
 	}
 
-	@Transactional
-	@Scheduled(cron = "0 */10 * * * *") // every 10 minutes (00, 10, 20, 30, 40, 50)
-	public void scheduledCheckForWarningsAndNotifyInEmergency() {
-		final int TEN_MINUTES_THRESHOLD_FATAL = 0;
-		final int TEN_MINUTES_THRESHOLD_ERROR = 5;
-		final int TEN_MINUTES_THRESHOLD_WARN = 20;
-
-		Date beforeDate = addTime(new Date(), Calendar.MINUTE, -10);
-		Date nowDate = new Date();
-
-		Map<EventUrgence, Set<Event>> groupedEvents = new HashMap<>();
-		EventUrgence[] allEventUrgences = EventUrgence.values();
-		for(EventUrgence eventUrgence : allEventUrgences) {
-			groupedEvents.put(eventUrgence, new HashSet<>());
+	/**
+	 * Sends an emergency email if the events of the last 10 minutes exceed the thresholds. Called for every WARN
+	 * and above event and reads the in-memory counters only. At most one email is sent per 10 minutes.
+	 */
+	private void checkForWarningsAndNotifyInEmergency() {
+		final long now = System.currentTimeMillis();
+		final long lastEmail = lastEmergencyEmail.get();
+		if(now - lastEmail < eventCounters.getWindowMillis()) {
+			return;
 		}
 
-		Set<Event> events = eventRepository.getEventsBetween(beforeDate, nowDate);
-		for(Event event : events) {
-			groupedEvents.get(event.getUrgence()).add(event);
+		final long fatal = eventCounters.count(FATAL);
+		final long error = eventCounters.count(ERROR);
+		final long warn = eventCounters.count(WARN);
+		if(fatal <= TEN_MINUTES_THRESHOLD_FATAL && error <= TEN_MINUTES_THRESHOLD_ERROR
+				&& warn <= TEN_MINUTES_THRESHOLD_WARN) {
+			return;
+		}
+		// Only one of the concurrent callers sends the email
+		if(!lastEmergencyEmail.compareAndSet(lastEmail, now)) {
+			return;
 		}
 
-		if(groupedEvents.get(FATAL).size() > TEN_MINUTES_THRESHOLD_FATAL
-				|| groupedEvents.get(ERROR).size() > TEN_MINUTES_THRESHOLD_ERROR
-				|| groupedEvents.get(WARN).size() > TEN_MINUTES_THRESHOLD_WARN) {
-
-			StringBuffer buffer = new StringBuffer();
-			if(groupedEvents.get(FATAL).size() > 0) {
-				buffer.append(FATAL + ":\n");
-				buffer.append(countEventTypesAndGetString(groupedEvents.get(FATAL)));
-				buffer.append("\n");
-			}
-			if(groupedEvents.get(ERROR).size() > 0) {
-				buffer.append(ERROR + ":\n");
-				buffer.append(countEventTypesAndGetString(groupedEvents.get(ERROR)));
+		StringBuilder buffer = new StringBuilder();
+		for(EventUrgence urgence : new EventUrgence[] { FATAL, ERROR, WARN }) {
+			Map<EventType, Long> countedEventTypes = eventCounters.countByType(urgence);
+			if(!countedEventTypes.isEmpty()) {
+				buffer.append(urgence + ":\n");
+				buffer.append(eventTypesToString(countedEventTypes));
 				buffer.append("\n");
 			}
-			if(groupedEvents.get(WARN).size() > 0) {
-				buffer.append(WARN + ":\n");
-				buffer.append(countEventTypesAndGetString(groupedEvents.get(WARN)));
-				buffer.append("\n");
-			}
-			int totalWarningAndAboveEvents = groupedEvents.get(FATAL).size() + groupedEvents.get(ERROR).size() + groupedEvents.get(WARN).size();
+		}
+		long totalWarningAndAboveEvents = fatal + error + warn;
 
+		// Not on the thread of the caller, which may be a payment
+		emergencyExecutor.execute(() -> {
 			mailService.sendAdminMail("emergency: event threshold exceeded",
 					"A lot of events occured in the last 10 minutes on the server. See the following list (warning and above events):\n\n" + buffer.toString());
 			this.info(EVENT_SERVICE_EMERGENCY_EMAIL_SENT, "An emergency e-mail was sent ("+totalWarningAndAboveEvents+" warning and above events occurred in the last 10min)");
-		}
+		});
 	}
 
-	private String countEventTypesAndGetString(Set<Event> events) {
-		Map<EventType, Integer> countedEventTypes = new HashMap<>();
-		for(Event event : events) {
-			if(!countedEventTypes.containsKey(event.getType())) {
-				countedEventTypes.put(event.getType(), 0);
-			}
-			countedEventTypes.put(event.getType(), countedEventTypes.get(event.getType()) + 1);
-		}
-
-		StringBuffer buffer = new StringBuffer();
-		for(Map.Entry<EventType, Integer> entry : countedEventTypes.entrySet()) {
-			EventType type = entry.getKey();
-			Integer count = entry.getValue();
-			buffer.append(type);
+	private String eventTypesToString(Map<EventType, Long> countedEventTypes) {
+		StringBuilder buffer = new StringBuilder();
+		for(Map.Entry<EventType, Long> entry : countedEventTypes.entrySet()) {
+			buffer.append(entry.getKey());
 			buffer.append(": ");
-			buffer.append(count);
+			buffer.append(entry.getValue());
 			buffer.append("\n");
 		}
 		return buffer.toString();
 	}
 
-	private Date addTime(Date date, int dateCategory, int amount) {
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.add(dateCategory, amount);
-		Date calculatedDate = calendar.getTime();
+	@PreDestroy
+	public void shutdown() {
+		emergencyExecutor.shutdown();
+	}
 
-		return calculatedDate;
+	/**
+	 * Filter and position for {@link #getEvents(EventQuery)}. Unset filters match all events.
+	 */
+	@Data
+	public static class EventQuery {
+		private EventUrgence minUrgence = DEBUG;
+		private EventType type;
+		// from inclusive, to exclusive
+		private Date from;
+		private Date to;
+		// Date and id of the last event of the previous page, both null for the first page
+		private Date beforeDate;
+		private Long beforeId;
+		private int limit = 100;
 	}
 
 }
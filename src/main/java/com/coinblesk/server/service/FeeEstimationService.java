@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Estimates fees from the transactions the peer group sees, without asking an external service.
+ *
+ * The fee rate (satoshis per byte) of a transaction is only known if the values of all its inputs are known. They
+ * are looked up in the outputs of recently seen transactions and in the wallet. Since the server is an SPV node, the
+ * peers only relay transactions and filtered blocks that match the bloom filter of the wallet, so the estimate is
+ * based on a small sample and is only used if no fee from the fee API is available.
+ *
+ * The samples of the last {@link #WINDOW_BLOCKS} blocks and of the transactions relayed in the last
+ * {@link #MEMPOOL_WINDOW_MILLIS} form a rolling window. The sorted window is rebuilt on the first lookup after a
+ * change, lookups never wait for the network.
+ */
+@Service
+public class FeeEstimationService {
+
+	private final static Logger LOG = LoggerFactory.getLogger(FeeEstimationService.class);
+
+	private final static int WINDOW_BLOCKS = 6;
+	// 30min
+	private final static long MEMPOOL_WINDOW_MILLIS = 30 * 60 * 1000;
+	private final static int MAX_MEMPOOL_SAMPLES = 10_000;
+	private final static long MAX_KNOWN_OUTPUTS = 200_000;
+	// Fewer samples do not give a meaningful percentile
+	private final static int MIN_SAMPLES = 10;
+
+	private final WalletService walletService;
+
+	// Values of the outputs of recently seen transactions, to find the input values of the transactions spending them
+	private final Cache<TransactionOutPoint, Coin> knownOutputs = CacheBuilder.newBuilder().maximumSize(
+		MAX_KNOWN_OUTPUTS).build();
+
+	// Guarded by this
+	private final Deque<long[]> blockSamples = new ArrayDeque<>();
+	private final Deque<long[]> mempoolSamples = new ArrayDeque<>();
+	private long[] window = new long[0];
+	private boolean windowStale;
+
+	@Autowired
+	public FeeEstimationService(WalletService walletService) {
+		this.walletService = walletService;
+	}
+
+	@PostConstruct
+	public void init() {
+		walletService.addBlocksDownloadedListener((peer, block, filteredBlock, blocksLeft) -> {
+			if (block.getTransactions() != null) {
+				addBlock(block.getTransactions());
+			} else if (filteredBlock != null) {
+				addBlock(filteredBlock.getAssociatedTransactions().values());
+			}
+		});
+		walletService.addTransactionListener((peer, tx) -> addTransaction(tx));
+	}
+
+	/**
+	 * Adds a relayed, not yet confirmed transaction to the window.
+	 */
+	public void addTransaction(Transaction tx) {
+		rememberOutputs(tx);
+		final long feeRate = feeRate(tx);
+		if (feeRate >= 0) {
+			synchronized (this) {
+				mempoolSamples.addLast(new long[] { System.currentTimeMillis(), feeRate });
+				while (mempoolSamples.size() > MAX_MEMPOOL_SAMPLES) {
+					mempoolSamples.removeFirst();
+				}
+				windowStale = true;
+			}
+		}
+	}
+
+	/**
+	 * Adds the transactions of a block to the window and drops the samples of the oldest block if the window is full.
+	 */
+	public void addBlock(Collection<Transaction> transactions) {
+		// A transaction may spend an output of a transaction in the same block
+		for (Transaction tx : transactions) {
+			rememberOutputs(tx);
+		}
+		final List<Long> feeRates = new ArrayList<>(transactions.size());
+		for (Transaction tx : transactions) {
+			final long feeRate = feeRate(tx);
+			if (feeRate >= 0) {
+				feeRates.add(feeRate);
+			}
+		}
+
+		synchronized (this) {
+			blockSamples.addLast(feeRates.stream().mapToLong(Long::longValue).toArray());
+			while (blockSamples.size() > WINDOW_BLOCKS) {
+				blockSamples.removeFirst();
+			}
+			windowStale = true;
+		}
+		LOG.debug("Fee samples from block: {} of {} transactions", feeRates.size(), transactions.size());
+	}
+
+	/**
+	 * @param percentile between 1 and 100, higher values give a fee that gets a transaction confirmed faster
+	 * @return the fee rate in satoshis per byte at the given percentile of the window, or null if there are not
+	 *         enough samples
+	 */
+	@Nullable
+	public Integer estimate(int percentile) {
+		final long[] sorted = window();
+		if (sorted.length < MIN_SAMPLES) {
+			return null;
+		}
+		final int rank = (int) Math.ceil(Math.min(Math.max(percentile, 1), 100) / 100.0 * sorted.length);
+		return (int) sorted[rank - 1];
+	}
+
+	/**
+	 * @return number of fee rates in the window
+	 */
+	public int getSampleCount() {
+		return window().length;
+	}
+
+	private synchronized long[] window() {
+		final long cutoff = System.currentTimeMillis() - MEMPOOL_WINDOW_MILLIS;
+		while (!mempoolSamples.isEmpty() && mempoolSamples.peekFirst()[0] < cutoff) {
+			mempoolSamples.removeFirst();
+			windowStale = true;
+		}
+
+		if (windowStale) {
+			int size = mempoolSamples.size();
+			for (long[] block : blockSamples) {
+				size += block.length;
+			}
+			final long[] result = new long[size];
+			int i = 0;
+			for (long[] block : blockSamples) {
+				System.arraycopy(block, 0, result, i, block.length);
+				i += block.length;
+			}
+			for (long[] sample : mempoolSamples) {
+				result[i++] = sample[1];
+			}
+			Arrays.sort(result);
+			window = result;
+			windowStale = false;
+		}
+		return window;
+	}
+
+	private void rememberOutputs(Transaction tx) {
+		// Only keep the hash, an outpoint created from the transaction would keep the whole transaction in memory
+		for (TransactionOutput output : tx.getOutputs()) {
+			knownOutputs.put(new TransactionOutPoint(tx.getParams(), output.getIndex(), tx.getHash()), output
+				.getValue());
+		}
+	}
+
+	/**
+	 * @return fee rate in satoshis per byte, or -1 if it cannot be computed
+	 */
+	private long feeRate(Transaction tx) {
+		if (tx.isCoinBase() || tx.getInputs().isEmpty()) {
+			return -1;
+		}
+		long inputSum = 0;
+		for (TransactionInput input : tx.getInputs()) {
+			final Coin value = inputValue(input);
+			if (value == null) {
+				return -1;
+			}
+			inputSum += value.getValue();
+		}
+		final long fee = inputSum - tx.getOutputSum().getValue();
+		final int size = tx.unsafeBitcoinSerialize().length;
+		if (fee < 0 || size == 0) {
+			return -1;
+		}
+		return fee / size;
+	}
+
+	@Nullable
+	private Coin inputValue(TransactionInput input) {
+		if (input.getValue() != null) {
+			return input.getValue();
+		}
+		final Coin value = knownOutputs.getIfPresent(input.getOutpoint());
+		if (value != null) {
+			return value;
+		}
+		final TransactionOutput output = walletService.findOutputFor(input);
+		return output == null ? null : output.getValue();
+	}
+}
@@ -18,15 +18,22 @@ package com.coinblesk.server.service;
  * @author Thomas Bocek
  */
 
-import com.coinblesk.util.DTOUtils;
-import com.coinblesk.util.Pair;
+import com.coinblesk.server.config.AppConfig;
+import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
 
-import java.io.IOException;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Service
 public class FeeService {
@@ -42,33 +49,116 @@ public class FeeService {
 	private final static int DEFAULT_FEE = 150;
 
 	private final static String URL = "https://bitcoinfees.21.co/api/v1/fees/recommended";
-	private final Object lock = new Object();
-	private Pair<Long, Integer> cachedFee;
-
-	public int fee() throws IOException {
-		synchronized (lock) {
-			if (cachedFee == null || cachedFee.element0() + CACHING_FEE_MILLIS < System.currentTimeMillis()) {
-				int fee = askFee();
-				cachedFee = new Pair<>(System.currentTimeMillis(), fee);
+
+	// Percentile of the local estimate used in place of fastestFee
+	private final static int LOCAL_ESTIMATE_PERCENTILE = 90;
+
+	private final FeeEstimationService feeEstimationService;
+	private final AppConfig appConfig;
+
+	// Last fee fetched successfully, null until the first fetch succeeded
+	private final AtomicReference<CachedFee> cachedFee = new AtomicReference<>();
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	private final AtomicLong refreshFailures = new AtomicLong();
+
+	private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "fee-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	@Autowired
+	public FeeService(FeeEstimationService feeEstimationService, AppConfig appConfig) {
+		this.feeEstimationService = feeEstimationService;
+		this.appConfig = appConfig;
+	}
+
+	/**
+	 * Returns the last known fee without waiting for the fee API. If the fee is older than the caching time, a
+	 * refresh is started in the background. Before the first successful fetch, and once the last fetched fee is older
+	 * than coinblesk.fee.maximumAge because the fee API keeps failing, the local estimate of
+	 * {@link FeeEstimationService} is returned, or {@link #DEFAULT_FEE} if there are not enough samples for it.
+	 *
+	 * @return fee in satoshis per byte
+	 */
+	public int fee() {
+		final CachedFee fee = cachedFee.get();
+		final long now = System.currentTimeMillis();
+		if (fee == null || fee.timestamp + CACHING_FEE_MILLIS < now) {
+			refreshAsync();
+		}
+		if (fee != null && now - fee.timestamp <= TimeUnit.SECONDS.toMillis(appConfig.getMaximumFeeAge())) {
+			return fee.fee;
+		}
+		final Integer estimate = feeEstimationService.estimate(LOCAL_ESTIMATE_PERCENTILE);
+		return estimate == null ? DEFAULT_FEE : estimate;
+	}
+
+	/**
+	 * @return milliseconds since the fee returned by {@link #fee()} was fetched, or -1 if no fee was fetched yet
+	 */
+	public long getFeeAgeMillis() {
+		final CachedFee fee = cachedFee.get();
+		return fee == null ? -1 : System.currentTimeMillis() - fee.timestamp;
+	}
+
+	/**
+	 * @return number of failed requests to the fee API since startup
+	 */
+	public long getRefreshFailures() {
+		return refreshFailures.get();
+	}
+
+	private void refreshAsync() {
+		// At most one refresh in flight, callers never wait for it
+		if (refreshing.compareAndSet(false, true)) {
+			try {
+				refreshExecutor.execute(this::refreshInFlight);
+			} catch (RuntimeException e) {
+				refreshing.set(false);
+				LOG.warn("could not schedule fee refresh", e);
 			}
-			return cachedFee.element1();
 		}
 	}
 
-	private int askFee() {
+	private void refreshInFlight() {
+		try {
+			refresh();
+		} finally {
+			refreshing.set(false);
+		}
+	}
+
+	/**
+	 * Fetches the fee from the fee API. If the request fails, the last known fee is kept.
+	 */
+	private void refresh() {
 		try {
-			final StringBuffer response = ServiceUtils.doHttpRequest(URL);
-			final FeeService.Root root = DTOUtils.fromJSON(response.toString(), FeeService.Root.class);
-			return Integer.parseInt(root.fastestFee);
+			final FeeService.Root root = ServiceUtils.getJson(URL, FeeService.Root.class);
+			cachedFee.set(new CachedFee(System.currentTimeMillis(), Integer.parseInt(root.fastestFee)));
 		} catch (Exception e) {
-			LOG.error("could not get fee", e);
-			return DEFAULT_FEE;
+			refreshFailures.incrementAndGet();
+			LOG.error("could not get fee, age of last known fee: {}ms", getFeeAgeMillis(), e);
 		}
 	}
 
-	private void setFee(int fee) {
-		synchronized (lock) {
-			cachedFee = new Pair<>(System.currentTimeMillis(), fee);
+	@VisibleForTesting
+	void setFee(int fee, long timestamp) {
+		cachedFee.set(new CachedFee(timestamp, fee));
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		refreshExecutor.shutdownNow();
+	}
+
+	private static class CachedFee {
+		private final long timestamp;
+		private final int fee;
+
+		private CachedFee(long timestamp, int fee) {
+			this.timestamp = timestamp;
+			this.fee = fee;
 		}
 	}
 
@@ -86,6 +176,7 @@ public class FeeService {
 		private String hourFee;
 	}
 
+	@Component
 	final static public class FeeTask {
 
 		private final FeeService feeService;
@@ -95,11 +186,10 @@ public class FeeService {
 			this.feeService = feeService;
 		}
 
-		// call every 5 minutes
+		// call every 5 minutes, the first call is at startup
 		@Scheduled(fixedRate = CACHING_FEE_MILLIS / 3)
-		public void doTask() throws Exception {
-			int fee = feeService.askFee();
-			feeService.setFee(fee);
+		public void doTask() {
+			feeService.refreshAsync();
 		}
 	}
 }
@@ -17,31 +17,35 @@ package com.coinblesk.server.service;
 
 import static com.coinblesk.enumerator.ForexCurrency.BTC;
 import static com.coinblesk.enumerator.ForexCurrency.USD;
-import static org.knowm.xchange.currency.CurrencyPair.BTC_USD;
 
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.PostConstruct;
 
-import org.knowm.xchange.ExchangeFactory;
-import org.knowm.xchange.bitstamp.BitstampExchange;
 import org.knowm.xchange.dto.marketdata.Ticker;
-import org.knowm.xchange.service.marketdata.MarketDataService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import com.coinblesk.dto.ForexDTO;
 import com.coinblesk.enumerator.ForexCurrency;
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.config.RefreshingCacheManager;
 import com.coinblesk.server.exceptions.BusinessException;
 import com.coinblesk.server.exceptions.CoinbleskInternalError;
 import com.coinblesk.server.exceptions.InvalidForexCurrencyException;
-import com.coinblesk.util.DTOUtils;
 
 /**
  * Service that provides current & historic bitcoin exchange rates.
@@ -49,17 +53,75 @@ import com.coinblesk.util.DTOUtils;
 @Service
 public class ForexBitcoinService {
 
+	private final static Logger LOG = LoggerFactory.getLogger(ForexBitcoinService.class);
+
 	private final static String PLACEHOLDER = "{{PLACEHOLDER}}";
 	private final static String COINDESK_CURRENT_API = "http://api.coindesk.com/v1/bpi/currentprice/" + PLACEHOLDER + ".json";
 	private final static String COINDESK_HISTORIC_API = "http://api.coindesk.com/v1/bpi/historical/close.json?currency=" + PLACEHOLDER;
 
-	private final static MarketDataService MARKET_DATA_SERVICE  = ExchangeFactory.INSTANCE.createExchange(BitstampExchange.class.getName()).getMarketDataService();
-
 	private ForexFiatService forexFiatService;
 
+	private final AppConfig appConfig;
+
+	private final RefreshingCacheManager cacheManager;
+
+	private final BitcoinPriceService bitcoinPriceService;
+
+	private final BitstampPriceProvider bitstampPriceProvider;
+
+	// Last BTC/USD rate fetched by refreshCurrentRateBTCUSD, null until the first successful fetch
+	private volatile FetchedRate currentRateBTCUSD;
+
 	@Autowired
-	public ForexBitcoinService(ForexFiatService forexFiatService) {
+	public ForexBitcoinService(ForexFiatService forexFiatService, AppConfig appConfig, RefreshingCacheManager
+		cacheManager, BitcoinPriceService bitcoinPriceService, BitstampPriceProvider bitstampPriceProvider) {
 		this.forexFiatService = forexFiatService;
+		this.appConfig = appConfig;
+		this.cacheManager = cacheManager;
+		this.bitcoinPriceService = bitcoinPriceService;
+		this.bitstampPriceProvider = bitstampPriceProvider;
+	}
+
+	@PostConstruct
+	public void init() {
+		// Expiry and refresh times of the caches are configured in application.properties (coinblesk.cache.*)
+		cacheManager.registerRefresher("forex-bitcoin-bitstamp-current", key -> loadBitstampCurrentRate(
+			(ForexCurrency) key));
+		cacheManager.registerRefresher("forex-bitcoin-coindesk-current", key -> loadCoindeskCurrentRate(
+			(ForexCurrency) key));
+		cacheManager.registerRefresher("forex-bitcoin-coindesk-history", key -> loadCoindeskHistoricRates(
+			(ForexCurrency) key));
+	}
+
+	/**
+	 * Fetches the BTC/USD rate from the price providers for {@link #getCachedRateBTCUSD()}. If not enough providers
+	 * are available, the previous rate is kept. The first refresh runs on the scheduler as soon as the application
+	 * has started, so startup does not wait for the providers.
+	 */
+	@Scheduled(fixedDelayString = "${coinblesk.forex.refreshInterval}000")
+	public void refreshCurrentRateBTCUSD() {
+		try {
+			currentRateBTCUSD = new FetchedRate(bitcoinPriceService.fetchRateBTCUSD(), Instant.now());
+		} catch (RuntimeException e) {
+			LOG.warn("Could not refresh the BTC/USD rate: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * The aggregated BTC/USD rate of the price providers as of the last background refresh, for the payment paths.
+	 * Never contacts a provider.
+	 *
+	 * @throws CoinbleskInternalError if there is no rate that is younger than coinblesk.forex.maximumRateAge
+	 */
+	public ForexDTO getCachedRateBTCUSD() {
+		final FetchedRate rate = currentRateBTCUSD;
+		if (rate == null) {
+			throw new CoinbleskInternalError("BTC/USD rate currently not available.");
+		}
+		if (Duration.between(rate.fetchedAt, Instant.now()).getSeconds() > appConfig.getMaximumForexRateAge()) {
+			throw new CoinbleskInternalError("BTC/USD rate is outdated, last update at " + rate.fetchedAt);
+		}
+		return rate.forex;
 	}
 
 	/**
@@ -72,7 +134,7 @@ public class ForexBitcoinService {
 		ForexDTO forexDTO = new ForexDTO();
 
 		try {
-			Ticker ticker = MARKET_DATA_SERVICE.getTicker(BTC_USD);
+			Ticker ticker = bitstampPriceProvider.getTicker();
 			forexDTO.setCurrencyFrom(BTC);
 			forexDTO.setCurrencyTo(USD);
 			forexDTO.setRate(ticker.getAsk().add(ticker.getBid()).divide(BigDecimal.valueOf(2)));
@@ -85,8 +147,51 @@ public class ForexBitcoinService {
 		return forexDTO;
 	}
 
-	@Cacheable("forex-bitcoin-bitstamp-current")
+	// sync: concurrent misses for the same currency wait for a single request
+	@Cacheable(value = "forex-bitcoin-bitstamp-current", sync = true)
 	public ForexDTO getBitstampCurrentRate(ForexCurrency currency) throws BusinessException {
+		return loadBitstampCurrentRate(currency);
+	}
+
+	@Cacheable(value = "forex-bitcoin-coindesk-current", sync = true)
+	public ForexDTO getCoindeskCurrentRate(ForexCurrency currency) throws BusinessException {
+		return loadCoindeskCurrentRate(currency);
+	}
+
+	@Cacheable(value = "forex-bitcoin-coindesk-history", sync = true)
+	public List<ForexDTO> getCoindeskHistoricRates(ForexCurrency currency) throws BusinessException {
+		return loadCoindeskHistoricRates(currency);
+	}
+
+	/**
+	 * Closing prices of one bitcoin from Coindesk for the given days. Not cached, used to fill the rate history.
+	 *
+	 * @param start first day, inclusive
+	 * @param end last day, inclusive
+	 * @return the closing price by day, days without price are missing
+	 */
+	public Map<LocalDate, BigDecimal> getCoindeskHistoricRates(ForexCurrency currency, LocalDate start, LocalDate end)
+		throws BusinessException {
+		if(BTC.equals(currency)) {
+			throw new InvalidForexCurrencyException();
+		}
+
+		String url = COINDESK_HISTORIC_API.replace(PLACEHOLDER, currency.name()) + "&start=" + start + "&end=" + end;
+		try {
+			Map<String, Double> bpi = ServiceUtils.getJson(url, HistoricRangeJsonStructure.class).bpi;
+			Map<LocalDate, BigDecimal> result = new TreeMap<>();
+			if (bpi != null) {
+				for (Map.Entry<String, Double> entry : bpi.entrySet()) {
+					result.put(LocalDate.parse(entry.getKey()), BigDecimal.valueOf(entry.getValue()));
+				}
+			}
+			return result;
+		} catch (Exception ex) {
+			throw new CoinbleskInternalError("Could not fetch the historic rates for " + currency);
+		}
+	}
+
+	private ForexDTO loadBitstampCurrentRate(ForexCurrency currency) throws BusinessException {
 		ForexDTO forexBTCUSD = getBitstampCurrentRateBTCUSD();
 
 		if(BTC.equals(currency)) {
@@ -110,8 +215,7 @@ public class ForexBitcoinService {
 		}
 	}
 
-	@Cacheable("forex-bitcoin-coindesk-current")
-	public ForexDTO getCoindeskCurrentRate(ForexCurrency currency) throws BusinessException {
+	private ForexDTO loadCoindeskCurrentRate(ForexCurrency currency) throws BusinessException {
 		String url = COINDESK_CURRENT_API.replace(PLACEHOLDER, currency.name());
 
 		// BTC <-> BTC conversion is not supported (and not reasonable)
@@ -120,8 +224,7 @@ public class ForexBitcoinService {
 		}
 
 		try {
-			StringBuffer response = ServiceUtils.doHttpRequest(url);
-			CurrentJsonStructure json = DTOUtils.fromJSON(response.toString(), CurrentJsonStructure.class);
+			CurrentJsonStructure json = ServiceUtils.getJson(url, CurrentJsonStructure.class);
 			CurrentJsonStructure.Rate rate = json.bpi.get(currency.name());
 			Date date = json.time.updatedISO;
 
@@ -142,8 +245,7 @@ public class ForexBitcoinService {
 		}
 	}
 
-	@Cacheable(value = "forex-bitcoin-coindesk-history")
-	public List<ForexDTO> getCoindeskHistoricRates(ForexCurrency currency) throws BusinessException {
+	private List<ForexDTO> loadCoindeskHistoricRates(ForexCurrency currency) throws BusinessException {
 		String url = COINDESK_HISTORIC_API.replace(PLACEHOLDER, currency.name());
 
 		// BTC <-> BTC conversion is not supported (and not reasonable)
@@ -152,8 +254,7 @@ public class ForexBitcoinService {
 		}
 
 		try {
-			StringBuffer response = ServiceUtils.doHttpRequest(url);
-			Map<Date, Double> map = DTOUtils.fromJSON(response.toString(), HistoricJsonStructure.class).bpi;
+			Map<Date, Double> map = ServiceUtils.getJson(url, HistoricJsonStructure.class).bpi;
 			List<ForexDTO> result = new ArrayList<>();
 
 			for(Map.Entry<Date, Double> entrySet : map.entrySet()) {
@@ -172,6 +273,16 @@ public class ForexBitcoinService {
 		}
 	}
 
+	private static class FetchedRate {
+		private final ForexDTO forex;
+		private final Instant fetchedAt;
+
+		private FetchedRate(ForexDTO forex, Instant fetchedAt) {
+			this.forex = forex;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
 	private static class CurrentJsonStructure {
 		private Time time;
 		private Map<String, Rate> bpi;
@@ -190,12 +301,9 @@ public class ForexBitcoinService {
 		private Map<Date, Double> bpi;
 	}
 
-	@Scheduled(fixedRate = 60000L) // every minute, the current rate is wiped
-	@CacheEvict(value = { "forex-bitcoin-coindesk-current", "forex-bitcoin-bitstamp-current" }, allEntries = true)
-	public void evictCurrentCache() { }
-
-	@Scheduled(fixedRate = 3600000L) // every hour, the history is wiped
-	@CacheEvict(value = { "forex-bitcoin-coindesk-history" }, allEntries = true)
-	public void evictHistoricCache() { }
+	// Days as ISO dates (yyyy-MM-dd), they are parsed without time zone
+	private static class HistoricRangeJsonStructure {
+		private Map<String, Double> bpi;
+	}
 
 }
@@ -20,11 +20,16 @@ import static java.lang.Boolean.TRUE;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -39,7 +44,6 @@ import com.coinblesk.enumerator.ForexCurrency;
 import com.coinblesk.server.exceptions.BusinessException;
 import com.coinblesk.server.exceptions.CoinbleskInternalError;
 import com.coinblesk.server.exceptions.InvalidForexCurrencyException;
-import com.coinblesk.util.DTOUtils;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 
@@ -67,6 +71,9 @@ final public class ForexFiatService {
 	private final Cache<String, BigDecimal> exchangeRatesCache = CacheBuilder.newBuilder().expireAfterWrite
 		(CACHING_TIME_RATE_MILLIS, TimeUnit.MILLISECONDS).build();
 
+	// Upstream requests in flight by pair
+	private final ConcurrentMap<String, CompletableFuture<BigDecimal>> inFlight = new ConcurrentHashMap<>();
+
 	private final Cache<String, Boolean> exchangeRatesSymbolCache = CacheBuilder.newBuilder().expireAfterWrite
 		(CACHING_TIME_SYMBOL_MILLIS, TimeUnit.MILLISECONDS).build();
 
@@ -97,54 +104,121 @@ final public class ForexFiatService {
 	public Map<String, BigDecimal> getExchangeRates(final String... pairs) throws BusinessException {
 		// mark as used
 		Map<String, BigDecimal> exchangeRates = new HashMap<>(pairs.length);
-		// this empty most of the times:
-		List<String> unknowRates = new ArrayList<>(1);
+		// these are empty most of the times:
+		Map<String, CompletableFuture<BigDecimal>> ownRequests = new HashMap<>(1);
+		Map<String, CompletableFuture<BigDecimal>> otherRequests = new HashMap<>(1);
 		for (String pair : pairs) {
 			exchangeRatesSymbolCache.put(pair, TRUE);
 			BigDecimal exchangeRate = exchangeRatesCache.getIfPresent(pair);
 
-			if (exchangeRate == null) {
-				unknowRates.add(pair);
-			} else {
+			if (exchangeRate != null) {
 				exchangeRates.put(pair, exchangeRate);
+				continue;
+			}
+			// Only one upstream request per pair, concurrent callers wait for the request already in flight
+			CompletableFuture<BigDecimal> request = new CompletableFuture<>();
+			CompletableFuture<BigDecimal> existing = inFlight.putIfAbsent(pair, request);
+			if (existing == null) {
+				ownRequests.put(pair, request);
+			} else {
+				otherRequests.put(pair, existing);
 			}
 		}
 
-		if (!unknowRates.isEmpty()) {
-			String values = String.join("\",\"", unknowRates);
-			String rates = '"' + values + '"';
-			final String url = YAHOO_API.replace(PLACEHOLDER, rates);
+		if (!ownRequests.isEmpty()) {
 			try {
-				final StringBuffer response = ServiceUtils.doHttpRequest(url);
-
-				// gets actual exchange rate out of Json Object and saves it to last.
-				if (unknowRates.size() > 1) {
-					final RootMulti root = DTOUtils.fromJSON(response.toString(), RootMulti.class);
-					for (RootMulti.Query.Results.Rate rate : root.query.results.rate) {
-						if(rate.Rate.equals("N/A")) {
-							throw new InvalidForexCurrencyException();
+				Map<String, BigDecimal> fetched = fetchExchangeRates(ownRequests.keySet(), false);
+				exchangeRates.putAll(fetched);
+				ownRequests.forEach((pair, request) -> request.complete(fetched.get(pair)));
+			} catch (BusinessException | RuntimeException e) {
+				ownRequests.values().forEach(request -> request.completeExceptionally(e));
+				throw e;
+			} finally {
+				ownRequests.forEach(inFlight::remove);
+			}
+		}
+
+		for (Map.Entry<String, CompletableFuture<BigDecimal>> entry : otherRequests.entrySet()) {
+			BigDecimal exchangeRate = await(entry.getValue());
+			if (exchangeRate != null) {
+				exchangeRates.put(entry.getKey(), exchangeRate);
+			}
+		}
+
+		return exchangeRates;
+	}
+
+	/**
+	 * Requests the given pairs in one upstream request, bypassing and updating the cache. Pairs without a rate are
+	 * left out of the result.
+	 *
+	 * @return the rates by pair
+	 */
+	public Map<String, BigDecimal> refreshExchangeRates(Collection<String> pairs) throws BusinessException {
+		return fetchExchangeRates(pairs, true);
+	}
+
+	/**
+	 * Requests the given pairs in one upstream request and caches them.
+	 *
+	 * @param skipUnavailable if false, a pair without rate fails the whole request
+	 */
+	private Map<String, BigDecimal> fetchExchangeRates(Collection<String> pairs, boolean skipUnavailable) throws
+		BusinessException {
+		Map<String, BigDecimal> exchangeRates = new HashMap<>(pairs.size());
+		String values = String.join("\",\"", pairs);
+		String rates = '"' + values + '"';
+		final String url = YAHOO_API.replace(PLACEHOLDER, rates);
+		try {
+			// gets actual exchange rate out of Json Object and saves it to last.
+			if (pairs.size() > 1) {
+				final RootMulti root = ServiceUtils.getJson(url, RootMulti.class);
+				for (RootMulti.Query.Results.Rate rate : root.query.results.rate) {
+					if(rate.Rate.equals("N/A")) {
+						if (skipUnavailable) {
+							continue;
 						}
-						BigDecimal exchangeRate = new BigDecimal(rate.Rate);
-						exchangeRatesCache.put(rate.id, exchangeRate);
-						exchangeRates.put(rate.id, exchangeRate);
-					}
-				} else {
-					final RootSingle root = DTOUtils.fromJSON(response.toString(), RootSingle.class);
-					if(root.query.results.rate.Rate.equals("N/A")) {
 						throw new InvalidForexCurrencyException();
 					}
-					BigDecimal exchangeRate = new BigDecimal(root.query.results.rate.Rate);
-					exchangeRatesCache.put(root.query.results.rate.id, exchangeRate);
-					exchangeRates.put(root.query.results.rate.id, exchangeRate);
+					BigDecimal exchangeRate = new BigDecimal(rate.Rate);
+					exchangeRatesCache.put(rate.id, exchangeRate);
+					exchangeRates.put(rate.id, exchangeRate);
 				}
-			} catch(IOException ex) {
-				throw new CoinbleskInternalError("Could not fetch the forex rates");
+			} else {
+				final RootSingle root = ServiceUtils.getJson(url, RootSingle.class);
+				if(root.query.results.rate.Rate.equals("N/A")) {
+					if (skipUnavailable) {
+						return exchangeRates;
+					}
+					throw new InvalidForexCurrencyException();
+				}
+				BigDecimal exchangeRate = new BigDecimal(root.query.results.rate.Rate);
+				exchangeRatesCache.put(root.query.results.rate.id, exchangeRate);
+				exchangeRates.put(root.query.results.rate.id, exchangeRate);
 			}
+		} catch(IOException ex) {
+			throw new CoinbleskInternalError("Could not fetch the forex rates");
 		}
-
 		return exchangeRates;
 	}
 
+	private static BigDecimal await(CompletableFuture<BigDecimal> request) throws BusinessException {
+		try {
+			return request.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CoinbleskInternalError("Interrupted while waiting for the forex rates");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof BusinessException) {
+				throw (BusinessException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new CoinbleskInternalError("Could not fetch the forex rates");
+		}
+	}
+
 
 	/*-
 	 * minimized JSON representation. Query result looks like:
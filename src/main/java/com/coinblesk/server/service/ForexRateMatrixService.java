@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import static com.coinblesk.enumerator.ForexCurrency.BTC;
+import static com.coinblesk.enumerator.ForexCurrency.USD;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.coinblesk.dto.ForexDTO;
+import com.coinblesk.enumerator.ForexCurrency;
+import com.coinblesk.server.config.AppConfig;
+
+/**
+ * Exchange rates between all {@link ForexCurrency} values, including BTC, computed in the background.
+ *
+ * All fiat rates against USD are fetched in one request and combined with the BTC/USD rate of
+ * {@link ForexBitcoinService#getCachedRateBTCUSD()} into a matrix of cross rates. The matrix is immutable and
+ * replaced as a whole, so a lookup is an array access and all rates of a lookup belong to the same snapshot. Every
+ * rate against USD keeps the time it was fetched, so rates that are reused after a failed fetch still age.
+ */
+@Service
+public class ForexRateMatrixService {
+
+	private final static Logger LOG = LoggerFactory.getLogger(ForexRateMatrixService.class);
+
+	private final ForexFiatService forexFiatService;
+	private final ForexBitcoinService forexBitcoinService;
+	private final AppConfig appConfig;
+
+	// null until the first refresh
+	private volatile Matrix matrix;
+
+	@Autowired
+	public ForexRateMatrixService(ForexFiatService forexFiatService, ForexBitcoinService forexBitcoinService,
+		AppConfig appConfig) {
+		this.forexFiatService = forexFiatService;
+		this.forexBitcoinService = forexBitcoinService;
+		this.appConfig = appConfig;
+	}
+
+	@Scheduled(fixedDelayString = "${coinblesk.forex.matrixRefreshInterval}000")
+	public void refresh() {
+		final ForexCurrency[] currencies = ForexCurrency.values();
+		final Instant now = Instant.now();
+
+		// Rate of 1 USD in each currency and the time it was fetched, null if unknown
+		final BigDecimal[] fromUSD = new BigDecimal[currencies.length];
+		final Instant[] fetchedAt = new Instant[currencies.length];
+		fromUSD[USD.ordinal()] = BigDecimal.ONE;
+		fetchedAt[USD.ordinal()] = now;
+
+		final List<String> pairs = new ArrayList<>(currencies.length);
+		for (ForexCurrency currency : currencies) {
+			if (!BTC.equals(currency) && !USD.equals(currency)) {
+				pairs.add(USD.name() + currency.name());
+			}
+		}
+		try {
+			final Map<String, BigDecimal> rates = forexFiatService.refreshExchangeRates(pairs);
+			for (ForexCurrency currency : currencies) {
+				final BigDecimal rate = rates.get(USD.name() + currency.name());
+				if (rate != null && rate.signum() > 0) {
+					fromUSD[currency.ordinal()] = rate;
+					fetchedAt[currency.ordinal()] = now;
+				}
+			}
+		} catch (Exception e) {
+			LOG.warn("Could not fetch the fiat rates for the forex matrix: {}", e.getMessage());
+			// Keep the fiat rates of the previous matrix with the time they were fetched, only BTC is updated
+			final Matrix previous = matrix;
+			if (previous != null) {
+				for (ForexCurrency currency : currencies) {
+					if (!BTC.equals(currency) && !USD.equals(currency) && previous.fromUSD[currency.ordinal()]
+						!= null) {
+						fromUSD[currency.ordinal()] = previous.fromUSD[currency.ordinal()];
+						fetchedAt[currency.ordinal()] = previous.fetchedAt[currency.ordinal()];
+					}
+				}
+			}
+		}
+
+		try {
+			final ForexDTO btcUSD = forexBitcoinService.getCachedRateBTCUSD();
+			fromUSD[BTC.ordinal()] = BigDecimal.ONE.divide(btcUSD.getRate(), MathContext.DECIMAL64);
+			fetchedAt[BTC.ordinal()] = btcUSD.getUpdatedAt() == null ? now : btcUSD.getUpdatedAt().toInstant();
+		} catch (RuntimeException e) {
+			LOG.warn("No BTC/USD rate for the forex matrix: {}", e.getMessage());
+		}
+
+		final BigDecimal[][] rates = new BigDecimal[currencies.length][currencies.length];
+		for (int from = 0; from < currencies.length; from++) {
+			for (int to = 0; to < currencies.length; to++) {
+				if (fromUSD[from] != null && fromUSD[to] != null) {
+					rates[from][to] = from == to ? BigDecimal.ONE : fromUSD[to].divide(fromUSD[from],
+						MathContext.DECIMAL64);
+				}
+			}
+		}
+		matrix = new Matrix(rates, fromUSD, fetchedAt);
+	}
+
+	/**
+	 * @return the rate of 1 unit of from in to, with the time the older of both rates against USD was fetched as
+	 *         updatedAt, or null if the rate is not known or older than coinblesk.forex.maximumRateAge
+	 */
+	@Nullable
+	public ForexDTO getRate(ForexCurrency from, ForexCurrency to) {
+		final Matrix current = matrix;
+		if (current == null) {
+			return null;
+		}
+		final BigDecimal rate = current.rates[from.ordinal()][to.ordinal()];
+		if (rate == null) {
+			return null;
+		}
+		final Instant fromFetchedAt = current.fetchedAt[from.ordinal()];
+		final Instant toFetchedAt = current.fetchedAt[to.ordinal()];
+		final Instant updatedAt = fromFetchedAt.isBefore(toFetchedAt) ? fromFetchedAt : toFetchedAt;
+		if (Duration.between(updatedAt, Instant.now()).getSeconds() > appConfig.getMaximumForexRateAge()) {
+			return null;
+		}
+
+		final ForexDTO forex = new ForexDTO();
+		forex.setCurrencyFrom(from);
+		forex.setCurrencyTo(to);
+		forex.setRate(rate);
+		forex.setUpdatedAt(Date.from(updatedAt));
+		return forex;
+	}
+
+	private static class Matrix {
+		// rates[from.ordinal()][to.ordinal()], null if unknown
+		private final BigDecimal[][] rates;
+		// Rate of 1 USD in each currency and the time it was fetched, null if unknown
+		private final BigDecimal[] fromUSD;
+		private final Instant[] fetchedAt;
+
+		private Matrix(BigDecimal[][] rates, BigDecimal[] fromUSD, Instant[] fetchedAt) {
+			this.rates = rates;
+			this.fromUSD = fromUSD;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.dao.MailOutboxRepository;
+import com.coinblesk.server.entity.MailOutbox;
+
+/**
+ * Persistent outbox for emails, sent by background threads.
+ *
+ * {@link #enqueue(String, String, String, String)} only inserts a row, in the transaction of the caller if there is
+ * one, so a mail is sent if and only if the caller commits. Sender threads claim due mails in batches of
+ * coinblesk.mail.batchSize and send each batch over a single SMTP connection. A mail that could not be sent is
+ * retried with exponential backoff, starting at coinblesk.mail.retryDelaySeconds, and marked as failed after
+ * coinblesk.mail.maxAttempts attempts. Claiming a mail is a conditional update, so several threads or servers can
+ * share the outbox without sending a mail twice.
+ */
+@Service
+public class MailOutboxService {
+
+	private final static Logger LOG = LoggerFactory.getLogger(MailOutboxService.class);
+
+	// A claimed mail is retried after this time if its sender died while sending
+	private final static long LEASE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	private final static long MAX_RETRY_DELAY_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private final MailOutboxRepository mailOutboxRepository;
+	private final JavaMailSender mailSender;
+	private final AppConfig appConfig;
+	private final TransactionTemplate transactionTemplate;
+
+	@Value("${email.enabled}")
+	private boolean enabled;
+
+	private final Object wakeUp = new Object();
+	private final List<Thread> senders = new ArrayList<>();
+	private volatile boolean running;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+
+	@Autowired
+	public MailOutboxService(MailOutboxRepository mailOutboxRepository, JavaMailSender mailSender, AppConfig
+		appConfig, PlatformTransactionManager transactionManager) {
+		this.mailOutboxRepository = mailOutboxRepository;
+		this.mailSender = mailSender;
+		this.appConfig = appConfig;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+	}
+
+	@PostConstruct
+	public void init() {
+		if (!enabled) {
+			LOG.info("Sending mail is disabled, not starting the mail senders");
+			return;
+		}
+		running = true;
+		for (int i = 0; i < appConfig.getMailSenderThreads(); i++) {
+			final Thread sender = new Thread(this::run, "mail-sender-" + (i + 1));
+			sender.setDaemon(true);
+			sender.start();
+			senders.add(sender);
+		}
+	}
+
+	/**
+	 * Stores the mail in the outbox and returns without contacting the mail server.
+	 */
+	public void enqueue(String sender, String recipient, String subject, String text) {
+		final Date now = new Date();
+		final MailOutbox mail = new MailOutbox();
+		mail.setSender(sender);
+		mail.setRecipient(recipient);
+		mail.setSubject(subject);
+		mail.setText(text);
+		mail.setCreatedAt(now);
+		mail.setNextAttemptAt(now);
+		mailOutboxRepository.save(mail);
+
+		// The senders can only see the mail once it is committed
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					wakeUpSenders();
+				}
+			});
+		} else {
+			wakeUpSenders();
+		}
+	}
+
+	/**
+	 * Claims the due mails, at most one batch, and sends them over one connection.
+	 *
+	 * @return the number of mails claimed
+	 */
+	public int sendDue() {
+		final List<MailOutbox> batch = transactionTemplate.execute(status -> claimDue());
+		if (batch.isEmpty()) {
+			return 0;
+		}
+
+		final Map<MimeMessage, MailOutbox> messages = new IdentityHashMap<>();
+		final Map<MailOutbox, String> errors = new IdentityHashMap<>();
+		for (MailOutbox mail : batch) {
+			try {
+				messages.put(toMimeMessage(mail), mail);
+			} catch (MessagingException e) {
+				errors.put(mail, e.getMessage());
+			}
+		}
+
+		if (!messages.isEmpty()) {
+			try {
+				mailSender.send(messages.keySet().toArray(new MimeMessage[messages.size()]));
+			} catch (MailSendException e) {
+				// Only the listed messages failed, the others were sent
+				final Map<Object, Exception> failed = e.getFailedMessages();
+				if (failed.isEmpty()) {
+					messages.values().forEach(mail -> errors.put(mail, e.getMessage()));
+				}
+				failed.forEach((message, cause) -> {
+					final MailOutbox mail = messages.get(message);
+					if (mail != null) {
+						errors.put(mail, cause.getMessage());
+					}
+				});
+			} catch (MailException e) {
+				messages.values().forEach(mail -> errors.put(mail, e.getMessage()));
+			}
+		}
+
+		transactionTemplate.execute(status -> {
+			for (MailOutbox mail : batch) {
+				if (errors.containsKey(mail)) {
+					retryLater(mail, errors.get(mail));
+				} else {
+					mailOutboxRepository.delete(mail.getId());
+					sent.incrementAndGet();
+				}
+			}
+			return null;
+		});
+		return batch.size();
+	}
+
+	public long getPendingCount() {
+		return mailOutboxRepository.countByFailed(false);
+	}
+
+	public long getFailedCount() {
+		return mailOutboxRepository.countByFailed(true);
+	}
+
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	public long getRetryCount() {
+		return retried.get();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		running = false;
+		senders.forEach(Thread::interrupt);
+		// Mails that are not sent yet stay in the outbox for the next start
+	}
+
+	private void run() {
+		final int batchSize = appConfig.getMailBatchSize();
+		while (running) {
+			try {
+				// A full batch means there may be more, otherwise wait for new mails or the next poll
+				if (sendDue() < batchSize) {
+					synchronized (wakeUp) {
+						wakeUp.wait(appConfig.getMailPollIntervalMillis());
+					}
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (RuntimeException e) {
+				LOG.error("Unexpected error while sending mails", e);
+				try {
+					Thread.sleep(appConfig.getMailPollIntervalMillis());
+				} catch (InterruptedException ie) {
+					break;
+				}
+			}
+		}
+	}
+
+	private List<MailOutbox> claimDue() {
+		final Date now = new Date();
+		final Date leaseUntil = new Date(now.getTime() + LEASE_MILLIS);
+		final List<MailOutbox> due = mailOutboxRepository.findDue(now, new PageRequest(0, appConfig
+			.getMailBatchSize()));
+		if (due.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		final List<MailOutbox> claimed = new ArrayList<>(due.size());
+		for (MailOutbox mail : due) {
+			if (mailOutboxRepository.claim(mail.getId(), mail.getAttempts(), leaseUntil) == 1) {
+				mail.setAttempts(mail.getAttempts() + 1);
+				mail.setNextAttemptAt(leaseUntil);
+				claimed.add(mail);
+			}
+		}
+		return claimed;
+	}
+
+	private void retryLater(MailOutbox mail, String error) {
+		mail.setLastError(error == null ? null : error.substring(0, Math.min(error.length(), 1000)));
+		if (mail.getAttempts() >= appConfig.getMailMaxAttempts()) {
+			mail.setFailed(true);
+			LOG.error("Giving up on mail {} to {} after {} attempts: {}", mail.getId(), mail.getRecipient(), mail
+				.getAttempts(), error);
+		} else {
+			final long delay = Math.min(TimeUnit.SECONDS.toMillis(appConfig.getMailRetryDelaySeconds()) << Math.min(
+				mail.getAttempts() - 1, 20), MAX_RETRY_DELAY_MILLIS);
+			mail.setNextAttemptAt(new Date(System.currentTimeMillis() + delay));
+			retried.incrementAndGet();
+			LOG.warn("Could not send mail {} to {}, attempt {}, retrying in {}s: {}", mail.getId(), mail
+				.getRecipient(), mail.getAttempts(), delay / 1000, error);
+		}
+		mailOutboxRepository.save(mail);
+	}
+
+	private MimeMessage toMimeMessage(MailOutbox mail) throws MessagingException {
+		final MimeMessage message = mailSender.createMimeMessage();
+		final MimeMessageHelper helper = new MimeMessageHelper(message, "UTF-8");
+		helper.setFrom(mail.getSender());
+		helper.setTo(mail.getRecipient());
+		helper.setSubject(mail.getSubject());
+		helper.setText(mail.getText());
+		return message;
+	}
+
+	private void wakeUpSenders() {
+		synchronized (wakeUp) {
+			wakeUp.notifyAll();
+		}
+	}
+}
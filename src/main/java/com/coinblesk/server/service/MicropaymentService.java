@@ -11,8 +11,11 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -20,11 +23,14 @@ import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 import javax.annotation.Nullable;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Transaction.SigHash;
 import org.bitcoinj.core.TransactionConfidence;
@@ -43,7 +49,10 @@ import org.springframework.retry.annotation.Retryable;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import com.coinblesk.server.config.AppConfig;
 import com.coinblesk.server.dao.AccountRepository;
@@ -52,6 +61,7 @@ import com.coinblesk.server.entity.Account;
 import com.coinblesk.server.entity.TimeLockedAddressEntity;
 import com.coinblesk.server.enumerator.EventType;
 import com.coinblesk.server.exceptions.BusinessException;
+import com.coinblesk.server.exceptions.CoinbleskInternalError;
 import com.coinblesk.server.exceptions.InvalidAmountException;
 import com.coinblesk.server.exceptions.InvalidNonceException;
 import com.coinblesk.server.exceptions.InvalidRequestException;
@@ -75,11 +85,20 @@ public class MicropaymentService {
 	private final AccountService accountService;
 	private final FeeService feeService;
 	private final ForexBitcoinService forexService;
+	private final VirtualLedgerService virtualLedgerService;
+	private final EntityManager entityManager;
+	private final ChannelTransactionCache channelTransactionCache;
+	private final ServerBalanceTotals serverBalanceTotals;
+
+	// Tracking hash of the channel transaction -> id of the locked account waiting for it to be mined
+	private final Map<Sha256Hash, Long> pendingChannels = new ConcurrentHashMap<>();
 
 	@Autowired
 	public MicropaymentService(AccountRepository accountRepository, TimeLockedAddressRepository
 		timeLockedAddressRepository, AppConfig appConfig, EventService eventService, WalletService walletService,
-							   AccountService accountService, FeeService feeService, ForexBitcoinService forexService) {
+							   AccountService accountService, FeeService feeService, ForexBitcoinService forexService,
+							   VirtualLedgerService virtualLedgerService, EntityManager entityManager,
+							   ChannelTransactionCache channelTransactionCache, ServerBalanceTotals serverBalanceTotals) {
 		this.accountRepository = accountRepository;
 		this.timeLockedAddressRepository = timeLockedAddressRepository;
 		this.appConfig = appConfig;
@@ -88,7 +107,12 @@ public class MicropaymentService {
 		this.accountService = accountService;
 		this.feeService = feeService;
 		this.forexService = forexService;
+		this.virtualLedgerService = virtualLedgerService;
+		this.entityManager = entityManager;
+		this.channelTransactionCache = channelTransactionCache;
+		this.serverBalanceTotals = serverBalanceTotals;
 
+		loadPendingChannels();
 		unlockAccountsOnMinedChannelTransactions();
 	}
 
@@ -98,18 +122,33 @@ public class MicropaymentService {
 	 * These can be used to sign the resulting information.
 	 */
 	@Data
-	public class VirtualPaymentResult {
+	public static class VirtualPaymentResult {
 		private final long newBalanceSender;
 		private final byte[] serverPrivateKeyForSender;
 		private final long newBalanceReceiver;
 		private final byte[] serverPrivateKeyForReceiver;
 	}
 
-	@Transactional(isolation = Isolation.SERIALIZABLE)
+	@Transactional(isolation = Isolation.READ_COMMITTED)
 	@Retryable(value = TransientDataAccessException.class, maxAttempts = 5)
 	public VirtualPaymentResult virtualPayment(@NonNull ECKey keySender, @NonNull ECKey keyReceiver, long amount, long
 		requestNonce) throws InvalidNonceException, UserNotFoundException, InvalidAmountException, InsufficientFunds,
 		InvalidRequestException {
+		lockForPayment(keySender.getPubKey(), keyReceiver.getPubKey());
+		return applyVirtualPayment(keySender, keyReceiver, amount, requestNonce);
+	}
+
+	/**
+	 * Performs a virtual payment within the transaction of the caller. All checks are done before any account is
+	 * changed, so a payment that fails with a checked exception leaves the transaction untouched and other payments
+	 * in the same transaction can still be committed.
+	 *
+	 * The caller must have locked the sender, see {@link #lockAccounts(byte[]...)}.
+	 */
+	@Transactional(propagation = Propagation.MANDATORY)
+	public VirtualPaymentResult applyVirtualPayment(@NonNull ECKey keySender, @NonNull ECKey keyReceiver, long amount,
+		long requestNonce) throws InvalidNonceException, UserNotFoundException, InvalidAmountException,
+		InsufficientFunds, InvalidRequestException {
 
 		// Sender and receiver must be different entities
 		if (keySender.getPublicKeyAsHex().equals(keyReceiver.getPublicKeyAsHex()))
@@ -142,21 +181,75 @@ public class MicropaymentService {
 
 		// Do the transfer
 		final long senderOldBalance = sender.virtualBalance();
-		final long receiverOldBalance = receiver.virtualBalance();
 		sender.virtualBalance(senderOldBalance - amount);
-		receiver.virtualBalance(receiverOldBalance + amount);
 
 		// Guarantee that this request is only processed once
 		sender.nonce(requestNonce);
 
 		accountRepository.save(sender);
-		accountRepository.save(receiver);
+		creditVirtualBalance(receiver, amount);
 
 		// Return the new balances and the keys for sender and receiver that can be used for signing
 		return new VirtualPaymentResult(sender.virtualBalance(), sender.serverPrivateKey(), receiver.virtualBalance(),
 			receiver.serverPrivateKey());
 	}
 
+	/**
+	 * Locks the sender of a payment for the rest of the transaction and loads its current state. Accounts are
+	 * always locked in ascending id order. The receiver is normally only locked by the UPDATE in
+	 * {@link #creditVirtualBalance(Account, long)} at the very end of the payment, which keeps incoming payments of a
+	 * busy receiver from waiting on each other. Only if the receiver has the lower id it has to be locked before the
+	 * sender. Unknown keys are ignored, the caller reports them.
+	 */
+	private void lockForPayment(byte[] senderPublicKey, @Nullable byte[] receiverPublicKey) {
+		final Long senderId = accountRepository.findIdByClientPublicKey(senderPublicKey);
+		if (senderId == null)
+			return;
+
+		final Long receiverId = receiverPublicKey == null ? null : accountRepository.findIdByClientPublicKey
+			(receiverPublicKey);
+		if (receiverId != null && receiverId < senderId)
+			lockAndRefresh(receiverId);
+		lockAndRefresh(senderId);
+	}
+
+	/**
+	 * Locks the account until the end of the transaction and reloads it. The caller may already have loaded the
+	 * account in the same transaction, e.g. through its user account, and a locking find would only lock that
+	 * instance without reloading it, so the balance and nonce checked afterwards could be older than the lock.
+	 * Changes of the caller that are not flushed yet are written first, so the reload does not discard them.
+	 *
+	 * @return the locked account, or null if it was deleted
+	 */
+	@Nullable
+	private Account lockAndRefresh(long id) {
+		final Account account = entityManager.find(Account.class, id);
+		if (account == null)
+			return null;
+		entityManager.flush();
+		entityManager.refresh(account, LockModeType.PESSIMISTIC_WRITE);
+		return account;
+	}
+
+	/**
+	 * Adds the amount to the virtual balance of the account with a single UPDATE instead of writing back the whole
+	 * row, and refreshes the entity with the new balance.
+	 */
+	private void creditVirtualBalance(Account account, long amount) {
+		if (accountRepository.addToVirtualBalance(account.getId(), amount) != 1)
+			throw new CoinbleskInternalError("Account " + account.getId() + " was deleted during the payment");
+		entityManager.refresh(account);
+	}
+
+	/**
+	 * Locks the accounts with the given client public keys until the end of the current transaction. The rows are
+	 * locked with a single SELECT ... FOR UPDATE in ascending id order, the same order every payment uses, so two
+	 * payments touching the same accounts wait for each other instead of deadlocking. Unknown keys are ignored.
+	 */
+	public void lockAccounts(byte[]... clientPublicKeys) {
+		accountRepository.findByClientPublicKeyInOrderByIdAsc(Arrays.asList(clientPublicKeys));
+	}
+
 	// Represents a successful micro payment
 	public static class MicroPaymentResult {
 		public ECKey privateKeyServer;
@@ -164,7 +257,7 @@ public class MicropaymentService {
 		public Transaction broadcastedTx; // Non-null if the channel was closed
 	}
 
-	@Transactional(isolation = Isolation.SERIALIZABLE)
+	@Transactional(isolation = Isolation.READ_COMMITTED)
 	public MicroPaymentResult microPayment(ECKey senderPublicKey, String receiverPublicKey, String txInHex, Long
 		amount, Long nonce) throws Exception {
 
@@ -173,6 +266,10 @@ public class MicropaymentService {
 		Transaction tx = new Transaction(appConfig.getNetworkParameters(), txInBytes);
 		tx.verify(); // Checks for no input or outputs and no negative values.
 
+		// Lock the sender before anything is read from the account
+		lockForPayment(senderPublicKey.getPubKey(), receiverPublicKey.isEmpty() ? null : DTOUtils
+			.getECKeyFromHexPublicKey(receiverPublicKey).getPubKey());
+
 		// Check account for locked and nonce
 		Account accountSender = accountService.getByClientPublicKey(senderPublicKey.getPubKey());
 		if (accountSender == null) {
@@ -181,7 +278,9 @@ public class MicropaymentService {
 		if (accountSender.isLocked()) {
 			throw new RuntimeException("Channel is locked");
 		}
-		if (nonce <= accountSender.nonce()) {
+		// The ledger may hold a newer nonce from a virtual payment
+		if (virtualLedgerService.isEnabled() ? !virtualLedgerService.useNonce(accountSender, nonce) : nonce <=
+			accountSender.nonce()) {
 			throw new RuntimeException("Invalid nonce");
 		}
 
@@ -190,18 +289,24 @@ public class MicropaymentService {
 
 		// Amount given to server must be equal to last channel or higher
 		final ECKey serverPubKey = appConfig.getMicroPaymentPotPrivKey();
-		final Coin amountToServer = getOutputForP2PK(txInBytes, serverPubKey);
-		final Coin actualAmountSent = amountToServer.minus(
-			getOutputForP2PK(accountSender.getChannelTransaction(), serverPubKey));
+		final Coin amountToServer = getOutputForP2PK(tx, serverPubKey);
+		final Coin actualAmountSent = amountToServer.minus(accountSender.getChannelTransaction() == null ? Coin.ZERO :
+			channelTransactionCache.get(accountSender.getChannelTransaction()).getServerOutputTotal());
 		if (actualAmountSent.isNegative())
 			throw new RuntimeException("Amount to server must more than in open channel.");
 
+		final Coin previousChannelValue = getPendingChannelValue(accountSender);
+
 		if (amount.equals(0L) && receiverPublicKey.equals("")) { // External payment
+			channelTransactionCache.evict(accountSender.getChannelTransaction());
 			accountSender
 				.nonce(nonce)
 				.channelTransaction(tx.bitcoinSerialize())
+				.channelTrackingHash(CoinUtils.trackingHash(tx).getBytes())
 				.broadcastBefore(Instant.now().getEpochSecond());
 			accountRepository.save(accountSender);
+			serverBalanceTotals.addPendingChannelValue(getPendingChannelValue(accountSender).subtract
+				(previousChannelValue).getValue());
 
 			closeMicroPaymentChannel(senderPublicKey);
 
@@ -221,7 +326,7 @@ public class MicropaymentService {
 					" given");
 			}
 
-			final BigDecimal btc_usd = forexService.getBitstampCurrentRateBTCUSD().getRate();
+			final BigDecimal btc_usd = forexService.getCachedRateBTCUSD().getRate();
 			final long channelAmountInUSD = btc_usd.divide(new BigDecimal(100000000))
 				.multiply(new BigDecimal(amountToServer.getValue())).longValue();
 			if (channelAmountInUSD > appConfig.getMaximumChannelAmountUSD()) {
@@ -240,13 +345,23 @@ public class MicropaymentService {
 			}
 
 			// Execute micro payment
+			channelTransactionCache.evict(accountSender.getChannelTransaction());
 			accountSender
 				.nonce(nonce)
 				.channelTransaction(tx.bitcoinSerialize())
+				.channelTrackingHash(CoinUtils.trackingHash(tx).getBytes())
 				.broadcastBefore(broadcastBefore);
-			final long newAmountReceiver = accountReceiver.virtualBalance() + actualAmountSent.getValue();
-			accountReceiver
-				.virtualBalance(newAmountReceiver);
+			final long newAmountReceiver;
+			if (virtualLedgerService.isEnabled()) {
+				newAmountReceiver = virtualLedgerService.credit(accountReceiver.clientPublicKey(), actualAmountSent
+					.getValue());
+			} else {
+				creditVirtualBalance(accountReceiver, actualAmountSent.getValue());
+				newAmountReceiver = accountReceiver.virtualBalance();
+			}
+			serverBalanceTotals.addPendingChannelValue(getPendingChannelValue(accountSender).subtract
+				(previousChannelValue).getValue());
+			serverBalanceTotals.addVirtualBalances(actualAmountSent.getValue());
 
 			MicroPaymentResult res = new MicroPaymentResult();
 			res.newBalanceReceiver = newAmountReceiver;
@@ -335,16 +450,20 @@ public class MicropaymentService {
 		public long valuePaidOut;
 		public String transaction;
 	}
-	@Transactional(isolation = Isolation.SERIALIZABLE)
+	// Roll back on checked exceptions as well, so that a balance withdrawn from the virtual ledger is restored.
+	@Transactional(isolation = Isolation.READ_COMMITTED, rollbackFor = Exception.class)
 	public PayoutResponse payOutVirtualBalance(ECKey accountOwner, String addressAsString) throws UserNotFoundException,
 		InsufficientMoneyException, IOException, BusinessException, InsufficientFunds {
 		final Address toAddress = Address.fromBase58(appConfig.getNetworkParameters(), addressAsString);
 
-		final Account account = accountService.getByClientPublicKey(accountOwner.getPubKey());
+		final Long accountId = accountRepository.findIdByClientPublicKey(accountOwner.getPubKey());
+		final Account account = accountId == null ? null : lockAndRefresh(accountId);
 		if (account == null)
 			throw new UserNotFoundException(accountOwner.getPublicKeyAsHex());
 
-		final Coin virtualBalance = Coin.valueOf(account.virtualBalance());
+		// The virtual ledger hands out the whole balance at once, so it cannot be spent while the payout is prepared
+		final Coin virtualBalance = Coin.valueOf(virtualLedgerService.isEnabled() ? virtualLedgerService
+			.withdrawAll(account.clientPublicKey()) : account.virtualBalance());
 		if (!virtualBalance.isPositive())
 			throw new InsufficientFunds();
 
@@ -353,6 +472,9 @@ public class MicropaymentService {
 		if (potValue.isLessThan(virtualBalance)) {
 			eventService.warn(MICRO_PAYMENT_POT_EXHAUSTED, "Not enough coin in pot. " + virtualBalance + " needed " +
 			"but only " + potValue + " available.");
+			if (virtualLedgerService.isEnabled()) {
+				virtualLedgerService.credit(account.clientPublicKey(), virtualBalance.getValue());
+			}
 			return new PayoutResponse();
 		}
 
@@ -375,8 +497,11 @@ public class MicropaymentService {
 
 		// At this point we must consider the coins to be gone, even in case of failure as it has been transmitted
 		// to the broadcaster.
-		account.virtualBalance(0L);
-		accountRepository.save(account);
+		if (!virtualLedgerService.isEnabled()) {
+			account.virtualBalance(0L);
+			accountRepository.save(account);
+		}
+		serverBalanceTotals.addVirtualBalances(-virtualBalance.getValue());
 
 		// Wait for actual broadcast to succeed
 		Transaction broadcastedTx;
@@ -413,10 +538,13 @@ public class MicropaymentService {
 
 		account
 		 	.locked(true)
+			.channelTrackingHash(trackingHashOf(account).getBytes())
 			.broadcastBefore(Instant.now().getEpochSecond());
 		accountRepository.save(account);
+		trackPendingChannel(trackingHashOf(account), account.getId());
 
-		Transaction tx = new Transaction(appConfig.getNetworkParameters(), account.getChannelTransaction());
+		// Not taken from the cache, the wallet takes ownership of the broadcast transaction
+		Transaction tx = channelTransactionCache.parse(account.getChannelTransaction());
 
 		final String txAsString = DTOUtils.toHex(tx.bitcoinSerialize());
 		final String logString = "Closing channel for "
@@ -447,11 +575,65 @@ public class MicropaymentService {
 	}
 
 	@Transactional()
-	private void unlockAccount(ECKey accountPublicKey) {
-		Account account = accountRepository.findByClientPublicKey(accountPublicKey.getPubKey())
+	private void unlockAccount(long accountId, Sha256Hash trackingHash) {
+		pendingChannels.remove(trackingHash);
+		Account account = accountRepository.findOne(accountId);
+		// The account might have been deleted or unlocked in the meantime
+		if (account == null || !account.isLocked() || !trackingHash.equals(trackingHashOf(account)))
+			return;
+		final Coin channelValue = getPendingChannelValue(account);
+		channelTransactionCache.evict(account.getChannelTransaction());
+		account
 			.channelTransaction(null)
+			.channelTrackingHash(null)
 			.locked(false);
 		accountRepository.save(account);
+		serverBalanceTotals.addPendingChannelValue(-channelValue.getValue());
+	}
+
+	/**
+	 * Adds the locked account to {@link #pendingChannels} once the transaction that locked it committed, so a
+	 * rolled back close does not leave an entry behind.
+	 */
+	private void trackPendingChannel(Sha256Hash trackingHash, long accountId) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			pendingChannels.put(trackingHash, accountId);
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				pendingChannels.put(trackingHash, accountId);
+			}
+		});
+	}
+
+	/**
+	 * Tracking hash of the channel transaction of the account, or null if there is no channel transaction.
+	 * Accounts that stored their channel transaction before the CHANNEL_TRACKING_HASH column existed get it
+	 * computed from the transaction.
+	 */
+	@Nullable
+	private Sha256Hash trackingHashOf(Account account) {
+		if (account.getChannelTrackingHash() != null)
+			return Sha256Hash.wrap(account.getChannelTrackingHash());
+		if (account.getChannelTransaction() == null)
+			return null;
+		return channelTransactionCache.get(account.getChannelTransaction()).getTrackingHash();
+	}
+
+	/**
+	 * Fills {@link #pendingChannels} with the accounts that were locked before the last shutdown.
+	 */
+	private void loadPendingChannels() {
+		for (Account account : accountService.getPendingAccounts()) {
+			final Sha256Hash trackingHash = trackingHashOf(account);
+			if (trackingHash == null)
+				continue;
+			if (account.getChannelTrackingHash() == null)
+				accountRepository.save(account.channelTrackingHash(trackingHash.getBytes()));
+			pendingChannels.put(trackingHash, account.getId());
+		}
 	}
 
 	@Scheduled(fixedDelayString = "${coinblesk.closeSchedulerInterval}000")
@@ -478,33 +660,14 @@ public class MicropaymentService {
 	public Coin getPendingChannelValue(Account account) {
 		if (account.getChannelTransaction() == null)
 			return Coin.ZERO;
-		Transaction tx = new Transaction(appConfig.getNetworkParameters(), account.getChannelTransaction());
-		Address serverAddress = appConfig.getMicroPaymentPotPrivKey().toAddress(appConfig.getNetworkParameters());
-		return tx.getOutputs().stream()
-			.filter(out -> Objects.equals(out.getAddressFromP2PKHScript(appConfig.getNetworkParameters()), serverAddress))
-			.findFirst()
-			.map(TransactionOutput::getValue)
-			.orElse(Coin.ZERO);
+		return channelTransactionCache.get(account.getChannelTransaction()).getServerOutputValue();
 	}
 
 	public Coin getPendingChannelFees(Account account) {
 		if (account.getChannelTransaction() == null) {
 			return Coin.ZERO;
 		}
-		Transaction tx = new Transaction(appConfig.getNetworkParameters(), account.getChannelTransaction());
-
-		long inputSum = 0L;
-		long outputSum = 0L;
-
-		for(TransactionInput in : tx.getInputs()) {
-			inputSum += walletService.findOutputFor(in).getValue().longValue();
-		}
-
-		for(TransactionOutput out : tx.getOutputs()) {
-			outputSum += out.getValue().longValue();
-		}
-
-		return Coin.valueOf(inputSum - outputSum);
+		return channelTransactionCache.get(account.getChannelTransaction()).getFee();
 	}
 
 	public Coin getMicroPaymentPotValue() {
@@ -540,31 +703,16 @@ public class MicropaymentService {
 			if (tx.getConfidence().getDepthInBlocks() >= appConfig.getMinConf()) {
 				// Check for mined micro payment transactions and unlock account if the pending transaction
 				// is seen in a block at least {bitcoin.minconf} deep.
-				accountService.getPendingAccounts().stream().filter(account -> {
-					Transaction pending = new Transaction(appConfig.getNetworkParameters(),
-						account.getChannelTransaction());
-					// Use of tracking hash to avoid malleability issues. TxID might have changed since broadcasting.
-					return CoinUtils.trackingHash(tx).equals(CoinUtils.trackingHash(pending));
-				}).findAny().ifPresent(account -> {
-					this.unlockAccount(ECKey.fromPublicOnly(account.clientPublicKey()));
-				});
+				// Use of tracking hash to avoid malleability issues. TxID might have changed since broadcasting.
+				final Sha256Hash trackingHash = CoinUtils.trackingHash(tx);
+				final Long accountId = pendingChannels.get(trackingHash);
+				if (accountId != null) {
+					this.unlockAccount(accountId, trackingHash);
+				}
 			}
 		});
 	}
 
-	/***
-	 * Finds value of the outputs for the given public key in the transaction.
-	 * @param txBytes The serialized transaction or null
-	 * @param publicKey The public key of the address
-	 * @return Coin value of the sum of outputs that match or Coin.ZERO if none found, or txBytes is null
-	 */
-	private Coin getOutputForP2PK(@Nullable byte[] txBytes, ECKey publicKey) {
-		if (txBytes == null)
-			return Coin.ZERO;
-		final Transaction tx = new Transaction(appConfig.getNetworkParameters(), txBytes);
-		return getOutputForP2PK(tx, publicKey);
-	}
-
 	/***
 	 * Finds value of first output for the given public key in the transaction.
 	 * @param tx The transaction to search
@@ -2,30 +2,67 @@ package com.coinblesk.server.service;
 
 import static com.coinblesk.server.enumerator.EventType.SERVER_BALANCE_NOT_IN_SYNC;
 
+import java.time.Duration;
+import java.time.Instant;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import com.coinblesk.dto.ServerBalanceDTO;
+import com.coinblesk.server.config.AppConfig;
 
 @Service
 public class ServerBalanceService {
 
+	private final static Logger LOG = LoggerFactory.getLogger(ServerBalanceService.class);
+
 	private final MicropaymentService microPaymentService;
 	private final AccountService accountService;
 	private final ServerPotBaselineService serverPotBaselineService;
 	private final EventService eventService;
+	private final VirtualLedgerService virtualLedgerService;
+	private final ServerBalanceTotals serverBalanceTotals;
+	private final WalletService walletService;
+	private final AppConfig appConfig;
+
+	// The pot value only changes with the wallet, it is recomputed after the wallet changed
+	private volatile boolean potValueStale = true;
+	private volatile long potValue;
+	private volatile Instant lastVerification = Instant.EPOCH;
 
 	@Autowired
 	public ServerBalanceService(MicropaymentService microPaymentService, AccountService accountService,
-			ServerPotBaselineService serverPotBaselineService, EventService eventService) {
+			ServerPotBaselineService serverPotBaselineService, EventService eventService,
+			VirtualLedgerService virtualLedgerService, ServerBalanceTotals serverBalanceTotals,
+			WalletService walletService, AppConfig appConfig) {
 		this.microPaymentService = microPaymentService;
 		this.accountService = accountService;
 		this.serverPotBaselineService = serverPotBaselineService;
 		this.eventService = eventService;
+		this.virtualLedgerService = virtualLedgerService;
+		this.serverBalanceTotals = serverBalanceTotals;
+		this.walletService = walletService;
+		this.appConfig = appConfig;
+	}
+
+	@PostConstruct
+	public void init() {
+		walletService.addWalletChangeListener(wallet -> potValueStale = true);
 	}
 
+	/**
+	 * Computes the server balance from all accounts and the whole wallet. The running totals used by the periodic
+	 * check are replaced with the computed values.
+	 */
 	public ServerBalanceDTO getServerBalance() {
+		// The sum of the virtual balances is read from the database, bring it up to date first
+		virtualLedgerService.checkpoint();
+
 		ServerBalanceDTO result = new ServerBalanceDTO();
 		result.setSumOfAllPendingTransactions(microPaymentService.getPendingChannelValue().getValue());
 		result.setSumOfAllVirtualBalances(accountService.getSumOfAllVirtualBalances());
@@ -33,9 +70,39 @@ public class ServerBalanceService {
 		result.setServerPotBaseline(serverPotBaselineService.getTotalServerPotBaseline());
 		result.setInSync(balanceIsInSync(result));
 
+		serverBalanceTotals.reset(result.getSumOfAllPendingTransactions(), result.getSumOfAllVirtualBalances());
+		lastVerification = Instant.now();
+
 		return result;
 	}
 
+	/**
+	 * Server balance based on the running totals and the last known pot value. Falls back to
+	 * {@link #getServerBalance()} if the totals were never computed.
+	 */
+	private ServerBalanceDTO getServerBalanceFromTotals() {
+		if (!serverBalanceTotals.isInitialized()) {
+			return getServerBalance();
+		}
+
+		ServerBalanceDTO result = new ServerBalanceDTO();
+		result.setSumOfAllPendingTransactions(serverBalanceTotals.getPendingChannelValue());
+		result.setSumOfAllVirtualBalances(serverBalanceTotals.getVirtualBalances());
+		result.setServerPotCurrent(getPotValue());
+		result.setServerPotBaseline(serverPotBaselineService.getTotalServerPotBaseline());
+		result.setInSync(balanceIsInSync(result));
+		return result;
+	}
+
+	private long getPotValue() {
+		if (potValueStale) {
+			// Reset before computing, so a change during the computation is not lost
+			potValueStale = false;
+			potValue = microPaymentService.getMicroPaymentPotValue().getValue();
+		}
+		return potValue;
+	}
+
 	private boolean balanceIsInSync(ServerBalanceDTO serverBalance) {
 		return serverBalance.getSumOfAllPendingTransactions()
 				== serverBalance.getSumOfAllVirtualBalances()
@@ -45,7 +112,15 @@ public class ServerBalanceService {
 
 	@Scheduled(fixedDelay = 60000L)
 	public void checkServerBalanceAndStoreCriticalEvent() {
-		ServerBalanceDTO serverBalance = getServerBalance();
+		final boolean verificationDue = Duration.between(lastVerification, Instant.now()).getSeconds() >= appConfig
+			.getServerBalanceVerificationInterval();
+
+		ServerBalanceDTO serverBalance = verificationDue ? getServerBalance() : getServerBalanceFromTotals();
+		if (!serverBalance.isInSync() && !verificationDue) {
+			// The running totals can drift, e.g. if accounts are changed directly. Only trust a full computation.
+			LOG.info("Server balance from running totals is not in sync, recomputing: {}", serverBalance);
+			serverBalance = getServerBalance();
+		}
 		if(!serverBalance.isInSync()) {
 			String message = "Server Balance is not in Sync. Check the input values: " + serverBalance;
 			eventService.fatal(SERVER_BALANCE_NOT_IN_SYNC, message);
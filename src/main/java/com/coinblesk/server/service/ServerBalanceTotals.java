@@ -0,0 +1,71 @@
+package com.coinblesk.server.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Running totals of the values in the ACCOUNT table that are needed by {@link ServerBalanceService}, so the
+ * periodic balance check does not have to read every account.
+ *
+ * The services that change a total report the difference here. Within a transaction the difference is only applied
+ * once the transaction committed. The totals are only an estimate: {@link ServerBalanceService} regularly replaces
+ * them with freshly computed values.
+ */
+@Service
+public class ServerBalanceTotals {
+
+	private final AtomicLong pendingChannelValue = new AtomicLong();
+	private final AtomicLong virtualBalances = new AtomicLong();
+	private volatile boolean initialized;
+
+	/**
+	 * @return false until the totals were set by {@link #reset(long, long)}
+	 */
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	public long getPendingChannelValue() {
+		return pendingChannelValue.get();
+	}
+
+	public long getVirtualBalances() {
+		return virtualBalances.get();
+	}
+
+	public synchronized void reset(long pendingChannelValue, long virtualBalances) {
+		this.pendingChannelValue.set(pendingChannelValue);
+		this.virtualBalances.set(virtualBalances);
+		initialized = true;
+	}
+
+	/**
+	 * @param delta change of the server output of an open channel transaction, in satoshi
+	 */
+	public void addPendingChannelValue(long delta) {
+		afterCommit(() -> pendingChannelValue.addAndGet(delta));
+	}
+
+	/**
+	 * @param delta change of the sum of all virtual balances, in satoshi
+	 */
+	public void addVirtualBalances(long delta) {
+		afterCommit(() -> virtualBalances.addAndGet(delta));
+	}
+
+	private static void afterCommit(Runnable update) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			update.run();
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				update.run();
+			}
+		});
+	}
+}
@@ -5,45 +5,135 @@
  */
 package com.coinblesk.server.service;
 
-import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import com.coinblesk.util.SerializeUtils;
+import com.google.gson.JsonParseException;
 
 /**
  * Service utility class used in this package.
  *
+ * HTTP requests go through {@link HttpURLConnection}, which keeps connections alive and reuses them per host as long
+ * as every response body is read to the end and closed. Every request has a connect and a read timeout and a
+ * deadline for the whole call, so a slow upstream service cannot block a thread forever, not even by sending the
+ * response byte by byte.
+ *
  * @author Thomas Bocek
  */
 class ServiceUtils {
 
 	private final static String USER_AGENT = "Mozilla/5.0";
 
+	private final static int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5_000;
+	private final static int DEFAULT_READ_TIMEOUT_MILLIS = 10_000;
+	private final static int DEFAULT_TOTAL_TIMEOUT_MILLIS = 20_000;
+
 	/**
-	 * Executes JSON HTTP Request and returns result.
+	 * Executes a JSON HTTP GET request with the default timeouts and decodes the response.
 	 *
 	 * @param url
-	 * @return response of defined by url request
-	 * @throws IOException
+	 * @param type class of the JSON response
+	 * @return the decoded response, never null
+	 * @throws IOException if the request failed, timed out or the response is empty or not valid JSON
 	 */
-	public static StringBuffer doHttpRequest(String url) throws IOException {
-		final URL requestURL = new URL(url);
-		final HttpURLConnection con = (HttpURLConnection) requestURL.openConnection();
+	public static <T> T getJson(String url, Class<T> type) throws IOException {
+		return getJson(url, type, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS,
+			DEFAULT_TOTAL_TIMEOUT_MILLIS);
+	}
 
-		// optional default is GET
+	/**
+	 * Executes a JSON HTTP GET request and decodes the response while it is read from the connection.
+	 *
+	 * @param url
+	 * @param type class of the JSON response
+	 * @param connectTimeoutMillis time to wait for the connection
+	 * @param readTimeoutMillis time to wait for each read from the connection
+	 * @param totalTimeoutMillis time for the whole call. It is checked before every read, so the call takes at most
+	 *                           this time plus one read timeout.
+	 * @return the decoded response, never null
+	 * @throws IOException if the request failed, timed out or the response is empty or not valid JSON
+	 */
+	public static <T> T getJson(String url, Class<T> type, int connectTimeoutMillis, int readTimeoutMillis,
+		int totalTimeoutMillis) throws IOException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(totalTimeoutMillis);
+		final HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
 		con.setRequestMethod("GET");
-
-		// add request header
+		con.setConnectTimeout(Math.min(connectTimeoutMillis, totalTimeoutMillis));
+		con.setReadTimeout(Math.min(readTimeoutMillis, totalTimeoutMillis));
 		con.setRequestProperty("User-Agent", USER_AGENT);
+		con.setRequestProperty("Accept", "application/json");
+
+		final int status = con.getResponseCode();
+		if (status < 200 || status >= 300) {
+			// The error body has to be consumed as well, otherwise the connection cannot be reused
+			try (InputStream error = con.getErrorStream()) {
+				drain(error);
+			}
+			throw new IOException("HTTP " + status + " from " + url);
+		}
+
+		try (InputStream in = new DeadlineInputStream(con.getInputStream(), deadline, url);
+			 Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+			final T result = SerializeUtils.GSON.fromJson(reader, type);
+			drain(in);
+			// An empty body or the JSON literal null decode to null
+			if (result == null) {
+				throw new IOException("Empty response from " + url);
+			}
+			return result;
+		} catch (JsonParseException e) {
+			throw new IOException("Invalid JSON from " + url, e);
+		}
+	}
+
+	private static void drain(InputStream in) throws IOException {
+		if (in == null) {
+			return;
+		}
+		final byte[] buffer = new byte[1024];
+		while (in.read(buffer) >= 0) {
+			// discard
+		}
+	}
+
+	/**
+	 * Fails the next read once the deadline has passed.
+	 */
+	private static class DeadlineInputStream extends FilterInputStream {
+		private final long deadline;
+		private final String url;
+
+		private DeadlineInputStream(InputStream in, long deadline, String url) {
+			super(in);
+			this.deadline = deadline;
+			this.url = url;
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkDeadline();
+			return super.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			checkDeadline();
+			return super.read(b, off, len);
+		}
 
-		final StringBuffer response = new StringBuffer();
-		try (final BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()))) {
-			String inputLine;
-			while ((inputLine = in.readLine()) != null) {
-				response.append(inputLine);
+		private void checkDeadline() throws SocketTimeoutException {
+			if (System.nanoTime() - deadline > 0) {
+				throw new SocketTimeoutException("Deadline exceeded while reading from " + url);
 			}
 		}
-		return response;
 	}
 }
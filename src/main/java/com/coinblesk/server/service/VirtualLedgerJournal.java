@@ -0,0 +1,297 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lombok.Data;
+
+/**
+ * Write-ahead log of the {@link VirtualLedgerService}.
+ *
+ * Every record contains the balance changes and new nonces of the accounts touched by one ledger operation. The
+ * log is split into numbered segment files: a checkpoint seals the current segment and starts a new one, sealed
+ * segments are deleted once their content is stored in the database. Segment numbers never decrease, also across
+ * restarts, so the database can remember up to which segment the changes of an account are stored and a segment
+ * that is replayed twice is only applied once.
+ *
+ * Appending only copies the record into a buffer. Durability is requested separately with
+ * {@link #awaitDurable(long)}, which writes and forces all buffered records at once, so concurrent callers share
+ * a single fsync.
+ */
+class VirtualLedgerJournal implements Closeable {
+
+	private final static Logger LOG = LoggerFactory.getLogger(VirtualLedgerJournal.class);
+
+	private final static String SEGMENT_PREFIX = "virtual-ledger-";
+	private final static String SEGMENT_SUFFIX = ".wal";
+	// A record touches at most two accounts
+	private final static int MAX_RECORD_LENGTH = 4096;
+
+	private final File directory;
+	private final Object flushLock = new Object();
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private final List<File> sealedSegments = new ArrayList<>();
+
+	private File currentSegment;
+	private FileChannel channel;
+	private long appended;
+	private volatile long durable;
+
+	/**
+	 * Opens the journal in the given directory. Segments found in the directory are left from a previous run and
+	 * are only read by {@link #recover()}, new records are written to a fresh segment.
+	 *
+	 * @param firstSegment lowest number of the fresh segment, must be higher than any segment number that was used
+	 *                     before
+	 */
+	VirtualLedgerJournal(File directory, long firstSegment) throws IOException {
+		this.directory = directory;
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Could not create directory " + directory.getAbsolutePath());
+		}
+		sealedSegments.addAll(listSegments());
+		final long next = sealedSegments.isEmpty() ? firstSegment : Math.max(firstSegment, segmentNumber(
+			sealedSegments.get(sealedSegments.size() - 1)) + 1);
+		openSegment(next);
+	}
+
+	/**
+	 * Reads all postings of the segments left from a previous run, in the order they were written. A record that
+	 * was only partially written before a crash ends the segment.
+	 *
+	 * @return the postings per segment number, in ascending segment order
+	 */
+	Map<Long, List<Posting>> recover() throws IOException {
+		final Map<Long, List<Posting>> result = new LinkedHashMap<>();
+		for (File segment : sealedSegments) {
+			final List<Posting> postings = new ArrayList<>();
+			result.put(segmentNumber(segment), postings);
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+				while (true) {
+					final byte[] record;
+					final long checksum;
+					try {
+						final int length = in.readInt();
+						checksum = in.readLong();
+						if (length < 0 || length > MAX_RECORD_LENGTH) {
+							LOG.warn("Ignoring torn record at the end of {}", segment.getName());
+							break;
+						}
+						record = new byte[length];
+						in.readFully(record);
+					} catch (EOFException e) {
+						break;
+					}
+					if (checksum != checksum(record)) {
+						LOG.warn("Ignoring torn record at the end of {}", segment.getName());
+						break;
+					}
+					postings.addAll(decode(record));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Segments that are sealed but not yet deleted. After {@link #recover()} they can be deleted as soon as the
+	 * recovered postings are stored.
+	 */
+	synchronized List<File> sealedSegments() {
+		return new ArrayList<>(sealedSegments);
+	}
+
+	/**
+	 * Buffers a record with the given postings.
+	 *
+	 * @return ticket to pass to {@link #awaitDurable(long)}
+	 */
+	synchronized long append(List<Posting> postings) {
+		final byte[] record = encode(postings);
+		try {
+			final DataOutputStream out = new DataOutputStream(pending);
+			out.writeInt(record.length);
+			out.writeLong(checksum(record));
+			out.write(record);
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		appended += 1;
+		return appended;
+	}
+
+	/**
+	 * Blocks until the record with the given ticket and all records before it are forced to disk.
+	 */
+	void awaitDurable(long ticket) throws IOException {
+		if (durable >= ticket) {
+			return;
+		}
+		synchronized (flushLock) {
+			if (durable < ticket) {
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Flushes the current segment and continues in a new one.
+	 *
+	 * @return all sealed segments, including the one that was just closed
+	 */
+	List<File> rotate() throws IOException {
+		synchronized (flushLock) {
+			flush();
+			synchronized (this) {
+				channel.close();
+				sealedSegments.add(currentSegment);
+				openSegment(segmentNumber(currentSegment) + 1);
+				return new ArrayList<>(sealedSegments);
+			}
+		}
+	}
+
+	/**
+	 * Deletes sealed segments whose content is stored in the database.
+	 */
+	synchronized void delete(List<File> segments) {
+		for (File segment : segments) {
+			if (segment.delete() || !segment.exists()) {
+				sealedSegments.remove(segment);
+			} else {
+				LOG.warn("Could not delete journal segment {}", segment.getAbsolutePath());
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (flushLock) {
+			flush();
+			channel.close();
+		}
+	}
+
+	// Must be called while holding flushLock
+	private void flush() throws IOException {
+		final byte[] data;
+		final long upTo;
+		synchronized (this) {
+			data = pending.toByteArray();
+			pending.reset();
+			upTo = appended;
+		}
+		if (data.length > 0) {
+			final ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+		durable = upTo;
+	}
+
+	private void openSegment(long number) throws IOException {
+		currentSegment = new File(directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+		channel = FileChannel.open(currentSegment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.APPEND);
+	}
+
+	private List<File> listSegments() {
+		final File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith
+			(SEGMENT_SUFFIX));
+		if (files == null) {
+			return Collections.emptyList();
+		}
+		final List<File> segments = new ArrayList<>(Arrays.asList(files));
+		segments.sort((lhs, rhs) -> Long.compare(segmentNumber(lhs), segmentNumber(rhs)));
+		return segments;
+	}
+
+	static long segmentNumber(File segment) {
+		final String name = segment.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static long checksum(byte[] record) {
+		final CRC32 crc = new CRC32();
+		crc.update(record);
+		return crc.getValue();
+	}
+
+	private static byte[] encode(List<Posting> postings) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(postings.size());
+			for (Posting posting : postings) {
+				out.writeShort(posting.getClientPublicKey().length);
+				out.write(posting.getClientPublicKey());
+				out.writeLong(posting.getVirtualBalanceDelta());
+				out.writeLong(posting.getNonce());
+			}
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static List<Posting> decode(byte[] record) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		final int count = in.readInt();
+		final List<Posting> postings = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			final byte[] clientPublicKey = new byte[in.readShort()];
+			in.readFully(clientPublicKey);
+			postings.add(new Posting(clientPublicKey, in.readLong(), in.readLong()));
+		}
+		return postings;
+	}
+
+	/**
+	 * Change of one account by a ledger operation, with the nonce of the account after the operation.
+	 */
+	@Data
+	static class Posting {
+		private final byte[] clientPublicKey;
+		private final long virtualBalanceDelta;
+		private final long nonce;
+	}
+}
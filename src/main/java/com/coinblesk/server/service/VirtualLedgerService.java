@@ -0,0 +1,622 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.bitcoinj.core.ECKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.dao.AccountRepository;
+import com.coinblesk.server.entity.Account;
+import com.coinblesk.server.exceptions.CoinbleskInternalError;
+import com.coinblesk.server.exceptions.InvalidAmountException;
+import com.coinblesk.server.exceptions.InvalidNonceException;
+import com.coinblesk.server.exceptions.InvalidRequestException;
+import com.coinblesk.server.exceptions.UserNotFoundException;
+import com.coinblesk.server.service.MicropaymentService.VirtualPaymentResult;
+import com.coinblesk.server.service.VirtualLedgerJournal.Posting;
+import com.coinblesk.util.DTOUtils;
+import com.coinblesk.util.InsufficientFunds;
+
+import lombok.NonNull;
+
+/**
+ * Optional in-memory ledger for the virtual balance and nonce of accounts (coinblesk.ledger.enabled).
+ *
+ * Accounts are loaded lazily from the database and assigned to a shard by their client public key. Every shard
+ * has exactly one writer at a time, a transfer locks the shards of sender and receiver in ascending order. The
+ * change is appended to a {@link VirtualLedgerJournal} in coinblesk.config.dir before the caller gets the result,
+ * and {@link #checkpoint()} regularly adds the changes of all accounts to the ACCOUNT table in a single
+ * transaction. Accounts that were not changed since the last checkpoint are dropped from memory.
+ *
+ * The checkpoint adds the changes to the stored balance instead of overwriting it, together with the number of the
+ * journal segment they belong to (LEDGER_SEGMENT). Changes of the balance made outside the ledger are therefore
+ * kept, and a segment that is replayed after a crash is not applied twice. While an account is in memory, such
+ * changes are only visible to the ledger once the account was dropped, so the payment paths go through this
+ * service while it is enabled.
+ */
+@Service
+public class VirtualLedgerService {
+
+	private final static Logger LOG = LoggerFactory.getLogger(VirtualLedgerService.class);
+
+	private final AccountRepository accountRepository;
+	private final TransactionTemplate transactionTemplate;
+	private final boolean enabled;
+	private final int shardCount;
+	private final AppConfig appConfig;
+
+	private final Map<String, LedgerEntry> entries = new ConcurrentHashMap<>();
+	// Checkpoints must not overlap, an account is only dropped once all its changes are stored
+	private final Object checkpointLock = new Object();
+	private ReentrantLock[] shards;
+	private VirtualLedgerJournal journal;
+	private File directory;
+
+	@Autowired
+	public VirtualLedgerService(AccountRepository accountRepository, AppConfig appConfig,
+		PlatformTransactionManager transactionManager) {
+		this(accountRepository, transactionManager, appConfig.isVirtualLedgerEnabled(), appConfig
+			.getVirtualLedgerShards(), null, appConfig);
+	}
+
+	// Used by tests, the journal is kept in the given directory
+	VirtualLedgerService(AccountRepository accountRepository, PlatformTransactionManager transactionManager, int
+		shardCount, File directory) {
+		this(accountRepository, transactionManager, true, shardCount, directory, null);
+	}
+
+	private VirtualLedgerService(AccountRepository accountRepository, PlatformTransactionManager transactionManager,
+		boolean enabled, int shardCount, File directory, AppConfig appConfig) {
+		this.accountRepository = accountRepository;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		// The checkpoint may be requested from within a read-only transaction
+		this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		this.enabled = enabled;
+		this.shardCount = shardCount;
+		this.directory = directory;
+		this.appConfig = appConfig;
+	}
+
+	@PostConstruct
+	public void init() throws IOException {
+		if (!isEnabled()) {
+			return;
+		}
+
+		shards = new ReentrantLock[shardCount];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new ReentrantLock();
+		}
+
+		if (directory == null) {
+			directory = new File(appConfig.getConfigDir().getFile(), "virtual-ledger");
+		}
+		final Long lastSegment = accountRepository.getMaxLedgerSegment();
+		journal = new VirtualLedgerJournal(directory, lastSegment == null ? 1 : lastSegment + 1);
+
+		// Store whatever was not checkpointed before the last shutdown. Segments that were already stored for an
+		// account are skipped by the update.
+		int recovered = 0;
+		for (Map.Entry<Long, List<Posting>> segment : journal.recover().entrySet()) {
+			final List<Posting> postings = merge(segment.getValue());
+			store(postings, segment.getKey());
+			recovered += postings.size();
+		}
+		if (recovered > 0) {
+			LOG.info("Recovered {} account changes from the virtual ledger journal", recovered);
+		}
+		journal.delete(journal.sealedSegments());
+
+		LOG.info("Virtual ledger enabled with {} shards", shards.length);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * In-memory counterpart of {@link MicropaymentService#virtualPayment(ECKey, ECKey, long, long)}. Performs the
+	 * same checks in the same order and returns once the transfer is stored in the journal.
+	 */
+	public VirtualPaymentResult transfer(@NonNull ECKey keySender, @NonNull ECKey keyReceiver, long amount, long
+		requestNonce) throws InvalidNonceException, UserNotFoundException, InvalidAmountException, InsufficientFunds,
+		InvalidRequestException {
+
+		// Sender and receiver must be different entities
+		if (keySender.getPublicKeyAsHex().equals(keyReceiver.getPublicKeyAsHex()))
+			throw new InvalidRequestException("The sender and receiver cannot be the same entities");
+
+		final int senderShard = shardOf(keySender.getPubKey());
+		final int receiverShard = shardOf(keyReceiver.getPubKey());
+		final ReentrantLock first = shards[Math.min(senderShard, receiverShard)];
+		final ReentrantLock second = shards[Math.max(senderShard, receiverShard)];
+
+		final VirtualPaymentResult result;
+		final long ticket;
+		first.lock();
+		second.lock();
+		try {
+			final LedgerEntry sender = load(keySender.getPubKey());
+			if (sender == null)
+				throw new UserNotFoundException(keySender.getPublicKeyAsHex());
+
+			// Same replay protection as for the database, see MicropaymentService
+			if (requestNonce <= sender.nonce)
+				throw new InvalidNonceException("Invalid nonce. Request already processed?");
+
+			if (amount < 1)
+				throw new InvalidAmountException("Invalid amount. Must be 1 or larger.");
+
+			if (amount > sender.available())
+				throw new InsufficientFunds("Insufficient funds, only " + sender.available() + " satoshis available");
+
+			final LedgerEntry receiver = load(keyReceiver.getPubKey());
+			if (receiver == null)
+				throw new UserNotFoundException(keyReceiver.getPublicKeyAsHex());
+
+			sender.change(-amount);
+			sender.nonce = requestNonce;
+			receiver.change(amount);
+
+			ticket = journal.append(Arrays.asList(sender.toPosting(-amount), receiver.toPosting(amount)));
+			result = new VirtualPaymentResult(sender.available(), sender.serverPrivateKey, receiver.available(),
+				receiver.serverPrivateKey);
+		} finally {
+			second.unlock();
+			first.unlock();
+		}
+
+		awaitDurable(ticket);
+		return result;
+	}
+
+	/**
+	 * Adds the amount to the virtual balance of the account. If called within a transaction, the amount cannot be
+	 * spent before the transaction commits and is removed again if it rolls back.
+	 *
+	 * @return the new virtual balance, without the amount if it is reserved
+	 */
+	public long credit(@NonNull byte[] clientPublicKey, long amount) throws UserNotFoundException {
+		final boolean reserve = TransactionSynchronizationManager.isSynchronizationActive();
+		final long newBalance = add(clientPublicKey, amount, reserve);
+		if (reserve) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					// The reserved amount was not available to anybody else, so removing it cannot make the
+					// balance negative
+					releaseReservation(clientPublicKey, amount, status == STATUS_ROLLED_BACK);
+				}
+			});
+		}
+		return newBalance;
+	}
+
+	/**
+	 * Sets the available virtual balance of the account to zero. If called within a transaction, the balance is
+	 * restored when the transaction rolls back.
+	 *
+	 * @return the virtual balance before it was withdrawn
+	 */
+	public long withdrawAll(@NonNull byte[] clientPublicKey) throws UserNotFoundException {
+		final ReentrantLock lock = shards[shardOf(clientPublicKey)];
+		final long withdrawn;
+		final long ticket;
+		lock.lock();
+		try {
+			final LedgerEntry entry = load(clientPublicKey);
+			if (entry == null)
+				throw new UserNotFoundException(DTOUtils.toHex(clientPublicKey));
+			withdrawn = entry.available();
+			entry.change(-withdrawn);
+			ticket = journal.append(Collections.singletonList(entry.toPosting(-withdrawn)));
+		} finally {
+			lock.unlock();
+		}
+		awaitDurable(ticket);
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					if (status == STATUS_ROLLED_BACK) {
+						try {
+							add(clientPublicKey, withdrawn, false);
+						} catch (UserNotFoundException | RuntimeException e) {
+							LOG.error("Could not restore the withdrawn balance of {}", DTOUtils.toHex
+								(clientPublicKey), e);
+						}
+					}
+				}
+			});
+		}
+		return withdrawn;
+	}
+
+	public long getVirtualBalance(@NonNull byte[] clientPublicKey) throws UserNotFoundException {
+		final ReentrantLock lock = shards[shardOf(clientPublicKey)];
+		lock.lock();
+		try {
+			final LedgerEntry entry = load(clientPublicKey);
+			if (entry == null)
+				throw new UserNotFoundException(DTOUtils.toHex(clientPublicKey));
+			return entry.available();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the current virtual balance of the loaded account, which is ahead of the stored balance while the
+	 *         ledger is enabled
+	 */
+	public long virtualBalanceOf(@NonNull Account account) {
+		if (!isEnabled()) {
+			return account.virtualBalance();
+		}
+		final LedgerEntry entry = cached(account.clientPublicKey());
+		return entry == null ? account.virtualBalance() : entry.available();
+	}
+
+	/**
+	 * @return the current nonce of the loaded account, which is ahead of the stored nonce while the ledger is
+	 *         enabled
+	 */
+	public long nonceOf(@NonNull Account account) {
+		if (!isEnabled()) {
+			return account.nonce();
+		}
+		final LedgerEntry entry = cached(account.clientPublicKey());
+		return entry == null ? account.nonce() : Math.max(entry.nonce, account.nonce());
+	}
+
+	/**
+	 * Checks and consumes the nonce of a request that changes the account outside the ledger, such as a micro
+	 * payment, so it cannot be used for a virtual payment. The caller stores the nonce in the database itself. If
+	 * called within a transaction, the nonce is released again if it rolls back.
+	 *
+	 * @return false if the nonce is not higher than the current nonce of the account
+	 */
+	public boolean useNonce(@NonNull Account account, long nonce) throws UserNotFoundException {
+		final byte[] clientPublicKey = account.clientPublicKey();
+		final boolean pending = TransactionSynchronizationManager.isSynchronizationActive();
+		final ReentrantLock lock = shards[shardOf(clientPublicKey)];
+		final long previous;
+		lock.lock();
+		try {
+			final LedgerEntry entry = load(clientPublicKey);
+			if (entry == null)
+				throw new UserNotFoundException(DTOUtils.toHex(clientPublicKey));
+			previous = Math.max(entry.nonce, account.nonce());
+			if (nonce <= previous) {
+				return false;
+			}
+			entry.nonce = nonce;
+			if (pending) {
+				entry.pending++;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (pending) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					lock.lock();
+					try {
+						final LedgerEntry entry = entries.get(DTOUtils.toHex(clientPublicKey));
+						entry.pending--;
+						// Only if no later request used a higher nonce in the meantime
+						if (status == STATUS_ROLLED_BACK && entry.nonce == nonce) {
+							entry.nonce = previous;
+						}
+					} finally {
+						lock.unlock();
+					}
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the changes of all accounts to the database. The current journal segment is sealed while all shards are
+	 * locked, so it contains exactly the changes of this checkpoint and can be deleted afterwards.
+	 */
+	@Scheduled(fixedDelayString = "${coinblesk.ledger.checkpointInterval}000")
+	public void checkpoint() {
+		if (!isEnabled()) {
+			return;
+		}
+
+		synchronized (checkpointLock) {
+			final List<Change> changes = new ArrayList<>();
+			final List<File> segments;
+			lockAll();
+			try {
+				final Iterator<LedgerEntry> iterator = entries.values().iterator();
+				while (iterator.hasNext()) {
+					final LedgerEntry entry = iterator.next();
+					if (entry.dirty) {
+						changes.add(new Change(entry, entry.unstoredDelta, entry.nonce));
+						entry.unstoredDelta = 0L;
+						entry.dirty = false;
+					} else if (entry.pending == 0) {
+						// Not changed since the last checkpoint, which stored everything
+						iterator.remove();
+					}
+				}
+				// Same order as the row locks of the payment transactions
+				changes.sort(Comparator.comparingLong(change -> change.entry.accountId));
+				segments = journal.rotate();
+			} catch (IOException e) {
+				restore(changes);
+				LOG.error("Could not rotate virtual ledger journal", e);
+				return;
+			} finally {
+				unlockAll();
+			}
+
+			try {
+				if (!changes.isEmpty()) {
+					final List<Posting> postings = new ArrayList<>(changes.size());
+					for (Change change : changes) {
+						postings.add(new Posting(change.entry.clientPublicKey, change.delta, change.nonce));
+					}
+					store(postings, VirtualLedgerJournal.segmentNumber(segments.get(segments.size() - 1)));
+				}
+				journal.delete(segments);
+			} catch (RuntimeException e) {
+				// The segments stay on disk until the next successful checkpoint
+				restore(changes);
+				LOG.error("Could not store virtual ledger checkpoint", e);
+			}
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (!isEnabled()) {
+			return;
+		}
+		checkpoint();
+		try {
+			journal.close();
+		} catch (IOException e) {
+			LOG.error("cannot close virtual ledger journal in shutdown", e);
+		}
+	}
+
+	/**
+	 * @return the number of accounts that are currently held in memory
+	 */
+	int getCachedAccountCount() {
+		return entries.size();
+	}
+
+	private long add(byte[] clientPublicKey, long amount, boolean reserve) throws UserNotFoundException {
+		final ReentrantLock lock = shards[shardOf(clientPublicKey)];
+		final long newBalance;
+		final long ticket;
+		lock.lock();
+		try {
+			final LedgerEntry entry = load(clientPublicKey);
+			if (entry == null)
+				throw new UserNotFoundException(DTOUtils.toHex(clientPublicKey));
+			entry.change(amount);
+			if (reserve) {
+				entry.reserved += amount;
+				entry.pending++;
+			}
+			newBalance = entry.available();
+			ticket = journal.append(Collections.singletonList(entry.toPosting(amount)));
+		} finally {
+			lock.unlock();
+		}
+		awaitDurable(ticket);
+		return newBalance;
+	}
+
+	private void releaseReservation(byte[] clientPublicKey, long amount, boolean revert) {
+		final ReentrantLock lock = shards[shardOf(clientPublicKey)];
+		long ticket = 0L;
+		lock.lock();
+		try {
+			// Accounts with pending transactions are never dropped
+			final LedgerEntry entry = entries.get(DTOUtils.toHex(clientPublicKey));
+			entry.reserved -= amount;
+			entry.pending--;
+			if (revert) {
+				entry.change(-amount);
+				ticket = journal.append(Collections.singletonList(entry.toPosting(-amount)));
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (revert) {
+			awaitDurable(ticket);
+		}
+	}
+
+	private void store(List<Posting> postings, long segment) {
+		transactionTemplate.execute(status -> {
+			for (Posting posting : postings) {
+				accountRepository.addVirtualBalanceAndNonce(posting.getClientPublicKey(), posting
+					.getVirtualBalanceDelta(), posting.getNonce(), segment);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Combines the postings of one segment into one posting per account.
+	 */
+	private static List<Posting> merge(List<Posting> postings) {
+		final Map<String, Posting> merged = new LinkedHashMap<>();
+		for (Posting posting : postings) {
+			final String key = DTOUtils.toHex(posting.getClientPublicKey());
+			final Posting previous = merged.get(key);
+			merged.put(key, previous == null ? posting : new Posting(posting.getClientPublicKey(), previous
+				.getVirtualBalanceDelta() + posting.getVirtualBalanceDelta(), Math.max(previous.getNonce(), posting
+				.getNonce())));
+		}
+		return new ArrayList<>(merged.values());
+	}
+
+	private void awaitDurable(long ticket) {
+		try {
+			journal.awaitDurable(ticket);
+		} catch (IOException e) {
+			LOG.error("Could not write virtual ledger journal", e);
+			throw new CoinbleskInternalError("Could not write virtual ledger journal");
+		}
+	}
+
+	// Must be called while holding the lock of the shard
+	private LedgerEntry load(byte[] clientPublicKey) {
+		final String key = DTOUtils.toHex(clientPublicKey);
+		LedgerEntry entry = entries.get(key);
+		if (entry == null) {
+			final Account account = accountRepository.findByClientPublicKey(clientPublicKey);
+			if (account == null) {
+				return null;
+			}
+			entry = new LedgerEntry(account);
+			entries.put(key, entry);
+		}
+		return entry;
+	}
+
+	private LedgerEntry cached(byte[] clientPublicKey) {
+		final ReentrantLock lock = shards[shardOf(clientPublicKey)];
+		lock.lock();
+		try {
+			return entries.get(DTOUtils.toHex(clientPublicKey));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void restore(List<Change> changes) {
+		lockAll();
+		try {
+			for (Change change : changes) {
+				change.entry.unstoredDelta += change.delta;
+				change.entry.dirty = true;
+			}
+		} finally {
+			unlockAll();
+		}
+	}
+
+	private int shardOf(byte[] clientPublicKey) {
+		return (Arrays.hashCode(clientPublicKey) & Integer.MAX_VALUE) % shards.length;
+	}
+
+	private void lockAll() {
+		for (ReentrantLock shard : shards) {
+			shard.lock();
+		}
+	}
+
+	private void unlockAll() {
+		for (int i = shards.length - 1; i >= 0; i--) {
+			shards[i].unlock();
+		}
+	}
+
+	/**
+	 * Virtual balance and nonce of one account. Guarded by the lock of its shard.
+	 */
+	private static class LedgerEntry {
+		private final long accountId;
+		private final byte[] clientPublicKey;
+		private final byte[] serverPrivateKey;
+		// Includes reserved credits of transactions that did not complete yet
+		private long virtualBalance;
+		private long reserved;
+		// Transactions that reserved a credit or used a nonce and did not complete yet
+		private int pending;
+		private long nonce;
+		// Change of the balance that is not stored in the database yet
+		private long unstoredDelta;
+		private boolean dirty;
+
+		private LedgerEntry(Account account) {
+			this.accountId = account.getId();
+			this.clientPublicKey = account.clientPublicKey();
+			this.serverPrivateKey = account.serverPrivateKey();
+			this.virtualBalance = account.virtualBalance();
+			this.nonce = account.nonce();
+		}
+
+		private long available() {
+			return virtualBalance - reserved;
+		}
+
+		private void change(long delta) {
+			virtualBalance += delta;
+			unstoredDelta += delta;
+			dirty = true;
+		}
+
+		private Posting toPosting(long delta) {
+			return new Posting(clientPublicKey, delta, nonce);
+		}
+	}
+
+	/**
+	 * Changes of one account taken by a checkpoint.
+	 */
+	private static class Change {
+		private final LedgerEntry entry;
+		private final long delta;
+		private final long nonce;
+
+		private Change(LedgerEntry entry, long delta, long nonce) {
+			this.entry = entry;
+			this.delta = delta;
+			this.nonce = nonce;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2016 The Coinblesk team and the CSG Group at University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.coinblesk.server.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.bitcoinj.core.ECKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.exceptions.CoinbleskInternalError;
+import com.coinblesk.server.exceptions.InvalidAmountException;
+import com.coinblesk.server.exceptions.InvalidNonceException;
+import com.coinblesk.server.exceptions.InvalidRequestException;
+import com.coinblesk.server.exceptions.UserNotFoundException;
+import com.coinblesk.server.service.MicropaymentService.VirtualPaymentResult;
+import com.coinblesk.util.InsufficientFunds;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Group commit for virtual payments (coinblesk.virtualPaymentBatch.enabled).
+ *
+ * Callers hand their payment to a single committer thread and wait for the outcome. The committer collects
+ * payments until the batch is full or the configured delay has passed, locks all accounts of the batch in
+ * ascending id order and applies the payments one after the other in a single transaction, so the whole batch
+ * costs one commit. A payment that is rejected (insufficient funds, old nonce, ...) does not change any account
+ * and only fails for its own caller.
+ *
+ * If the batch transaction fails for another reason, the payments are retried one by one with
+ * {@link MicropaymentService#virtualPayment(ECKey, ECKey, long, long)}, so a single broken request cannot fail
+ * the others.
+ */
+@Service
+public class VirtualPaymentBatchService {
+
+	private final static Logger LOG = LoggerFactory.getLogger(VirtualPaymentBatchService.class);
+
+	// Same as the @Retryable of MicropaymentService.virtualPayment
+	private final static int MAX_ATTEMPTS = 5;
+
+	private final MicropaymentService micropaymentService;
+	private final AppConfig appConfig;
+	private final TransactionTemplate transactionTemplate;
+
+	private final BlockingQueue<PendingPayment> queue = new LinkedBlockingQueue<>();
+	private Thread committer;
+	private volatile boolean running;
+
+	@Autowired
+	public VirtualPaymentBatchService(MicropaymentService micropaymentService, AppConfig appConfig,
+		PlatformTransactionManager transactionManager) {
+		this.micropaymentService = micropaymentService;
+		this.appConfig = appConfig;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+	}
+
+	@PostConstruct
+	public void init() {
+		if (!isEnabled()) {
+			return;
+		}
+		running = true;
+		committer = new Thread(this::run, "virtual-payment-committer");
+		committer.setDaemon(true);
+		committer.start();
+		LOG.info("Virtual payment batching enabled, max {} payments or {} ms per batch", appConfig
+			.getVirtualPaymentBatchMaxSize(), appConfig.getVirtualPaymentBatchMaxDelayMillis());
+	}
+
+	public boolean isEnabled() {
+		return appConfig.isVirtualPaymentBatchEnabled();
+	}
+
+	/**
+	 * Same contract as {@link MicropaymentService#virtualPayment(ECKey, ECKey, long, long)}, but the payment is
+	 * committed together with other concurrent payments. Blocks until the batch is committed.
+	 */
+	public VirtualPaymentResult virtualPayment(@NonNull ECKey keySender, @NonNull ECKey keyReceiver, long amount, long
+		requestNonce) throws InvalidNonceException, UserNotFoundException, InvalidAmountException, InsufficientFunds,
+		InvalidRequestException {
+
+		if (!running)
+			throw new CoinbleskInternalError("Virtual payment batching is not running");
+
+		final PendingPayment payment = new PendingPayment(keySender, keyReceiver, amount, requestNonce);
+		queue.add(payment);
+
+		try {
+			return payment.getResult().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CoinbleskInternalError("Interrupted while waiting for the virtual payment");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof InvalidNonceException)
+				throw (InvalidNonceException) cause;
+			if (cause instanceof UserNotFoundException)
+				throw (UserNotFoundException) cause;
+			if (cause instanceof InvalidAmountException)
+				throw (InvalidAmountException) cause;
+			if (cause instanceof InsufficientFunds)
+				throw (InsufficientFunds) cause;
+			if (cause instanceof InvalidRequestException)
+				throw (InvalidRequestException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new CoinbleskInternalError("Virtual payment failed: " + cause.getMessage());
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (committer == null) {
+			return;
+		}
+		running = false;
+		committer.interrupt();
+		try {
+			committer.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// Payments that arrived while shutting down are not processed anymore
+		final List<PendingPayment> remaining = new ArrayList<>();
+		queue.drainTo(remaining);
+		for (PendingPayment payment : remaining) {
+			payment.getResult().completeExceptionally(new CoinbleskInternalError("Server is shutting down"));
+		}
+	}
+
+	private void run() {
+		while (running) {
+			final List<PendingPayment> batch;
+			try {
+				batch = nextBatch();
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				commit(batch);
+			} catch (Throwable e) {
+				LOG.error("Unexpected error while committing virtual payments", e);
+				for (PendingPayment payment : batch) {
+					payment.getResult().completeExceptionally(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for the first payment, then collects more until the batch is full or the delay has passed.
+	 */
+	private List<PendingPayment> nextBatch() throws InterruptedException {
+		final int maxSize = appConfig.getVirtualPaymentBatchMaxSize();
+		final List<PendingPayment> batch = new ArrayList<>(maxSize);
+		batch.add(queue.take());
+
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(appConfig
+			.getVirtualPaymentBatchMaxDelayMillis());
+		while (batch.size() < maxSize) {
+			queue.drainTo(batch, maxSize - batch.size());
+			final long remaining = deadline - System.nanoTime();
+			if (batch.size() >= maxSize || remaining <= 0) {
+				break;
+			}
+			final PendingPayment next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+			if (next == null) {
+				break;
+			}
+			batch.add(next);
+		}
+		return batch;
+	}
+
+	private void commit(List<PendingPayment> batch) {
+		for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+			try {
+				transactionTemplate.execute(status -> {
+					// Taking all locks up front in one statement keeps the lock order canonical for the whole batch
+					micropaymentService.lockAccounts(accountKeys(batch));
+					for (PendingPayment payment : batch) {
+						payment.apply(micropaymentService);
+					}
+					return null;
+				});
+				// Only report results once they are committed
+				for (PendingPayment payment : batch) {
+					payment.complete();
+				}
+				LOG.debug("Committed {} virtual payments", batch.size());
+				return;
+			} catch (TransientDataAccessException e) {
+				LOG.debug("Batch of {} virtual payments failed in attempt {}: {}", batch.size(), attempt, e
+					.getMessage());
+			} catch (RuntimeException e) {
+				LOG.warn("Batch of {} virtual payments failed, committing them one by one", batch.size(), e);
+				break;
+			}
+		}
+
+		for (PendingPayment payment : batch) {
+			try {
+				payment.getResult().complete(micropaymentService.virtualPayment(payment.getKeySender(), payment
+					.getKeyReceiver(), payment.getAmount(), payment.getRequestNonce()));
+			} catch (Throwable e) {
+				payment.getResult().completeExceptionally(e);
+			}
+		}
+	}
+
+	private static byte[][] accountKeys(List<PendingPayment> batch) {
+		final List<byte[]> keys = new ArrayList<>(batch.size() * 2);
+		for (PendingPayment payment : batch) {
+			keys.add(payment.getKeySender().getPubKey());
+			keys.add(payment.getKeyReceiver().getPubKey());
+		}
+		return keys.toArray(new byte[keys.size()][]);
+	}
+
+	@Getter
+	@RequiredArgsConstructor
+	private static class PendingPayment {
+		private final ECKey keySender;
+		private final ECKey keyReceiver;
+		private final long amount;
+		private final long requestNonce;
+		private final CompletableFuture<VirtualPaymentResult> result = new CompletableFuture<>();
+
+		// Outcome of the current attempt, only valid once the transaction committed
+		private VirtualPaymentResult success;
+		private Exception rejection;
+
+		private void apply(MicropaymentService micropaymentService) {
+			success = null;
+			rejection = null;
+			try {
+				success = micropaymentService.applyVirtualPayment(keySender, keyReceiver, amount, requestNonce);
+			} catch (InvalidNonceException | UserNotFoundException | InvalidAmountException | InsufficientFunds |
+				InvalidRequestException e) {
+				rejection = e;
+			}
+		}
+
+		private void complete() {
+			if (rejection != null) {
+				result.completeExceptionally(rejection);
+			} else {
+				result.complete(success);
+			}
+		}
+	}
+}
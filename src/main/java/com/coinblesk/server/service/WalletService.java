@@ -19,15 +19,21 @@ import java.io.File;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nullable;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
@@ -40,21 +46,27 @@ import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.PeerGroup;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionBroadcast;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.listeners.BlocksDownloadedEventListener;
 import org.bitcoinj.core.listeners.DownloadProgressTracker;
+import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
 import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
 import org.bitcoinj.net.discovery.DnsDiscovery;
 import org.bitcoinj.net.discovery.PeerDiscovery;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.MemoryBlockStore;
 import org.bitcoinj.store.SPVBlockStore;
 import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.UnreadableWalletException;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -63,7 +75,6 @@ import org.springframework.stereotype.Service;
 import com.coinblesk.bitcoin.AddressCoinSelector;
 import com.coinblesk.bitcoin.BitcoinNet;
 import com.coinblesk.server.config.AppConfig;
-import com.coinblesk.server.entity.TimeLockedAddressEntity;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -78,6 +89,9 @@ public class WalletService {
 
 	private final static Logger LOG = LoggerFactory.getLogger(WalletService.class);
 
+	// Time locked addresses read from the database and added to the wallet at once during startup
+	private final static int WATCH_ADDRESS_BATCH_SIZE = 1000;
+
 	private final AppConfig appConfig;
 
 	private final AccountService accountService;
@@ -92,6 +106,12 @@ public class WalletService {
 
 	private BlockStore blockStore;
 
+	// Built on the first read and then updated for the addresses touched by new transactions, see addressIndex()
+	private volatile AddressIndex addressIndex;
+	private final Set<Address> staleAddresses = ConcurrentHashMap.newKeySet();
+	private final AtomicLong walletVersion = new AtomicLong();
+	private final Object addressIndexLock = new Object();
+
 	@Autowired
 	public WalletService(AppConfig appConfig, AccountService accountService, TxQueueService txQueueService) {
 		this.appConfig = appConfig;
@@ -126,10 +146,25 @@ public class WalletService {
 			blockStore = new MemoryBlockStore(params);
 		}
 
-		walletWatchKeysCLTV(params);
+		walletWatchKeysCLTV();
 		walletWatchKeysPot(params);
 		walletWatchMicropaymentPot();
 
+		// Mark addresses synchronously, so a read right after a change never sees the old state. Depth changes of
+		// transactions that are already in the chain do not change any balance and are ignored, that is the bulk
+		// of the events.
+		wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, (w, tx, prevBalance, newBalance) ->
+			markAddressesStale(tx));
+		wallet.addCoinsSentEventListener(Threading.SAME_THREAD, (w, tx, prevBalance, newBalance) ->
+			markAddressesStale(tx));
+		wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, (w, tx) -> {
+			if (tx.getConfidence().getConfidenceType() != ConfidenceType.BUILDING || tx.getConfidence()
+				.getDepthInBlocks() <= 1) {
+				markAddressesStale(tx);
+			}
+		});
+		wallet.addReorganizeEventListener(Threading.SAME_THREAD, w -> invalidateAddressIndex());
+
 		blockChain = new BlockChain(params, blockStore);
 		peerGroup = new PeerGroup(params, blockChain);
 
@@ -179,13 +214,28 @@ public class WalletService {
 		LOG.info("wallet init done.");
 	}
 
-	private void walletWatchKeysCLTV(final NetworkParameters params) {
-		StringBuilder sb = new StringBuilder();
-		for (TimeLockedAddressEntity address : accountService.allAddresses()) {
-			wallet.addWatchedAddress(address.toAddress(params), address.getTimeCreated());
-			sb.append(address.toAddress(params)).append("\n");
-		}
-		LOG.info("walletWatchKeysCLTV:\n{}", sb.toString());
+	private void walletWatchKeysCLTV() {
+		// A persisted wallet already watches the addresses of previous runs
+		final Set<Script> watched = new HashSet<>(wallet.getWatchedScripts());
+		final AtomicLong added = new AtomicLong();
+
+		final int total = accountService.forEachAddressHashPage(WATCH_ADDRESS_BATCH_SIZE, rows -> {
+			List<Script> scripts = new ArrayList<>(rows.size());
+			for (Object[] row : rows) {
+				Script script = ScriptBuilder.createP2SHOutputScript((byte[]) row[1]);
+				if (!watched.contains(script)) {
+					script.setCreationTimeSeconds((Long) row[2]);
+					scripts.add(script);
+				}
+			}
+			// One call per batch, the wallet notifies listeners and saves once per call
+			if (!scripts.isEmpty()) {
+				wallet.addWatchedScripts(scripts);
+				added.addAndGet(scripts.size());
+			}
+		});
+		LOG.info("walletWatchKeysCLTV: {} time locked addresses, {} added, {} already watched", total, added.get(),
+			total - added.get());
 	}
 
 	private void walletWatchKeysPot(final NetworkParameters params) {
@@ -215,6 +265,29 @@ public class WalletService {
 		wallet.addTransactionConfidenceEventListener(listenerExecutor, listener);
 	}
 
+	/**
+	 * Add a listener that gets executed whenever the wallet changes, including the depth of its transactions
+	 * on new blocks.
+	 * @param listener
+	 */
+	public void addWalletChangeListener(WalletChangeEventListener listener) {
+		wallet.addChangeEventListener(listener);
+	}
+
+	/**
+	 * Add a listener that gets executed for every block (or filtered block) downloaded by the peer group.
+	 */
+	public void addBlocksDownloadedListener(BlocksDownloadedEventListener listener) {
+		peerGroup.addBlocksDownloadedEventListener(listener);
+	}
+
+	/**
+	 * Add a listener that gets executed for every transaction relayed by a peer.
+	 */
+	public void addTransactionListener(OnTransactionBroadcastListener listener) {
+		peerGroup.addOnTransactionBroadcastListener(listener);
+	}
+
 	public List<TransactionOutput> potTransactionOutput(final NetworkParameters params) {
 		ECKey potAddress = appConfig.getPotPrivKey();
 		final List<TransactionOutput> retVal = new ArrayList<TransactionOutput>();
@@ -240,6 +313,7 @@ public class WalletService {
 
 	public void addWatching(Address address) {
 		wallet.addWatchedAddress(address);
+		staleAddresses.add(address);
 	}
 
 	@PreDestroy
@@ -350,6 +424,92 @@ public class WalletService {
 	 * @return
 	 */
 	public Map<Address, Coin> getBalanceByAddresses() {
+		return addressIndex().balances;
+	}
+
+	/***
+	 * Balance of a single address, same as the entry in {@link #getBalanceByAddresses()}.
+	 *
+	 * @return the balance, Coin.ZERO for watched addresses without unspent outputs or null if the address is
+	 * neither watched nor has unspent outputs.
+	 */
+	public Coin getBalanceByAddress(Address address) {
+		return addressIndex().balances.get(address);
+	}
+
+	public List<TransactionOutput> getUTXOByAddress(Address address) {
+		final List<TransactionOutput> utxoOfAddress = addressIndex().unspentOutputs.get(address);
+		return utxoOfAddress == null ? Collections.emptyList() : Collections.unmodifiableList(utxoOfAddress);
+	}
+
+	private void invalidateAddressIndex() {
+		walletVersion.incrementAndGet();
+		addressIndex = null;
+	}
+
+	/**
+	 * Marks the addresses of the outputs of the transaction and of the outputs it spends.
+	 */
+	private void markAddressesStale(Transaction tx) {
+		for (TransactionOutput output : tx.getOutputs()) {
+			addStaleAddress(output);
+		}
+		for (TransactionInput input : tx.getInputs()) {
+			TransactionOutput spent = input.getConnectedOutput();
+			if (spent == null) {
+				final Transaction parent = wallet.getTransaction(input.getOutpoint().getHash());
+				if (parent != null) {
+					spent = parent.getOutput(input.getOutpoint().getIndex());
+				}
+			}
+			if (spent != null) {
+				addStaleAddress(spent);
+			}
+		}
+	}
+
+	private void addStaleAddress(TransactionOutput output) {
+		final Address address = addressOf(output);
+		if (address != null) {
+			staleAddresses.add(address);
+		}
+	}
+
+	@Nullable
+	private Address addressOf(TransactionOutput output) {
+		final NetworkParameters params = appConfig.getNetworkParameters();
+		final Address address = output.getAddressFromP2SH(params);
+		return address != null ? address : output.getAddressFromP2PKHScript(params);
+	}
+
+	private AddressIndex addressIndex() {
+		final AddressIndex index = addressIndex;
+		if (index != null && staleAddresses.isEmpty()) {
+			return index;
+		}
+
+		synchronized (addressIndexLock) {
+			final long version = walletVersion.get();
+			final AddressIndex current = addressIndex;
+			final AddressIndex newIndex;
+			if (current == null) {
+				staleAddresses.clear();
+				newIndex = buildAddressIndex();
+			} else {
+				// Addresses marked from now on are handled by the next read
+				final Set<Address> stale = new HashSet<>(staleAddresses);
+				staleAddresses.removeAll(stale);
+				newIndex = current.update(stale, updateAddresses(stale));
+			}
+			// Only keep the index if it was not invalidated in the meantime
+			if (walletVersion.get() == version) {
+				addressIndex = newIndex;
+			}
+			return newIndex;
+		}
+	}
+
+	private AddressIndex buildAddressIndex() {
 		final NetworkParameters params = appConfig.getNetworkParameters();
 
 		AddressCoinSelector selector = new AddressCoinSelector(null, params);
@@ -365,21 +525,80 @@ public class WalletService {
 			}
 		}
 
-		return fullBalances;
+		Map<Address, List<TransactionOutput>> unspentOutputs = new HashMap<>();
+		for (TransactionOutput utxo : getAllSpendCandidates()) {
+			final Address address = utxo.getAddressFromP2SH(params);
+			if (address != null) {
+				unspentOutputs.computeIfAbsent(address, key -> new ArrayList<>()).add(utxo);
+			}
+		}
+
+		return new AddressIndex(fullBalances, unspentOutputs);
 	}
 
-	public List<TransactionOutput> getUTXOByAddress(Address address) {
+	/**
+	 * Same as {@link #buildAddressIndex()}, restricted to the given addresses. The unspent outputs are still
+	 * looked up in the whole wallet, but neither the balances of the other addresses nor the watched scripts are
+	 * computed again.
+	 */
+	private AddressIndex updateAddresses(Set<Address> addresses) {
 		final NetworkParameters params = appConfig.getNetworkParameters();
 
-		List<TransactionOutput> allUTXO = this.getAllSpendCandidates();
-		List<TransactionOutput> utxoOfAddress = new ArrayList<>();
-		for(TransactionOutput utxo : allUTXO) {
-			if (utxo.getAddressFromP2SH(params) != null && address.toString().equals(utxo.getAddressFromP2SH(params).toString())) {
-				utxoOfAddress.add(utxo);
+		final List<TransactionOutput> candidates = new ArrayList<>();
+		for (TransactionOutput utxo : getAllSpendCandidates()) {
+			if (addresses.contains(addressOf(utxo))) {
+				candidates.add(utxo);
+			}
+		}
+
+		AddressCoinSelector selector = new AddressCoinSelector(null, params);
+		selector.select(params.getMaxMoney(), candidates);
+
+		Map<Address, Coin> balances = new HashMap<>(selector.getAddressBalances());
+		for (Address address : addresses) {
+			if (!balances.containsKey(address) && wallet.isAddressWatched(address)) {
+				balances.put(address, Coin.ZERO);
+			}
+		}
+
+		Map<Address, List<TransactionOutput>> unspentOutputs = new HashMap<>();
+		for (TransactionOutput utxo : candidates) {
+			final Address address = utxo.getAddressFromP2SH(params);
+			if (address != null) {
+				unspentOutputs.computeIfAbsent(address, key -> new ArrayList<>()).add(utxo);
 			}
 		}
 
-		return utxoOfAddress;
+		return new AddressIndex(balances, unspentOutputs);
+	}
+
+	/**
+	 * Balances and unspent P2SH outputs per address, so that the balance of an account costs a lookup per address
+	 * instead of a pass over the whole wallet.
+	 */
+	private static class AddressIndex {
+		private final Map<Address, Coin> balances;
+		private final Map<Address, List<TransactionOutput>> unspentOutputs;
+
+		private AddressIndex(Map<Address, Coin> balances, Map<Address, List<TransactionOutput>> unspentOutputs) {
+			this.balances = Collections.unmodifiableMap(balances);
+			this.unspentOutputs = unspentOutputs;
+		}
+
+		/**
+		 * @return a copy in which the entries of the given addresses are replaced by those of the partial index
+		 */
+		private AddressIndex update(Set<Address> addresses, AddressIndex partial) {
+			final Map<Address, Coin> newBalances = new HashMap<>(balances);
+			final Map<Address, List<TransactionOutput>> newUnspentOutputs = new HashMap<>(unspentOutputs);
+			for (Address address : addresses) {
+				newBalances.remove(address);
+				newUnspentOutputs.remove(address);
+			}
+			newBalances.putAll(partial.balances);
+			newUnspentOutputs.putAll(partial.unspentOutputs);
+			return new AddressIndex(newBalances, newUnspentOutputs);
+		}
 	}
 
 	/***
@@ -0,0 +1,112 @@
+package com.coinblesk.server.config;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.guava.GuavaCache;
+import org.springframework.mock.env.MockEnvironment;
+
+public class RefreshingCacheManagerTest {
+
+	private RefreshingCacheManager cacheManager;
+
+	@Before
+	public void setUp() {
+		final MockEnvironment environment = new MockEnvironment();
+		environment.setProperty("coinblesk.cache.default", "maximumSize=2,recordStats");
+		environment.setProperty("coinblesk.cache.large", "maximumSize=100");
+		environment.setProperty("coinblesk.cache.refreshing", "maximumSize=10,refreshAfterWrite=1s");
+		cacheManager = new RefreshingCacheManager(environment);
+	}
+
+	@After
+	public void tearDown() {
+		cacheManager.shutdown();
+	}
+
+	@Test
+	public void testSettingsPerCache() {
+		final Cache small = cacheManager.getCache("small");
+		final Cache large = cacheManager.getCache("large");
+		for (int i = 0; i < 10; i++) {
+			small.put(i, i);
+			large.put(i, i);
+		}
+
+		Assert.assertEquals(2, nativeCache(small).size());
+		Assert.assertEquals(10, nativeCache(large).size());
+		// recordStats is only set by the default
+		small.get(0);
+		Assert.assertEquals(1, nativeCache(small).stats().requestCount());
+		large.get(0);
+		Assert.assertEquals(0, nativeCache(large).stats().requestCount());
+	}
+
+	@Test
+	public void testRefreshInBackground() throws Exception {
+		final AtomicInteger loads = new AtomicInteger();
+		cacheManager.registerRefresher("refreshing", key -> "fresh " + loads.incrementAndGet());
+		final Cache cache = cacheManager.getCache("refreshing");
+		cache.put("key", "stale");
+		Assert.assertEquals("stale", cache.get("key").get());
+
+		// The first read after the refresh time still returns the cached value
+		Thread.sleep(1100);
+		Assert.assertEquals("stale", cache.get("key").get());
+
+		final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (!"fresh 1".equals(cache.get("key").get()) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals("fresh 1", cache.get("key").get());
+		Assert.assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void testSyncReadRefreshesInBackground() throws Exception {
+		// Like @Cacheable(sync = true), the value loader must only be used on a miss
+		final AtomicInteger loads = new AtomicInteger();
+		final AtomicInteger valueLoaderCalls = new AtomicInteger();
+		cacheManager.registerRefresher("refreshing", key -> "fresh " + loads.incrementAndGet());
+		final Cache cache = cacheManager.getCache("refreshing");
+		Assert.assertEquals("loaded", cache.get("key", () -> {
+			valueLoaderCalls.incrementAndGet();
+			return "loaded";
+		}));
+		Assert.assertEquals(1, valueLoaderCalls.get());
+
+		Thread.sleep(1100);
+		Assert.assertEquals("loaded", cache.get("key", () -> {
+			valueLoaderCalls.incrementAndGet();
+			return "caller";
+		}));
+
+		final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (!"fresh 1".equals(cache.get("key", () -> "caller")) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals("fresh 1", cache.get("key", () -> "caller"));
+		Assert.assertEquals(1, valueLoaderCalls.get());
+		Assert.assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void testRefreshWithoutRefresherKeepsValue() throws Exception {
+		final Cache cache = cacheManager.getCache("refreshing");
+		cache.put("key", "stale");
+
+		Thread.sleep(1100);
+		Assert.assertEquals("stale", cache.get("key").get());
+		Thread.sleep(100);
+		Assert.assertEquals("stale", cache.get("key").get());
+	}
+
+	private static com.google.common.cache.Cache<Object, Object> nativeCache(Cache cache) {
+		return ((GuavaCache) cache).getNativeCache();
+	}
+}
@@ -0,0 +1,123 @@
+package com.coinblesk.server.controller;
+
+import static com.coinblesk.server.config.UserRole.ROLE_ADMIN;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.security.test.web.servlet.setup.SecurityMockMvcConfigurers.springSecurity;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.ECKey;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.request.RequestPostProcessor;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.WebApplicationContext;
+
+import com.coinblesk.server.service.AccountService;
+import com.coinblesk.server.utilTest.CoinbleskTest;
+import com.coinblesk.util.SerializeUtils;
+import com.jayway.jsonpath.JsonPath;
+
+/**
+ * The account pages are streamed from another thread, so the accounts of the test must be committed.
+ */
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class AuthAdminControllerTest extends CoinbleskTest {
+
+	private static MockMvc mockMvc;
+
+	@Autowired
+	private WebApplicationContext webAppContext;
+
+	@Autowired
+	private AccountService accountService;
+
+	private final List<ECKey> keys = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		mockMvc = MockMvcBuilders.webAppContextSetup(webAppContext).apply(springSecurity()).build();
+		for (int i = 0; i < 3; i++) {
+			final ECKey key = new ECKey();
+			accountService.createAccount(key);
+			keys.add(key);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		for (ECKey key : keys) {
+			accountService.deleteAccount(key);
+		}
+	}
+
+	@Test
+	public void accountsPageFollowsCursor() throws Exception {
+		// Newest accounts first, so the accounts of other tests come after the ones of this test
+		final MvcResult firstPage = getPage(get("/auth/admin/accounts/page").param("descending", "true").param
+			("limit", "2"))
+			.andExpect(jsonPath("$.accounts", Matchers.hasSize(2)))
+			.andExpect(jsonPath("$.accounts[0].clientPublicKey").value(hex(keys.get(2))))
+			.andExpect(jsonPath("$.accounts[1].clientPublicKey").value(hex(keys.get(1))))
+			.andExpect(jsonPath("$.nextCursor").isString())
+			.andReturn();
+
+		final String cursor = JsonPath.read(firstPage.getResponse().getContentAsString(), "$.nextCursor");
+		getPage(get("/auth/admin/accounts/page").param("descending", "true").param("limit", "2").param("cursor",
+			cursor))
+			.andExpect(jsonPath("$.accounts[0].clientPublicKey").value(hex(keys.get(0))));
+	}
+
+	@Test
+	public void accountsPageRejectsInvalidCursor() throws Exception {
+		mockMvc.perform(get("/auth/admin/accounts/page").param("cursor", "abc").with(admin()))
+			.andExpect(status().isBadRequest());
+	}
+
+	@Test
+	public void accountsPageRequiresAdmin() throws Exception {
+		mockMvc.perform(get("/auth/admin/accounts/page").with(user("user@coinblesk.test")))
+			.andExpect(status().isForbidden());
+	}
+
+	@Test
+	public void eventWriterStatus() throws Exception {
+		// Disabled in the tests, events are written synchronously
+		mockMvc.perform(get("/auth/admin/event-writer").with(admin()))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.running").value(false))
+			.andExpect(jsonPath("$.queueSize").value(0))
+			.andExpect(jsonPath("$.dropped").value(0));
+	}
+
+	private ResultActions getPage(MockHttpServletRequestBuilder requestBuilder) throws Exception {
+		final MvcResult result = mockMvc.perform(requestBuilder.with(admin()))
+			.andExpect(request().asyncStarted())
+			.andReturn();
+		return mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk());
+	}
+
+	private static RequestPostProcessor admin() {
+		return user("admin@coinblesk.test").authorities(new SimpleGrantedAuthority(ROLE_ADMIN));
+	}
+
+	private static String hex(ECKey key) {
+		return SerializeUtils.bytesToHex(key.getPubKey());
+	}
+}
@@ -306,6 +306,41 @@ public class AuthTest extends CoinbleskTest {
 		Assert.assertEquals(mail, userAccountTO.email());
 	}
 
+	@Test
+	public void cachedTokenIsRejectedAfterExpiry() throws Exception {
+		final String mail = "log_me_in@valid-email.test";
+		createUser(mail, "lsdj=231lkjXsdlkj");
+		activateUserHelper(mail);
+
+		String jwt = Jwts.builder().setSubject(mail).claim("auth", "ROLE_USER").signWith(SignatureAlgorithm.HS256,
+			appConfig.getJwtSecret().getBytes()).setExpiration(Date.from(Instant.now().plus(Duration.ofSeconds(2))))
+			.compact();
+
+		// The second request is answered from the token cache
+		mockMvc.perform(get("/auth/common/user-account").header("Authorization", "Bearer " + jwt)).andExpect(status()
+			.isOk());
+		mockMvc.perform(get("/auth/common/user-account").header("Authorization", "Bearer " + jwt)).andExpect(status()
+			.isOk());
+
+		Thread.sleep(3000);
+		mockMvc.perform(get("/auth/common/user-account").header("Authorization", "Bearer " + jwt)).andExpect(status()
+			.isUnauthorized());
+	}
+
+	@Test
+	public void getProfileFailsWithWrongSignature() throws Exception {
+		final String mail = "log_me_in@valid-email.test";
+		createUser(mail, "lsdj=231lkjXsdlkj");
+		activateUserHelper(mail);
+
+		String jwt = Jwts.builder().setSubject(mail).claim("auth", "ROLE_USER").signWith(SignatureAlgorithm.HS256,
+			"not the secret".getBytes()).setExpiration(Date.from(Instant.now().plus(Duration.ofHours(1))))
+			.compact();
+
+		mockMvc.perform(get("/auth/common/user-account").header("Authorization", "Bearer " + jwt)).andExpect(status()
+			.is4xxClientError());
+	}
+
 	public void createUserHelper(String email, String password) {
 		UserAccount userAccount = new UserAccount();
 		userAccount.setBalance(BigDecimal.valueOf(0.0));
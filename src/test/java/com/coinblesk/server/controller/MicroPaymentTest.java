@@ -90,7 +90,7 @@ public class MicroPaymentTest extends CoinbleskTest {
 	public void setUp() throws Exception {
 		mockMvc = MockMvcBuilders.webAppContextSetup(webAppContext).build();
 		params = appConfig.getNetworkParameters();
-		oneUSD = Coin.valueOf(BigDecimal.valueOf(100000000).divide(forexService.getBitstampCurrentRateBTCUSD().getRate(), BigDecimal.ROUND_UP).longValue());
+		oneUSD = Coin.valueOf(BigDecimal.valueOf(100000000).divide(forexService.getCachedRateBTCUSD().getRate(), BigDecimal.ROUND_UP).longValue());
 		channelThreshold = oneUSD.multiply(appConfig.getMaximumChannelAmountUSD());
 		serverKey = appConfig.getMicroPaymentPotPrivKey();
 	}
@@ -22,6 +22,8 @@ import static org.junit.Assert.assertTrue;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.persistence.EntityManager;
@@ -230,6 +232,32 @@ public class AccountServiceTest extends CoinbleskTest {
 		assertEquals(intoDB, fromRedeemScript);
 	}
 
+	@Test
+	public void forEachAddressHashPageReturnsAllAddressesInIdOrder() throws InvalidLockTimeException,
+		UserNotFoundException {
+		final ECKey clientKey = new ECKey();
+		accountService.createAccount(clientKey);
+		final List<byte[]> created = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			created.add(accountService.createTimeLockedAddress(clientKey, validLocktime() + i).getTimeLockedAddress()
+				.getAddressHash());
+		}
+
+		final List<Object[]> rows = new ArrayList<>();
+		final int count = accountService.forEachAddressHashPage(2, page -> {
+			assertTrue(page.size() <= 2);
+			rows.addAll(page);
+		});
+
+		assertEquals(rows.size(), count);
+		for (int i = 1; i < rows.size(); i++) {
+			assertTrue((Long) rows.get(i - 1)[0] < (Long) rows.get(i)[0]);
+		}
+		for (byte[] addressHash : created) {
+			assertTrue(rows.stream().anyMatch(row -> Arrays.equals(addressHash, (byte[]) row[1])));
+		}
+	}
+
 	@Test
 	public void moveVirtualBalanceFromAToBAndDeleteA() {
 		ECKey accountAKey = new ECKey();
@@ -0,0 +1,192 @@
+package com.coinblesk.server.service;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.persistence.EntityManager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.dao.EventRepository;
+import com.coinblesk.server.entity.Event;
+import com.coinblesk.server.enumerator.EventOverflowPolicy;
+import com.coinblesk.server.enumerator.EventType;
+import com.coinblesk.server.enumerator.EventUrgence;
+
+/**
+ * Runs the writer against a mocked {@link EventRepository}. The first batch blocks the writer thread until it is
+ * released, so the queue fills up.
+ */
+public class AsyncEventWriterTest {
+
+	private static final int CAPACITY = 2;
+
+	private final List<Event> saved = Collections.synchronizedList(new ArrayList<>());
+	private final CountDownLatch firstBatchStarted = new CountDownLatch(1);
+	private final CountDownLatch firstBatchReleased = new CountDownLatch(1);
+
+	private EventRepository eventRepository;
+	private AppConfig appConfig;
+	private AsyncEventWriter writer;
+
+	@Before
+	public void setUp() {
+		eventRepository = mock(EventRepository.class);
+		final AtomicBoolean first = new AtomicBoolean(true);
+		doAnswer(invocation -> {
+			@SuppressWarnings("unchecked")
+			final Iterable<Event> batch = (Iterable<Event>) invocation.getArguments()[0];
+			batch.forEach(saved::add);
+			if (first.compareAndSet(true, false)) {
+				firstBatchStarted.countDown();
+				try {
+					firstBatchReleased.await();
+				} catch (InterruptedException e) {
+					// Shutdown, the batch is done
+				}
+			}
+			return batch;
+		}).when(eventRepository).save(Matchers.<Iterable<Event>>any());
+
+		appConfig = mock(AppConfig.class);
+		when(appConfig.isEventsAsyncEnabled()).thenReturn(true);
+		when(appConfig.getEventsAsyncCapacity()).thenReturn(CAPACITY);
+		when(appConfig.getEventsAsyncBatchSize()).thenReturn(1);
+	}
+
+	@After
+	public void tearDown() {
+		firstBatchReleased.countDown();
+		if (writer != null) {
+			writer.shutdown();
+		}
+	}
+
+	@Test
+	public void testDropNewest() throws Exception {
+		final List<Event> events = fillQueue(EventOverflowPolicy.DROP_NEWEST);
+
+		Assert.assertTrue(writer.add(events.get(3)));
+		Assert.assertEquals(1L, writer.getDroppedCount());
+		Assert.assertEquals(CAPACITY, writer.getQueueSize());
+
+		writer.shutdown();
+		Assert.assertEquals(events.subList(0, 3), saved);
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		final List<Event> events = fillQueue(EventOverflowPolicy.DROP_OLDEST);
+
+		Assert.assertTrue(writer.add(events.get(3)));
+		Assert.assertEquals(1L, writer.getDroppedCount());
+		Assert.assertEquals(CAPACITY, writer.getQueueSize());
+
+		writer.shutdown();
+		Assert.assertEquals(Arrays.asList(events.get(0), events.get(2), events.get(3)), saved);
+	}
+
+	@Test
+	public void testCallerWrites() throws Exception {
+		final List<Event> events = fillQueue(EventOverflowPolicy.CALLER_WRITES);
+
+		Assert.assertFalse(writer.add(events.get(3)));
+		Assert.assertEquals(0L, writer.getDroppedCount());
+
+		writer.shutdown();
+		Assert.assertEquals(events.subList(0, 3), saved);
+	}
+
+	@Test
+	public void testShutdownWritesWaitingEvents() throws Exception {
+		final List<Event> events = fillQueue(EventOverflowPolicy.DROP_NEWEST);
+
+		// The writer is interrupted while it writes the first batch, the waiting events are written on shutdown
+		writer.shutdown();
+		Assert.assertFalse(writer.isRunning());
+		Assert.assertEquals(0, writer.getQueueSize());
+		Assert.assertEquals(events.subList(0, 3), saved);
+
+		Assert.assertFalse(writer.add(events.get(3)));
+	}
+
+	@Test
+	public void testDisabledWriterIsNotUsed() {
+		when(appConfig.isEventsAsyncEnabled()).thenReturn(false);
+		writer = new AsyncEventWriter(eventRepository, appConfig, mock(PlatformTransactionManager.class));
+		writer.init();
+
+		Assert.assertFalse(writer.isRunning());
+		Assert.assertFalse(writer.add(event(EventUrgence.INFO, "event")));
+	}
+
+	@Test
+	public void testFatalEventsAreWrittenSynchronously() {
+		final AsyncEventWriter asyncEventWriter = mock(AsyncEventWriter.class);
+		when(asyncEventWriter.add(any(Event.class))).thenReturn(true);
+		when(appConfig.isEventsAsyncSyncFatal()).thenReturn(true);
+		final EventService eventService = new EventService(eventRepository, mock(MailService.class),
+			asyncEventWriter, appConfig, mock(EntityManager.class));
+
+		eventService.info(EventType.USER_ACCOUNT_LOGIN_FAILED, "queued");
+		final ArgumentCaptor<Event> queued = ArgumentCaptor.forClass(Event.class);
+		verify(asyncEventWriter).add(queued.capture());
+		Assert.assertEquals(EventUrgence.INFO, queued.getValue().getUrgence());
+		verify(eventRepository, never()).save(any(Event.class));
+
+		eventService.fatal(EventType.USER_ACCOUNT_LOGIN_FAILED, "written");
+		final ArgumentCaptor<Event> written = ArgumentCaptor.forClass(Event.class);
+		verify(eventRepository).save(written.capture());
+		Assert.assertEquals(EventUrgence.FATAL, written.getValue().getUrgence());
+	}
+
+	/**
+	 * Starts the writer, blocks it with the first event and fills the queue with the next two.
+	 *
+	 * @return four events, the last one is not added yet
+	 */
+	private List<Event> fillQueue(EventOverflowPolicy policy) throws InterruptedException {
+		when(appConfig.getEventsAsyncOverflowPolicy()).thenReturn(policy);
+		writer = new AsyncEventWriter(eventRepository, appConfig, mock(PlatformTransactionManager.class));
+		writer.init();
+
+		final List<Event> events = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			events.add(event(EventUrgence.INFO, "event " + i));
+		}
+		Assert.assertTrue(writer.add(events.get(0)));
+		Assert.assertTrue(firstBatchStarted.await(10, TimeUnit.SECONDS));
+		Assert.assertTrue(writer.add(events.get(1)));
+		Assert.assertTrue(writer.add(events.get(2)));
+		Assert.assertEquals(CAPACITY, writer.getQueueSize());
+		return events;
+	}
+
+	// Events are compared by value, so every event of a test needs its own description
+	private static Event event(EventUrgence urgence, String description) {
+		final Event event = new Event();
+		event.setUrgence(urgence);
+		event.setDescription(description);
+		event.setType(EventType.USER_ACCOUNT_LOGIN_FAILED);
+		return event;
+	}
+}
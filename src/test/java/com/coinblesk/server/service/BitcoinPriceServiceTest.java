@@ -0,0 +1,65 @@
+package com.coinblesk.server.service;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.coinblesk.server.exceptions.CoinbleskInternalError;
+import com.coinblesk.server.utilTest.LocalPriceProvider;
+
+public class BitcoinPriceServiceTest {
+
+	private static final long TIMEOUT_MILLIS = 500;
+	private static final BigDecimal MAX_DEVIATION = new BigDecimal("0.05");
+
+	@Test
+	public void testMedian() {
+		BitcoinPriceService service = service(1, provider("a", "1000"), provider("b", "1020"), provider("c", "1010"));
+		Assert.assertEquals(0, new BigDecimal("1010").compareTo(service.fetchRateBTCUSD().getRate()));
+	}
+
+	@Test
+	public void testOutlierRejected() {
+		BitcoinPriceService service = service(1, provider("a", "1000"), provider("b", "1010"), provider("c", "5000"));
+		Assert.assertEquals(0, new BigDecimal("1005").compareTo(service.fetchRateBTCUSD().getRate()));
+	}
+
+	@Test
+	public void testSlowProviderSkipped() {
+		BitcoinPriceService service = service(1, provider("a", "1000"), provider("b", "1010"), provider("slow",
+			"1").setDelayMillis(10_000));
+
+		long start = System.currentTimeMillis();
+		BigDecimal rate = service.fetchRateBTCUSD().getRate();
+		Assert.assertTrue(System.currentTimeMillis() - start < 5_000);
+		Assert.assertEquals(0, new BigDecimal("1005").compareTo(rate));
+	}
+
+	@Test
+	public void testFailingProviderSkipped() {
+		BitcoinPriceService service = service(1, provider("a", "1000"), provider("b", "2000").setFailing(true));
+		Assert.assertEquals(0, new BigDecimal("1000").compareTo(service.fetchRateBTCUSD().getRate()));
+	}
+
+	@Test(expected = CoinbleskInternalError.class)
+	public void testNotEnoughProviders() {
+		service(2, provider("a", "1000"), provider("b", "2000").setFailing(true)).fetchRateBTCUSD();
+	}
+
+	@Test(expected = CoinbleskInternalError.class)
+	public void testAllFailing() {
+		service(1, provider("a", "1000").setFailing(true), provider("b", "1").setDelayMillis(10_000))
+			.fetchRateBTCUSD();
+	}
+
+	private static BitcoinPriceService service(int minProviders, LocalPriceProvider... providers) {
+		return new BitcoinPriceService(Arrays.<BitcoinPriceProvider>asList(providers), TIMEOUT_MILLIS, MAX_DEVIATION,
+			minProviders);
+	}
+
+	private static LocalPriceProvider provider(String name, String price) {
+		return new LocalPriceProvider(name, new BigDecimal(price));
+	}
+}
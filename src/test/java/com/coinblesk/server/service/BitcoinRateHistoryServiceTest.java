@@ -0,0 +1,171 @@
+package com.coinblesk.server.service;
+
+import static com.coinblesk.enumerator.ForexCurrency.CHF;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.coinblesk.dto.ForexDTO;
+import com.coinblesk.enumerator.ForexCurrency;
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.dao.BitcoinRateHistoryRepository;
+import com.coinblesk.server.entity.BitcoinRateHistory;
+import com.coinblesk.server.utilTest.CoinbleskTest;
+
+/**
+ * Fills the history from a mocked {@link ForexBitcoinService}, the other currencies get no rates.
+ */
+public class BitcoinRateHistoryServiceTest extends CoinbleskTest {
+
+	private static final int HISTORY_DAYS = 10;
+
+	@Autowired
+	private BitcoinRateHistoryRepository repository;
+
+	private final LocalDate yesterday = LocalDate.now(ZoneOffset.UTC).minusDays(1);
+
+	private ForexBitcoinService forexBitcoinService;
+	private BitcoinRateHistoryService historyService;
+
+	@Before
+	public void setUp() {
+		repository.deleteAll();
+		forexBitcoinService = mock(ForexBitcoinService.class);
+		final AppConfig appConfig = mock(AppConfig.class);
+		when(appConfig.getForexHistoryDays()).thenReturn(HISTORY_DAYS);
+		historyService = new BitcoinRateHistoryService(repository, forexBitcoinService, appConfig);
+	}
+
+	@Test
+	public void testFirstUpdateFillsHistory() throws Exception {
+		final LocalDate oldest = yesterday.minusDays(HISTORY_DAYS - 1);
+		when(forexBitcoinService.getCoindeskHistoricRates(CHF, oldest, yesterday)).thenReturn(rates(oldest,
+			yesterday));
+
+		Assert.assertFalse(historyService.hasHistory(CHF));
+		historyService.update();
+
+		Assert.assertTrue(historyService.hasHistory(CHF));
+		Assert.assertEquals(HISTORY_DAYS, historyService.getRates(CHF, oldest, yesterday).size());
+	}
+
+	@Test
+	public void testUpdateFetchesMissingDaysOnly() throws Exception {
+		store(yesterday.minusDays(5), yesterday.minusDays(3));
+		// The upstream range is inclusive and may contain the last stored day again
+		when(forexBitcoinService.getCoindeskHistoricRates(CHF, yesterday.minusDays(2), yesterday)).thenReturn(rates(
+			yesterday.minusDays(3), yesterday));
+
+		historyService.update();
+
+		final List<ForexDTO> stored = historyService.getRates(CHF, yesterday.minusDays(5), yesterday);
+		Assert.assertEquals(6, stored.size());
+		for (int i = 0; i < stored.size(); i++) {
+			Assert.assertEquals(0, rate(yesterday.minusDays(5 - i)).compareTo(stored.get(i).getRate()));
+		}
+	}
+
+	@Test
+	public void testUpToDateHistoryIsNotFetched() throws Exception {
+		store(yesterday.minusDays(2), yesterday);
+
+		historyService.update();
+
+		verify(forexBitcoinService, never()).getCoindeskHistoricRates(eq(CHF), any(LocalDate.class), any(
+			LocalDate.class));
+	}
+
+	@Test
+	public void testOldHistoryIsFilledFromOldestDay() throws Exception {
+		// Last stored day is older than the history, the days in between are not fetched
+		store(yesterday.minusDays(HISTORY_DAYS + 20), yesterday.minusDays(HISTORY_DAYS + 20));
+		final LocalDate oldest = yesterday.minusDays(HISTORY_DAYS - 1);
+		when(forexBitcoinService.getCoindeskHistoricRates(CHF, oldest, yesterday)).thenReturn(rates(oldest,
+			yesterday));
+
+		historyService.update();
+
+		Assert.assertEquals(HISTORY_DAYS + 1, historyService.getRates(CHF, yesterday.minusDays(HISTORY_DAYS + 20),
+			yesterday).size());
+		Assert.assertEquals(0, historyService.getRates(CHF, yesterday.minusDays(HISTORY_DAYS + 19), oldest
+			.minusDays(1)).size());
+	}
+
+	@Test
+	public void testDaysWithoutRateStayMissing() throws Exception {
+		final LocalDate oldest = yesterday.minusDays(HISTORY_DAYS - 1);
+		final Map<LocalDate, BigDecimal> rates = rates(oldest, yesterday);
+		rates.remove(yesterday.minusDays(4));
+		when(forexBitcoinService.getCoindeskHistoricRates(CHF, oldest, yesterday)).thenReturn(rates);
+
+		historyService.update();
+
+		final List<ForexDTO> stored = historyService.getRates(CHF, yesterday.minusDays(5), yesterday.minusDays(3));
+		Assert.assertEquals(2, stored.size());
+		Assert.assertEquals(day(yesterday.minusDays(5)), stored.get(0).getUpdatedAt().getTime());
+		Assert.assertEquals(day(yesterday.minusDays(3)), stored.get(1).getUpdatedAt().getTime());
+
+		// Not fetched again, the history ends with yesterday
+		historyService.update();
+		Assert.assertEquals(HISTORY_DAYS - 1, historyService.getRates(CHF, oldest, yesterday).size());
+	}
+
+	@Test
+	public void testRangeIsInclusiveAndOrdered() throws Exception {
+		store(yesterday.minusDays(9), yesterday);
+
+		final List<ForexDTO> stored = historyService.getRates(CHF, yesterday.minusDays(6), yesterday.minusDays(2));
+		Assert.assertEquals(5, stored.size());
+		Assert.assertEquals(day(yesterday.minusDays(6)), stored.get(0).getUpdatedAt().getTime());
+		Assert.assertEquals(day(yesterday.minusDays(2)), stored.get(4).getUpdatedAt().getTime());
+		for (ForexDTO dto : stored) {
+			Assert.assertEquals(ForexCurrency.BTC, dto.getCurrencyFrom());
+			Assert.assertEquals(CHF, dto.getCurrencyTo());
+		}
+
+		Assert.assertTrue(historyService.getRates(CHF, yesterday.plusDays(1), yesterday.plusDays(5)).isEmpty());
+		Assert.assertTrue(historyService.getRates(ForexCurrency.EUR, yesterday.minusDays(9), yesterday).isEmpty());
+	}
+
+	private void store(LocalDate from, LocalDate to) {
+		for (Map.Entry<LocalDate, BigDecimal> entry : rates(from, to).entrySet()) {
+			final BitcoinRateHistory row = new BitcoinRateHistory();
+			row.setCurrency(CHF);
+			row.setDay(entry.getKey().toEpochDay());
+			row.setRate(entry.getValue());
+			repository.save(row);
+		}
+	}
+
+	private static Map<LocalDate, BigDecimal> rates(LocalDate from, LocalDate to) {
+		final Map<LocalDate, BigDecimal> rates = new TreeMap<>();
+		for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+			rates.put(day, rate(day));
+		}
+		return rates;
+	}
+
+	// Different for every day, so a row stored for the wrong day is noticed
+	private static BigDecimal rate(LocalDate day) {
+		return BigDecimal.valueOf(day.toEpochDay() % 1000 + 1000, 2);
+	}
+
+	private static long day(LocalDate day) {
+		return day.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+	}
+}
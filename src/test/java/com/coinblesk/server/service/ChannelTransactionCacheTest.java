@@ -0,0 +1,109 @@
+package com.coinblesk.server.service;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.service.ChannelTransactionCache.ChannelTransaction;
+import com.coinblesk.server.utils.CoinUtils;
+
+public class ChannelTransactionCacheTest {
+
+	private final NetworkParameters params = UnitTestParams.get();
+	private final ECKey serverKey = new ECKey();
+
+	private WalletService walletService;
+	private ChannelTransactionCache cache;
+
+	@Before
+	public void setUp() {
+		final AppConfig appConfig = mock(AppConfig.class);
+		when(appConfig.getNetworkParameters()).thenReturn(params);
+		when(appConfig.getMicroPaymentPotPrivKey()).thenReturn(serverKey);
+		walletService = mock(WalletService.class);
+		when(walletService.findOutputFor(any(TransactionInput.class))).thenReturn(new TransactionOutput(params, null,
+			Coin.valueOf(10_000), new ECKey().toAddress(params)));
+		cache = new ChannelTransactionCache(appConfig, walletService);
+	}
+
+	@Test
+	public void testDerivedValues() {
+		final Transaction tx = channelTransaction(1_000, 500);
+		final ChannelTransaction channel = cache.get(tx.bitcoinSerialize());
+
+		Assert.assertEquals(Coin.valueOf(1_000), channel.getServerOutputValue());
+		Assert.assertEquals(Coin.valueOf(1_500), channel.getServerOutputTotal());
+		Assert.assertEquals(CoinUtils.trackingHash(tx), channel.getTrackingHash());
+		// One input of 10000 from the wallet, outputs of 1000, 500 and 2000 to the client
+		Assert.assertEquals(Coin.valueOf(6_500), channel.getFee());
+		Assert.assertEquals(Coin.valueOf(6_500), channel.getFee());
+		verify(walletService, times(1)).findOutputFor(any(TransactionInput.class));
+	}
+
+	@Test
+	public void testNoServerOutput() {
+		final ChannelTransaction channel = cache.get(channelTransaction().bitcoinSerialize());
+		Assert.assertEquals(Coin.ZERO, channel.getServerOutputValue());
+		Assert.assertEquals(Coin.ZERO, channel.getServerOutputTotal());
+	}
+
+	@Test
+	public void testSameBytesAreDecodedOnce() {
+		final byte[] txBytes = channelTransaction(1_000).bitcoinSerialize();
+		final ChannelTransaction first = cache.get(txBytes);
+		Assert.assertSame(first, cache.get(txBytes.clone()));
+		Assert.assertNotSame(first, cache.get(channelTransaction(2_000).bitcoinSerialize()));
+	}
+
+	@Test
+	public void testEvict() {
+		final byte[] txBytes = channelTransaction(1_000).bitcoinSerialize();
+		final ChannelTransaction first = cache.get(txBytes);
+
+		cache.evict(txBytes);
+		cache.evict(null);
+		final ChannelTransaction second = cache.get(txBytes);
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(first.getTrackingHash(), second.getTrackingHash());
+	}
+
+	@Test
+	public void testParseIsNotShared() {
+		final byte[] txBytes = channelTransaction(1_000).bitcoinSerialize();
+		final Transaction parsed = cache.parse(txBytes);
+		Assert.assertNotSame(parsed, cache.parse(txBytes));
+		Assert.assertEquals(Sha256Hash.of(txBytes), Sha256Hash.of(parsed.bitcoinSerialize()));
+	}
+
+	// Outputs to the server with the given values, followed by an output of 2000 to the client
+	private Transaction channelTransaction(long... serverOutputs) {
+		final Transaction tx = new Transaction(params);
+		final Transaction previous = new Transaction(params);
+		final TransactionOutput spent = new TransactionOutput(params, previous, Coin.valueOf(10_000), new ECKey()
+			.toAddress(params));
+		previous.addOutput(spent);
+		tx.addInput(spent).setScriptSig(ScriptBuilder.createInputScript(TransactionSignature.dummy()));
+		for (long value : serverOutputs) {
+			tx.addOutput(Coin.valueOf(value), serverKey.toAddress(params));
+		}
+		tx.addOutput(Coin.valueOf(2_000), new ECKey().toAddress(params));
+		return tx;
+	}
+}
@@ -0,0 +1,80 @@
+package com.coinblesk.server.service;
+
+import static com.coinblesk.server.enumerator.EventType.MICRO_PAYMENT_PAYOUT_ERROR;
+import static com.coinblesk.server.enumerator.EventType.SERVER_BALANCE_NOT_IN_SYNC;
+import static com.coinblesk.server.enumerator.EventType.USER_ACCOUNT_LOGIN_FAILED;
+import static com.coinblesk.server.enumerator.EventUrgence.ERROR;
+import static com.coinblesk.server.enumerator.EventUrgence.FATAL;
+import static com.coinblesk.server.enumerator.EventUrgence.WARN;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.coinblesk.server.enumerator.EventType;
+
+public class EventCountersTest {
+
+	private static final long MINUTE = 60_000;
+
+	private final AtomicLong now = new AtomicLong(1_000_000 * MINUTE);
+	private final EventCounters counters = new EventCounters(MINUTE, 10, now::get);
+
+	@Test
+	public void testCountByUrgenceAndType() {
+		counters.record(WARN, USER_ACCOUNT_LOGIN_FAILED);
+		counters.record(WARN, USER_ACCOUNT_LOGIN_FAILED);
+		counters.record(ERROR, MICRO_PAYMENT_PAYOUT_ERROR);
+
+		Assert.assertEquals(2, counters.count(WARN));
+		Assert.assertEquals(1, counters.count(ERROR));
+		Assert.assertEquals(0, counters.count(FATAL));
+
+		Map<EventType, Long> warnings = counters.countByType(WARN);
+		Assert.assertEquals(1, warnings.size());
+		Assert.assertEquals(2L, warnings.get(USER_ACCOUNT_LOGIN_FAILED).longValue());
+	}
+
+	@Test
+	public void testWindowSlides() {
+		counters.record(FATAL, SERVER_BALANCE_NOT_IN_SYNC);
+		now.addAndGet(5 * MINUTE);
+		counters.record(FATAL, SERVER_BALANCE_NOT_IN_SYNC);
+		Assert.assertEquals(2, counters.count(FATAL));
+
+		// The first event leaves the window after 10 buckets
+		now.addAndGet(5 * MINUTE);
+		Assert.assertEquals(1, counters.count(FATAL));
+
+		// The bucket of the first event is reused and starts from zero
+		counters.record(FATAL, SERVER_BALANCE_NOT_IN_SYNC);
+		Assert.assertEquals(2, counters.count(FATAL));
+
+		now.addAndGet(20 * MINUTE);
+		Assert.assertEquals(0, counters.count(FATAL));
+		Assert.assertTrue(counters.countByType(FATAL).isEmpty());
+	}
+
+	@Test
+	public void testConcurrentRecording() throws InterruptedException {
+		final int threads = 8;
+		final int eventsPerThread = 10_000;
+		List<Thread> workers = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			workers.add(new Thread(() -> {
+				for (int j = 0; j < eventsPerThread; j++) {
+					counters.record(ERROR, MICRO_PAYMENT_PAYOUT_ERROR);
+				}
+			}));
+		}
+		workers.forEach(Thread::start);
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		Assert.assertEquals(threads * eventsPerThread, counters.count(ERROR));
+	}
+}
@@ -0,0 +1,118 @@
+package com.coinblesk.server.service;
+
+import static com.coinblesk.server.enumerator.EventType.MICRO_PAYMENT_PAYOUT_ERROR;
+import static com.coinblesk.server.enumerator.EventType.USER_ACCOUNT_LOGIN_FAILED;
+import static com.coinblesk.server.enumerator.EventUrgence.ERROR;
+import static com.coinblesk.server.enumerator.EventUrgence.INFO;
+import static com.coinblesk.server.enumerator.EventUrgence.WARN;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.coinblesk.server.dao.EventRepository;
+import com.coinblesk.server.entity.Event;
+import com.coinblesk.server.enumerator.EventType;
+import com.coinblesk.server.enumerator.EventUrgence;
+import com.coinblesk.server.service.EventService.EventQuery;
+import com.coinblesk.server.utilTest.CoinbleskTest;
+
+public class EventServiceTest extends CoinbleskTest {
+
+	private static final long START = 1_500_000_000_000L;
+
+	@Autowired
+	private EventService eventService;
+
+	@Autowired
+	private EventRepository eventRepository;
+
+	@Autowired
+	private EventRetentionService eventRetentionService;
+
+	@Before
+	public void setUp() {
+		eventRepository.deleteAll();
+		// Pairs of events with the same date, to page through ties
+		for (int i = 0; i < 10; i++) {
+			save(new Date(START + i / 2 * 1000), i % 2 == 0 ? WARN : ERROR, i < 6 ? USER_ACCOUNT_LOGIN_FAILED :
+				MICRO_PAYMENT_PAYOUT_ERROR);
+		}
+		save(new Date(START), INFO, USER_ACCOUNT_LOGIN_FAILED);
+	}
+
+	@Test
+	public void testPagesNewestFirst() {
+		EventQuery query = new EventQuery();
+		query.setMinUrgence(WARN);
+		query.setLimit(3);
+
+		List<Event> all = new ArrayList<>();
+		List<Event> page;
+		do {
+			page = eventService.getEvents(query);
+			all.addAll(page);
+			if (!page.isEmpty()) {
+				Event last = page.get(page.size() - 1);
+				query.setBeforeDate(last.getDate());
+				query.setBeforeId(last.getId());
+			}
+		} while (page.size() == query.getLimit());
+
+		Assert.assertEquals(10, all.size());
+		for (int i = 1; i < all.size(); i++) {
+			Event previous = all.get(i - 1);
+			Event current = all.get(i);
+			Assert.assertTrue(previous.getDate().getTime() > current.getDate().getTime() || previous.getDate()
+				.getTime() == current.getDate().getTime() && previous.getId() > current.getId());
+		}
+	}
+
+	@Test
+	public void testFilters() {
+		EventQuery query = new EventQuery();
+		query.setMinUrgence(ERROR);
+		Assert.assertEquals(5, eventService.getEvents(query).size());
+
+		query.setType(MICRO_PAYMENT_PAYOUT_ERROR);
+		Assert.assertEquals(2, eventService.getEvents(query).size());
+
+		query = new EventQuery();
+		query.setFrom(new Date(START + 1000));
+		query.setTo(new Date(START + 3000));
+		Assert.assertEquals(4, eventService.getEvents(query).size());
+
+		query = new EventQuery();
+		Assert.assertEquals(11, eventService.getEvents(query).size());
+	}
+
+	@Test
+	public void testUrgenceOrHigher() {
+		Assert.assertEquals(10, eventService.getEventsWithUrgenceOrHigher(WARN).size());
+		Assert.assertEquals(11, eventService.getEventsWithUrgenceOrHigher(INFO).size());
+	}
+
+	@Test
+	public void testRetentionRemovesOldEvents() {
+		save(new Date(), WARN, USER_ACCOUNT_LOGIN_FAILED);
+
+		// All events of the setup are from 2017
+		Assert.assertEquals(11, eventRetentionService.removeOldEntries());
+		Assert.assertEquals(0, eventRetentionService.removeOldEntries());
+		Assert.assertEquals(1, eventService.getEventsWithUrgenceOrHigher(WARN).size());
+	}
+
+	private void save(Date date, EventUrgence urgence, EventType type) {
+		Event event = new Event();
+		event.setDate(date);
+		event.setUrgence(urgence);
+		event.setType(type);
+		event.setDescription(urgence + " " + type);
+		eventRepository.save(event);
+	}
+}
@@ -0,0 +1,108 @@
+package com.coinblesk.server.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.utilTest.CoinbleskTest;
+
+public class FeeEstimationServiceTest extends CoinbleskTest {
+
+	@Autowired
+	private AppConfig appConfig;
+
+	@Autowired
+	private WalletService walletService;
+
+	private NetworkParameters params;
+
+	// Not registered with the peer group, so only the synthetic transactions are sampled
+	private FeeEstimationService feeEstimationService;
+
+	@Before
+	public void setUp() {
+		params = appConfig.getNetworkParameters();
+		feeEstimationService = new FeeEstimationService(walletService);
+	}
+
+	@Test
+	public void testNotEnoughSamples() {
+		Assert.assertNull(feeEstimationService.estimate(50));
+
+		Transaction funding = fundingTx(1);
+		feeEstimationService.addBlock(listOf(funding, spend(funding, 0, 10000)));
+		Assert.assertNull(feeEstimationService.estimate(50));
+		Assert.assertEquals(1, feeEstimationService.getSampleCount());
+	}
+
+	@Test
+	public void testEstimateFromBlock() {
+		Transaction funding = fundingTx(20);
+		List<Transaction> block = listOf(funding);
+		List<Long> feeRates = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			Transaction tx = spend(funding, i, (i + 1) * 1000);
+			block.add(tx);
+			feeRates.add((i + 1) * 1000L / tx.unsafeBitcoinSerialize().length);
+		}
+		feeEstimationService.addBlock(block);
+
+		Assert.assertEquals(20, feeEstimationService.getSampleCount());
+		Assert.assertEquals(feeRates.get(9).intValue(), feeEstimationService.estimate(50).intValue());
+		Assert.assertEquals(feeRates.get(19).intValue(), feeEstimationService.estimate(100).intValue());
+	}
+
+	@Test
+	public void testEstimateFromRelayedTransactions() {
+		Transaction funding = fundingTx(10);
+		feeEstimationService.addTransaction(funding);
+		for (int i = 0; i < 10; i++) {
+			feeEstimationService.addTransaction(spend(funding, i, 5000));
+		}
+		Assert.assertEquals(10, feeEstimationService.getSampleCount());
+		Assert.assertNotNull(feeEstimationService.estimate(90));
+	}
+
+	@Test
+	public void testUnknownInputsAreIgnored() {
+		Transaction unknownFunding = fundingTx(10);
+		for (int i = 0; i < 10; i++) {
+			feeEstimationService.addTransaction(spend(unknownFunding, i, 5000));
+		}
+		Assert.assertEquals(0, feeEstimationService.getSampleCount());
+	}
+
+	private Transaction fundingTx(int outputs) {
+		Transaction tx = new Transaction(params);
+		for (int i = 0; i < outputs; i++) {
+			tx.addOutput(Coin.COIN, new ECKey());
+		}
+		return tx;
+	}
+
+	private Transaction spend(Transaction funding, int index, long fee) {
+		Transaction tx = new Transaction(params);
+		// Only the outpoint, the value has to be looked up by the estimator
+		tx.addInput(new TransactionInput(params, tx, new byte[0], funding.getOutput(index).getOutPointFor()));
+		tx.addOutput(Coin.COIN.subtract(Coin.valueOf(fee)), new ECKey());
+		return tx;
+	}
+
+	private static List<Transaction> listOf(Transaction... transactions) {
+		List<Transaction> list = new ArrayList<>();
+		for (Transaction tx : transactions) {
+			list.add(tx);
+		}
+		return list;
+	}
+}
@@ -0,0 +1,72 @@
+package com.coinblesk.server.service;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.coinblesk.server.config.AppConfig;
+
+/**
+ * The fetched fee is set directly, the tests do not depend on the fee API.
+ */
+public class FeeServiceTest {
+
+	private static final long MAXIMUM_AGE_SECONDS = 3600;
+
+	private FeeEstimationService feeEstimationService;
+	private FeeService feeService;
+
+	@Before
+	public void setUp() {
+		feeEstimationService = mock(FeeEstimationService.class);
+		final AppConfig appConfig = mock(AppConfig.class);
+		when(appConfig.getMaximumFeeAge()).thenReturn(MAXIMUM_AGE_SECONDS);
+		feeService = new FeeService(feeEstimationService, appConfig);
+	}
+
+	@After
+	public void tearDown() {
+		feeService.shutdown();
+	}
+
+	@Test
+	public void testLocalEstimateBeforeFirstFetch() {
+		when(feeEstimationService.estimate(90)).thenReturn(42);
+		Assert.assertEquals(-1L, feeService.getFeeAgeMillis());
+		Assert.assertEquals(42, feeService.fee());
+	}
+
+	@Test
+	public void testDefaultWithoutLocalEstimate() {
+		when(feeEstimationService.estimate(90)).thenReturn(null);
+		Assert.assertEquals(150, feeService.fee());
+	}
+
+	@Test
+	public void testFetchedFee() {
+		when(feeEstimationService.estimate(90)).thenReturn(42);
+		// Older than the caching time, the fee is still used while it is refreshed
+		feeService.setFee(200, System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(30));
+		Assert.assertEquals(200, feeService.fee());
+	}
+
+	@Test
+	public void testOutdatedFeeFallsBackToLocalEstimate() {
+		when(feeEstimationService.estimate(90)).thenReturn(42);
+		feeService.setFee(200, System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(MAXIMUM_AGE_SECONDS + 60));
+		Assert.assertEquals(42, feeService.fee());
+	}
+
+	@Test
+	public void testOutdatedFeeFallsBackToDefault() {
+		when(feeEstimationService.estimate(90)).thenReturn(null);
+		feeService.setFee(200, System.currentTimeMillis() - TimeUnit.DAYS.toMillis(3));
+		Assert.assertEquals(150, feeService.fee());
+	}
+}
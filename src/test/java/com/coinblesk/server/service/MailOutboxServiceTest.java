@@ -0,0 +1,99 @@
+package com.coinblesk.server.service;
+
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.dao.MailOutboxRepository;
+import com.coinblesk.server.entity.MailOutbox;
+import com.coinblesk.server.utilTest.CoinbleskTest;
+import com.coinblesk.server.utilTest.LocalMailSender;
+
+public class MailOutboxServiceTest extends CoinbleskTest {
+
+	private static final String FROM = "bitcoin@coinblesk.test";
+
+	@Autowired
+	private MailOutboxRepository mailOutboxRepository;
+
+	@Autowired
+	private AppConfig appConfig;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private LocalMailSender mailSender;
+	private MailOutboxService mailOutboxService;
+
+	@Before
+	public void setUp() {
+		mailOutboxRepository.deleteAll();
+		mailSender = new LocalMailSender();
+		// No sender threads, the test calls sendDue() itself
+		mailOutboxService = new MailOutboxService(mailOutboxRepository, mailSender, appConfig, transactionManager);
+	}
+
+	@Test
+	public void testEnqueueDoesNotSend() {
+		mailOutboxService.enqueue(FROM, "a@coinblesk.test", "subject", "text");
+		Assert.assertTrue(mailSender.getSent().isEmpty());
+		Assert.assertEquals(1, mailOutboxService.getPendingCount());
+	}
+
+	@Test
+	public void testSendsBatchOverOneConnection() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			mailOutboxService.enqueue(FROM, "user" + i + "@coinblesk.test", "subject " + i, "text " + i);
+		}
+
+		Assert.assertEquals(5, mailOutboxService.sendDue());
+		Assert.assertEquals(5, mailSender.getSent().size());
+		Assert.assertEquals(1, mailSender.getBatchSizes().size());
+		Assert.assertEquals(0, mailOutboxService.getPendingCount());
+		Assert.assertEquals(5, mailOutboxService.getSentCount());
+		Assert.assertEquals(FROM, mailSender.getSent().get(0).getFrom()[0].toString());
+	}
+
+	@Test
+	public void testFailedMailIsRetriedLater() {
+		mailSender.setFailingRecipient("bad@coinblesk.test");
+		mailOutboxService.enqueue(FROM, "good@coinblesk.test", "subject", "text");
+		mailOutboxService.enqueue(FROM, "bad@coinblesk.test", "subject", "text");
+
+		Assert.assertEquals(2, mailOutboxService.sendDue());
+		Assert.assertEquals(1, mailSender.getSent().size());
+		Assert.assertEquals(1, mailOutboxService.getPendingCount());
+		Assert.assertEquals(1, mailOutboxService.getRetryCount());
+
+		MailOutbox mail = mailOutboxRepository.findAll().iterator().next();
+		Assert.assertEquals("bad@coinblesk.test", mail.getRecipient());
+		Assert.assertEquals(1, mail.getAttempts());
+		Assert.assertNotNull(mail.getLastError());
+		Assert.assertTrue(mail.getNextAttemptAt().after(new Date()));
+
+		// Not due before the backoff is over
+		Assert.assertEquals(0, mailOutboxService.sendDue());
+	}
+
+	@Test
+	public void testGivesUpAfterMaxAttempts() {
+		mailSender.setFailingRecipient("bad@coinblesk.test");
+		mailOutboxService.enqueue(FROM, "bad@coinblesk.test", "subject", "text");
+
+		for (int i = 0; i < appConfig.getMailMaxAttempts(); i++) {
+			MailOutbox mail = mailOutboxRepository.findAll().iterator().next();
+			mail.setNextAttemptAt(new Date(0));
+			mailOutboxRepository.save(mail);
+			Assert.assertEquals(1, mailOutboxService.sendDue());
+		}
+
+		Assert.assertEquals(0, mailOutboxService.getPendingCount());
+		Assert.assertEquals(1, mailOutboxService.getFailedCount());
+		Assert.assertEquals(0, mailOutboxService.sendDue());
+	}
+}
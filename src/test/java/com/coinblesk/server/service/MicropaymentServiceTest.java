@@ -8,14 +8,22 @@ import com.coinblesk.server.entity.Account;
 import com.coinblesk.server.utilTest.CoinbleskTest;
 import com.coinblesk.server.utilTest.FakeTxBuilder;
 import com.coinblesk.server.utilTest.PaymentChannel;
+import com.coinblesk.util.InsufficientFunds;
 import org.bitcoinj.core.*;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -40,6 +48,9 @@ public class MicropaymentServiceTest extends CoinbleskTest {
 	@Autowired
 	private AccountRepository accountRepository;
 
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
 	@Test
 	public void getPendingChannelValue() throws Exception {
 		ECKey acc1 = new ECKey();
@@ -108,6 +119,152 @@ public class MicropaymentServiceTest extends CoinbleskTest {
 		assertThat(tx.getInputs().size(), is(1));
 	}
 
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // Payments in their own transactions
+	public void opposingVirtualPaymentsLockInIdOrder() throws Exception {
+		final ECKey keyA = new ECKey();
+		final ECKey keyB = new ECKey();
+		accountService.createAccount(keyA);
+		accountService.createAccount(keyB);
+		try {
+			accountRepository.save(accountRepository.findByClientPublicKey(keyA.getPubKey()).virtualBalance(1000L));
+			accountRepository.save(accountRepository.findByClientPublicKey(keyB.getPubKey()).virtualBalance(1000L));
+
+			// Each payment locks the account with the lower id first, whatever its direction
+			final ExecutorService executor = Executors.newFixedThreadPool(2);
+			try {
+				final Future<?> aToB = executor.submit(() -> {
+					for (long nonce = 1; nonce <= 50; nonce++) {
+						micropaymentService.virtualPayment(keyA, keyB, 1L, nonce);
+					}
+					return null;
+				});
+				final Future<?> bToA = executor.submit(() -> {
+					for (long nonce = 1; nonce <= 50; nonce++) {
+						micropaymentService.virtualPayment(keyB, keyA, 1L, nonce);
+					}
+					return null;
+				});
+				aToB.get();
+				bToA.get();
+			} finally {
+				executor.shutdown();
+			}
+
+			final Account accountA = accountRepository.findByClientPublicKey(keyA.getPubKey());
+			final Account accountB = accountRepository.findByClientPublicKey(keyB.getPubKey());
+			assertThat(accountA.virtualBalance(), is(1000L));
+			assertThat(accountB.virtualBalance(), is(1000L));
+			assertThat(accountA.nonce(), is(50L));
+			assertThat(accountB.nonce(), is(50L));
+		} finally {
+			accountService.deleteAccount(keyA);
+			accountService.deleteAccount(keyB);
+		}
+	}
+
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // Batches in their own transactions
+	public void opposingPaymentBatchesLockInIdOrder() throws Exception {
+		final ECKey keyA = new ECKey();
+		final ECKey keyB = new ECKey();
+		final ECKey keyC = new ECKey();
+		for (ECKey key : Arrays.asList(keyA, keyB, keyC)) {
+			accountService.createAccount(key);
+			accountRepository.save(accountRepository.findByClientPublicKey(key.getPubKey()).virtualBalance(1000L));
+		}
+		try {
+			// Like VirtualPaymentBatchService: lock the whole batch up front, then apply the payments. The keys are
+			// passed in opposite order, the rows are still locked in id order.
+			final TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+			final ExecutorService executor = Executors.newFixedThreadPool(2);
+			try {
+				final Future<?> forward = executor.submit(() -> {
+					for (long nonce = 1; nonce <= 20; nonce++) {
+						final long batchNonce = nonce;
+						transactionTemplate.execute(status -> {
+							micropaymentService.lockAccounts(keyA.getPubKey(), keyB.getPubKey(), keyC.getPubKey());
+							try {
+								micropaymentService.applyVirtualPayment(keyA, keyB, 1L, batchNonce);
+								micropaymentService.applyVirtualPayment(keyB, keyC, 1L, batchNonce);
+							} catch (Exception e) {
+								throw new RuntimeException(e);
+							}
+							return null;
+						});
+					}
+					return null;
+				});
+				final Future<?> backward = executor.submit(() -> {
+					for (long nonce = 1; nonce <= 20; nonce++) {
+						final long batchNonce = nonce;
+						transactionTemplate.execute(status -> {
+							micropaymentService.lockAccounts(keyC.getPubKey(), keyB.getPubKey(), keyA.getPubKey());
+							try {
+								micropaymentService.applyVirtualPayment(keyC, keyA, 2L, batchNonce);
+							} catch (Exception e) {
+								throw new RuntimeException(e);
+							}
+							return null;
+						});
+					}
+					return null;
+				});
+				forward.get();
+				backward.get();
+			} finally {
+				executor.shutdown();
+			}
+
+			assertThat(accountRepository.findByClientPublicKey(keyA.getPubKey()).virtualBalance(), is(1020L));
+			assertThat(accountRepository.findByClientPublicKey(keyB.getPubKey()).virtualBalance(), is(1000L));
+			assertThat(accountRepository.findByClientPublicKey(keyC.getPubKey()).virtualBalance(), is(980L));
+		} finally {
+			accountService.deleteAccount(keyA);
+			accountService.deleteAccount(keyB);
+			accountService.deleteAccount(keyC);
+		}
+	}
+
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // The concurrent payment commits on its own
+	public void paymentReloadsAccountLoadedBeforeTheLock() throws Exception {
+		final ECKey sender = new ECKey();
+		final ECKey receiver = new ECKey();
+		accountService.createAccount(sender);
+		accountService.createAccount(receiver);
+		try {
+			accountRepository.save(accountRepository.findByClientPublicKey(sender.getPubKey()).virtualBalance(100L));
+
+			// Like virtualPaymentViaEmail, the sender is loaded before the payment starts
+			final TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+			final Exception failure = transactionTemplate.execute(status -> {
+				final Account loaded = accountRepository.findByClientPublicKey(sender.getPubKey());
+				assertThat(loaded.virtualBalance(), is(100L));
+
+				final ExecutorService executor = Executors.newSingleThreadExecutor();
+				try {
+					executor.submit(() -> micropaymentService.virtualPayment(sender, receiver, 80L, 1L)).get();
+					micropaymentService.virtualPayment(sender, receiver, 50L, 2L);
+					return null;
+				} catch (Exception e) {
+					return e;
+				} finally {
+					executor.shutdown();
+					status.setRollbackOnly();
+				}
+			});
+
+			assertThat(failure instanceof InsufficientFunds, is(true));
+			assertThat(accountRepository.findByClientPublicKey(sender.getPubKey()).virtualBalance(), is(20L));
+			assertThat(accountRepository.findByClientPublicKey(sender.getPubKey()).nonce(), is(1L));
+			assertThat(accountRepository.findByClientPublicKey(receiver.getPubKey()).virtualBalance(), is(80L));
+		} finally {
+			accountService.deleteAccount(sender);
+			accountService.deleteAccount(receiver);
+		}
+	}
+
 	private NetworkParameters params() {
 		return appConfig.getNetworkParameters();
 	}
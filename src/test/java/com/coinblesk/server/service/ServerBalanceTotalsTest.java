@@ -0,0 +1,69 @@
+package com.coinblesk.server.service;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+/**
+ * The transactions are simulated with the synchronizations of {@link TransactionSynchronizationManager}.
+ */
+public class ServerBalanceTotalsTest {
+
+	private final ServerBalanceTotals totals = new ServerBalanceTotals();
+
+	@After
+	public void tearDown() {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+
+	@Test
+	public void testReset() {
+		Assert.assertFalse(totals.isInitialized());
+		totals.addVirtualBalances(5L);
+		totals.reset(100L, 200L);
+
+		Assert.assertTrue(totals.isInitialized());
+		Assert.assertEquals(100L, totals.getPendingChannelValue());
+		Assert.assertEquals(200L, totals.getVirtualBalances());
+	}
+
+	@Test
+	public void testWithoutTransaction() {
+		totals.reset(100L, 200L);
+		totals.addPendingChannelValue(-30L);
+		totals.addVirtualBalances(40L);
+
+		Assert.assertEquals(70L, totals.getPendingChannelValue());
+		Assert.assertEquals(240L, totals.getVirtualBalances());
+	}
+
+	@Test
+	public void testAppliedOnCommit() {
+		totals.reset(100L, 200L);
+		TransactionSynchronizationManager.initSynchronization();
+		totals.addPendingChannelValue(-30L);
+		totals.addVirtualBalances(40L);
+		Assert.assertEquals(100L, totals.getPendingChannelValue());
+		Assert.assertEquals(200L, totals.getVirtualBalances());
+
+		TransactionSynchronizationUtils.triggerAfterCommit();
+		Assert.assertEquals(70L, totals.getPendingChannelValue());
+		Assert.assertEquals(240L, totals.getVirtualBalances());
+	}
+
+	@Test
+	public void testIgnoredOnRollback() {
+		totals.reset(100L, 200L);
+		TransactionSynchronizationManager.initSynchronization();
+		totals.addPendingChannelValue(-30L);
+		totals.addVirtualBalances(40L);
+		TransactionSynchronizationManager.clearSynchronization();
+
+		Assert.assertEquals(100L, totals.getPendingChannelValue());
+		Assert.assertEquals(200L, totals.getVirtualBalances());
+	}
+}
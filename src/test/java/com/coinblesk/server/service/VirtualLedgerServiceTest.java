@@ -0,0 +1,321 @@
+package com.coinblesk.server.service;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bitcoinj.core.ECKey;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.coinblesk.server.dao.AccountRepository;
+import com.coinblesk.server.entity.Account;
+import com.coinblesk.server.exceptions.InvalidNonceException;
+import com.coinblesk.server.utilTest.CoinbleskTest;
+import com.coinblesk.util.InsufficientFunds;
+
+/**
+ * The ledger stores its checkpoints in transactions of its own, so the test does not run in a transaction and
+ * removes its accounts itself.
+ */
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class VirtualLedgerServiceTest extends CoinbleskTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Autowired
+	private AccountService accountService;
+
+	@Autowired
+	private AccountRepository accountRepository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private final List<ECKey> keys = new ArrayList<>();
+	private TransactionTemplate transactionTemplate;
+	private VirtualLedgerService ledger;
+
+	@Before
+	public void setUp() throws Exception {
+		transactionTemplate = new TransactionTemplate(transactionManager);
+		ledger = newLedger();
+	}
+
+	@After
+	public void tearDown() {
+		for (ECKey key : keys) {
+			accountService.deleteAccount(key);
+		}
+	}
+
+	@Test
+	public void testCheckpointAddsChanges() throws Exception {
+		ECKey sender = createAccount(1000L);
+		ECKey receiver = createAccount(0L);
+
+		ledger.transfer(sender, receiver, 300L, 1L);
+		Assert.assertEquals(1000L, storedBalance(sender));
+
+		// Changed outside the ledger before the checkpoint
+		transactionTemplate.execute(status -> accountRepository.addToVirtualBalance(accountRepository
+			.findIdByClientPublicKey(receiver.getPubKey()), 50L));
+
+		ledger.checkpoint();
+		Assert.assertEquals(700L, storedBalance(sender));
+		Assert.assertEquals(350L, storedBalance(receiver));
+		Assert.assertEquals(1L, accountRepository.findByClientPublicKey(sender.getPubKey()).nonce());
+	}
+
+	@Test
+	public void testCheckpointDropsUnchangedAccounts() throws Exception {
+		ECKey sender = createAccount(1000L);
+		ECKey receiver = createAccount(0L);
+
+		ledger.transfer(sender, receiver, 300L, 1L);
+		Assert.assertEquals(2, ledger.getCachedAccountCount());
+
+		ledger.checkpoint();
+		Assert.assertEquals(2, ledger.getCachedAccountCount());
+		ledger.checkpoint();
+		Assert.assertEquals(0, ledger.getCachedAccountCount());
+
+		// Reloaded from the database
+		Assert.assertEquals(700L, ledger.getVirtualBalance(sender.getPubKey()));
+	}
+
+	@Test
+	public void testRecoverIgnoresTornRecord() throws Exception {
+		ECKey sender = createAccount(1000L);
+		ECKey receiver = createAccount(0L);
+		ledger.transfer(sender, receiver, 300L, 1L);
+
+		// Crash while the next record was written
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(segments().get(0), true))) {
+			out.writeInt(64);
+			out.writeLong(42L);
+			out.write(new byte[] { 1, 2, 3 });
+		}
+
+		newLedger();
+		Assert.assertEquals(700L, storedBalance(sender));
+		Assert.assertEquals(300L, storedBalance(receiver));
+	}
+
+	@Test
+	public void testReplayedSegmentIsAppliedOnce() throws Exception {
+		ECKey sender = createAccount(1000L);
+		ECKey receiver = createAccount(0L);
+		ledger.transfer(sender, receiver, 300L, 1L);
+		ledger.transfer(sender, receiver, 100L, 2L);
+
+		final File segment = segments().get(0);
+		final byte[] content = Files.readAllBytes(segment.toPath());
+
+		// Recovered after a crash, but the segment is not deleted
+		newLedger().shutdown();
+		Assert.assertEquals(600L, storedBalance(sender));
+		Files.write(segment.toPath(), content);
+
+		newLedger();
+		Assert.assertEquals(600L, storedBalance(sender));
+		Assert.assertEquals(400L, storedBalance(receiver));
+	}
+
+	@Test
+	public void testCheckpointDuringConcurrentTransfers() throws Exception {
+		final int accounts = 4;
+		final List<ECKey> senders = new ArrayList<>();
+		for (int i = 0; i < accounts; i++) {
+			senders.add(createAccount(10000L));
+		}
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < accounts; i++) {
+			final int index = i;
+			// Every thread is the only one sending from its account, so its nonces are increasing
+			threads.add(new Thread(() -> {
+				final Random random = new Random(index);
+				for (long nonce = 1; nonce <= 500; nonce++) {
+					final ECKey receiver = senders.get((index + 1 + random.nextInt(accounts - 1)) % accounts);
+					try {
+						ledger.transfer(senders.get(index), receiver, 1 + random.nextInt(200), nonce);
+					} catch (InsufficientFunds e) {
+						// Expected now and then
+					} catch (Exception e) {
+						failure.set(e);
+						return;
+					}
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+
+		final Thread checkpoints = new Thread(() -> {
+			while (running.get()) {
+				ledger.checkpoint();
+			}
+		});
+		checkpoints.start();
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		running.set(false);
+		checkpoints.join();
+		Assert.assertNull(failure.get());
+
+		ledger.checkpoint();
+		long total = 0L;
+		for (ECKey key : senders) {
+			Assert.assertEquals(ledger.getVirtualBalance(key.getPubKey()), storedBalance(key));
+			total += storedBalance(key);
+		}
+		Assert.assertEquals(accounts * 10000L, total);
+	}
+
+	@Test
+	public void testCreditIsReservedUntilCommit() throws Exception {
+		ECKey receiver = createAccount(0L);
+		ECKey other = createAccount(0L);
+
+		transactionTemplate.execute(status -> {
+			try {
+				Assert.assertEquals(0L, ledger.credit(receiver.getPubKey(), 500L));
+				ledger.transfer(receiver, other, 100L, 1L);
+				Assert.fail("Reserved amount was spent");
+			} catch (InsufficientFunds e) {
+				// Expected
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			return null;
+		});
+
+		Assert.assertEquals(500L, ledger.getVirtualBalance(receiver.getPubKey()));
+		ledger.checkpoint();
+		Assert.assertEquals(500L, storedBalance(receiver));
+	}
+
+	@Test
+	public void testCreditIsRevertedOnRollback() throws Exception {
+		ECKey receiver = createAccount(100L);
+
+		transactionTemplate.execute(status -> {
+			try {
+				ledger.credit(receiver.getPubKey(), 500L);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			status.setRollbackOnly();
+			return null;
+		});
+
+		Assert.assertEquals(100L, ledger.getVirtualBalance(receiver.getPubKey()));
+		ledger.checkpoint();
+		Assert.assertEquals(100L, storedBalance(receiver));
+	}
+
+	@Test
+	public void testWithdrawAllIsRestoredOnRollback() throws Exception {
+		ECKey account = createAccount(1000L);
+
+		transactionTemplate.execute(status -> {
+			try {
+				Assert.assertEquals(1000L, ledger.withdrawAll(account.getPubKey()));
+				Assert.assertEquals(0L, ledger.getVirtualBalance(account.getPubKey()));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			status.setRollbackOnly();
+			return null;
+		});
+
+		Assert.assertEquals(1000L, ledger.getVirtualBalance(account.getPubKey()));
+		ledger.checkpoint();
+		Assert.assertEquals(1000L, storedBalance(account));
+	}
+
+	@Test
+	public void testUsedNonceIsRejected() throws Exception {
+		ECKey sender = createAccount(1000L);
+		ECKey receiver = createAccount(0L);
+		final Account account = accountRepository.findByClientPublicKey(sender.getPubKey());
+
+		Assert.assertTrue(ledger.useNonce(account, 5L));
+		Assert.assertFalse(ledger.useNonce(account, 5L));
+		try {
+			ledger.transfer(sender, receiver, 100L, 5L);
+			Assert.fail("Nonce was used twice");
+		} catch (InvalidNonceException e) {
+			// Expected
+		}
+		Assert.assertEquals(5L, ledger.nonceOf(account));
+	}
+
+	@Test
+	public void testNonceIsReleasedOnRollback() throws Exception {
+		ECKey sender = createAccount(1000L);
+		final Account account = accountRepository.findByClientPublicKey(sender.getPubKey());
+
+		transactionTemplate.execute(status -> {
+			try {
+				Assert.assertTrue(ledger.useNonce(account, 5L));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			status.setRollbackOnly();
+			return null;
+		});
+
+		Assert.assertEquals(0L, ledger.nonceOf(account));
+		Assert.assertTrue(ledger.useNonce(account, 5L));
+	}
+
+	private VirtualLedgerService newLedger() throws Exception {
+		final VirtualLedgerService newLedger = new VirtualLedgerService(accountRepository, transactionManager, 4,
+			folder.getRoot());
+		newLedger.init();
+		return newLedger;
+	}
+
+	private ECKey createAccount(long virtualBalance) {
+		final ECKey key = new ECKey();
+		accountService.createAccount(key);
+		keys.add(key);
+		accountRepository.save(accountRepository.findByClientPublicKey(key.getPubKey()).virtualBalance(virtualBalance));
+		return key;
+	}
+
+	private long storedBalance(ECKey key) {
+		return accountRepository.findByClientPublicKey(key.getPubKey()).virtualBalance();
+	}
+
+	private List<File> segments() {
+		final List<File> segments = new ArrayList<>();
+		for (File file : folder.getRoot().listFiles()) {
+			if (file.length() > 0) {
+				segments.add(file);
+			}
+		}
+		return segments;
+	}
+}
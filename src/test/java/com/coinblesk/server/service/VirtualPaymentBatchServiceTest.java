@@ -0,0 +1,142 @@
+package com.coinblesk.server.service;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bitcoinj.core.ECKey;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.service.MicropaymentService.VirtualPaymentResult;
+import com.coinblesk.util.InsufficientFunds;
+
+/**
+ * Runs the committer against a mocked {@link MicropaymentService}, the transactions are not backed by a database.
+ */
+public class VirtualPaymentBatchServiceTest {
+
+	private final ECKey alice = new ECKey();
+	private final ECKey bob = new ECKey();
+	private final ECKey carol = new ECKey();
+	private final VirtualPaymentResult result = new VirtualPaymentResult(1L, new byte[0], 2L, new byte[0]);
+
+	private MicropaymentService micropaymentService;
+	private AppConfig appConfig;
+	private VirtualPaymentBatchService batchService;
+
+	@Before
+	public void setUp() {
+		micropaymentService = mock(MicropaymentService.class);
+		appConfig = mock(AppConfig.class);
+		when(appConfig.isVirtualPaymentBatchEnabled()).thenReturn(true);
+		when(appConfig.getVirtualPaymentBatchMaxDelayMillis()).thenReturn(5000L);
+
+		batchService = new VirtualPaymentBatchService(micropaymentService, appConfig, mock(PlatformTransactionManager
+			.class));
+	}
+
+	@After
+	public void tearDown() {
+		batchService.shutdown();
+	}
+
+	@Test
+	public void testTransientFailureIsRetried() throws Exception {
+		start(1);
+		when(micropaymentService.applyVirtualPayment(alice, bob, 10L, 1L)).thenThrow(new CannotAcquireLockException(
+			"deadlock")).thenReturn(result);
+
+		Assert.assertSame(result, batchService.virtualPayment(alice, bob, 10L, 1L));
+		verify(micropaymentService, times(2)).applyVirtualPayment(alice, bob, 10L, 1L);
+		verify(micropaymentService, never()).virtualPayment(any(ECKey.class), any(ECKey.class), anyLong(), anyLong());
+	}
+
+	@Test
+	public void testRepeatedTransientFailureFallsBackToSinglePayments() throws Exception {
+		start(1);
+		when(micropaymentService.applyVirtualPayment(alice, bob, 10L, 1L)).thenThrow(new CannotAcquireLockException(
+			"deadlock"));
+		when(micropaymentService.virtualPayment(alice, bob, 10L, 1L)).thenReturn(result);
+
+		Assert.assertSame(result, batchService.virtualPayment(alice, bob, 10L, 1L));
+		verify(micropaymentService, times(5)).applyVirtualPayment(alice, bob, 10L, 1L);
+		verify(micropaymentService).virtualPayment(alice, bob, 10L, 1L);
+	}
+
+	@Test
+	public void testBrokenBatchIsCommittedOneByOne() throws Exception {
+		start(2);
+		doThrow(new IllegalStateException("broken")).when(micropaymentService).lockAccounts(anyVararg());
+		when(micropaymentService.virtualPayment(alice, bob, 10L, 1L)).thenReturn(result);
+		when(micropaymentService.virtualPayment(carol, bob, 20L, 1L)).thenThrow(new InsufficientFunds("none"));
+
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final Future<VirtualPaymentResult> first = executor.submit(() -> batchService.virtualPayment(alice, bob,
+				10L, 1L));
+			final Future<VirtualPaymentResult> second = executor.submit(() -> batchService.virtualPayment(carol, bob,
+				20L, 1L));
+
+			Assert.assertSame(result, first.get());
+			try {
+				second.get();
+				Assert.fail("Payment without funds succeeded");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof InsufficientFunds);
+			}
+		} finally {
+			executor.shutdown();
+		}
+		verify(micropaymentService, never()).applyVirtualPayment(any(ECKey.class), any(ECKey.class), anyLong(),
+			anyLong());
+	}
+
+	@Test
+	public void testRejectedPaymentDoesNotFailTheBatch() throws Exception {
+		start(2);
+		when(micropaymentService.applyVirtualPayment(alice, bob, 10L, 1L)).thenReturn(result);
+		when(micropaymentService.applyVirtualPayment(carol, bob, 20L, 1L)).thenThrow(new InsufficientFunds("none"));
+
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final Future<VirtualPaymentResult> first = executor.submit(() -> batchService.virtualPayment(alice, bob,
+				10L, 1L));
+			final Future<VirtualPaymentResult> second = executor.submit(() -> batchService.virtualPayment(carol, bob,
+				20L, 1L));
+
+			Assert.assertSame(result, first.get());
+			try {
+				second.get();
+				Assert.fail("Payment without funds succeeded");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof InsufficientFunds);
+			}
+		} finally {
+			executor.shutdown();
+		}
+		verify(micropaymentService, never()).virtualPayment(any(ECKey.class), any(ECKey.class), anyLong(), anyLong());
+	}
+
+	// A batch is committed as soon as it has the given number of payments
+	private void start(int maxSize) {
+		when(appConfig.getVirtualPaymentBatchMaxSize()).thenReturn(maxSize);
+		batchService.init();
+	}
+}
@@ -0,0 +1,65 @@
+package com.coinblesk.server.service;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.coinblesk.server.config.AppConfig;
+import com.coinblesk.server.utilTest.CoinbleskTest;
+import com.coinblesk.server.utilTest.FakeTxBuilder;
+
+public class WalletServiceTest extends CoinbleskTest {
+
+	@Autowired
+	private WalletService walletService;
+
+	@Autowired
+	private AccountService accountService;
+
+	@Autowired
+	private AppConfig appConfig;
+
+	@Test
+	public void addressIndexFollowsNewTransactions() throws Exception {
+		final NetworkParameters params = appConfig.getNetworkParameters();
+		final ECKey clientKey = new ECKey();
+		accountService.createAccount(clientKey);
+		final Address address = accountService.createTimeLockedAddress(clientKey, Instant.now().plus(Duration
+			.ofDays(30)).getEpochSecond()).getTimeLockedAddress().getAddress(params);
+
+		walletService.addWatching(address);
+		assertThat(walletService.getBalanceByAddress(address), is(Coin.ZERO));
+		assertThat(walletService.getUTXOByAddress(address).size(), is(0));
+
+		final Transaction first = FakeTxBuilder.createFakeTxWithoutChangeAddress(params, address);
+		mineTransaction(params, first);
+		assertThat(walletService.getBalanceByAddress(address), is(first.getOutput(0).getValue()));
+		assertThat(walletService.getUTXOByAddress(address).size(), is(1));
+
+		// The index was read in between, the second transaction updates it
+		final Transaction second = FakeTxBuilder.createFakeTxWithoutChangeAddress(params, address);
+		mineTransaction(params, second);
+		assertThat(walletService.getBalanceByAddress(address), is(first.getOutput(0).getValue().add(second
+			.getOutput(0).getValue())));
+		assertThat(walletService.getUTXOByAddress(address).size(), is(2));
+		assertThat(walletService.getBalanceByAddresses().get(address), is(walletService.getBalanceByAddress(address)));
+	}
+
+	private void mineTransaction(NetworkParameters params, Transaction tx) throws Exception {
+		final Block lastBlock = walletService.blockChain().getChainHead().getHeader();
+		final Block newBlock = FakeTxBuilder.makeSolvedTestBlock(lastBlock, new Transaction(params, tx
+			.bitcoinSerialize()));
+		walletService.blockChain().add(newBlock);
+	}
+}
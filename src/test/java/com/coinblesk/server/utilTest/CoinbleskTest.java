@@ -11,8 +11,10 @@ import org.springframework.transaction.annotation.Transactional;
 @Transactional
 @TestPropertySource(properties = {
 	"spring.datasource.url:jdbc:h2:mem:testdb;mv_store=false",
-	"bitcoin.net:unittest"
+	"bitcoin.net:unittest",
+	"coinblesk.events.async.enabled:false"
 })
+// Events are written synchronously, so tests see them in their own transaction
 // ;mv_store=false needed for correct isolation level:
 // http://h2-database.66688.n3.nabble.com/Am-I-bananas-or-does-serializable-isolation-not-work-as-it-should-tp4030767p4030768.html
 public abstract class CoinbleskTest {
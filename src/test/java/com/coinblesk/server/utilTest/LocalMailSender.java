@@ -0,0 +1,58 @@
+package com.coinblesk.server.utilTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+/**
+ * Mail sender that keeps the messages instead of contacting an SMTP server. Messages to a failing recipient are
+ * reported as failed, like a server rejecting a single message of a batch.
+ */
+public class LocalMailSender extends JavaMailSenderImpl {
+
+	private final List<MimeMessage> sent = Collections.synchronizedList(new ArrayList<>());
+	private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+	private volatile String failingRecipient;
+
+	public LocalMailSender setFailingRecipient(String failingRecipient) {
+		this.failingRecipient = failingRecipient;
+		return this;
+	}
+
+	public List<MimeMessage> getSent() {
+		return sent;
+	}
+
+	public List<Integer> getBatchSizes() {
+		return batchSizes;
+	}
+
+	@Override
+	protected void doSend(MimeMessage[] mimeMessages, Object[] originalMessages) throws MailException {
+		batchSizes.add(mimeMessages.length);
+		final Map<Object, Exception> failed = new LinkedHashMap<>();
+		for (MimeMessage message : mimeMessages) {
+			try {
+				if (failingRecipient != null && failingRecipient.equals(message.getAllRecipients()[0].toString())) {
+					failed.put(message, new MessagingException("Mailbox unavailable: " + failingRecipient));
+				} else {
+					sent.add(message);
+				}
+			} catch (MessagingException e) {
+				failed.put(message, e);
+			}
+		}
+		if (!failed.isEmpty()) {
+			throw new MailSendException(failed);
+		}
+	}
+}
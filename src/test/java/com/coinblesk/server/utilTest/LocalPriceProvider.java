@@ -0,0 +1,52 @@
+package com.coinblesk.server.utilTest;
+
+import java.math.BigDecimal;
+
+import com.coinblesk.server.service.BitcoinPriceProvider;
+
+/**
+ * Price provider with a fixed price that does not contact any service. Can be made slow or failing.
+ */
+public class LocalPriceProvider implements BitcoinPriceProvider {
+
+	private final String name;
+	private volatile BigDecimal price;
+	private volatile long delayMillis;
+	private volatile boolean failing;
+
+	public LocalPriceProvider(String name, BigDecimal price) {
+		this.name = name;
+		this.price = price;
+	}
+
+	public LocalPriceProvider setPrice(BigDecimal price) {
+		this.price = price;
+		return this;
+	}
+
+	public LocalPriceProvider setDelayMillis(long delayMillis) {
+		this.delayMillis = delayMillis;
+		return this;
+	}
+
+	public LocalPriceProvider setFailing(boolean failing) {
+		this.failing = failing;
+		return this;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public BigDecimal getPriceUSD() throws Exception {
+		if (delayMillis > 0) {
+			Thread.sleep(delayMillis);
+		}
+		if (failing) {
+			throw new Exception("Provider " + name + " is failing");
+		}
+		return price;
+	}
+}